@@ -0,0 +1,60 @@
+package com.databricks.manager.benchmarks;
+
+import com.databricks.manager.ContainerId;
+import com.databricks.manager.ResourceManagerImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to place a batch of containers on an empty fleet when every instance request takes
+ * requestLatencyMillis. Two containers fit on an instance, so each batch needs batchSize / 2 new
+ * instances. Instances are requested in parallel, so the time should grow with the number of
+ * round trips the concurrency limit for instance requests needs to reach batchSize / 2, not with
+ * batchSize itself.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColdPlacementBenchmark {
+
+    @Param({"2", "20", "200"})
+    public int batchSize;
+
+    @Param({"0", "100"})
+    public long requestLatencyMillis;
+
+    private ResourceManagerImpl manager;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        manager = new ResourceManagerImpl(new FakeCloudProvider(2, requestLatencyMillis, requestLatencyMillis / 10), 2, 1);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    @Benchmark
+    public List<ContainerId> placeOnEmptyFleet() {
+        return manager.placeContainers(batchSize);
+    }
+}
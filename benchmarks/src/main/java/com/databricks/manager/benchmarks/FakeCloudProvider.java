@@ -0,0 +1,74 @@
+package com.databricks.manager.benchmarks;
+
+import com.databricks.manager.CloudProvider;
+import com.databricks.manager.Instance;
+import com.databricks.manager.InstanceImpl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cloud provider for benchmarks that hands out InstanceImpl instances, either right away or after
+ * a configurable delay to stand in for the minutes a real cloud provider takes.
+ */
+public class FakeCloudProvider implements CloudProvider {
+
+    private final double instanceSizeGB;
+    private final long requestLatencyMillis;
+    private final long requestJitterMillis;
+    private final Set<Instance> instances;
+
+    public FakeCloudProvider(double instanceSizeGB) {
+        this(instanceSizeGB, 0, 0);
+    }
+
+    /**
+     * @param requestLatencyMillis how long every requestInstance call blocks.
+     * @param requestJitterMillis up to how much longer a call blocks, chosen at random per call.
+     */
+    public FakeCloudProvider(double instanceSizeGB, long requestLatencyMillis, long requestJitterMillis) {
+        this.instanceSizeGB = instanceSizeGB;
+        this.requestLatencyMillis = requestLatencyMillis;
+        this.requestJitterMillis = requestJitterMillis;
+        this.instances = Collections.synchronizedSet(new HashSet<Instance>());
+    }
+
+    public Instance requestInstance() {
+        long latencyMillis = requestLatencyMillis;
+        if (requestJitterMillis > 0) {
+            latencyMillis += ThreadLocalRandom.current().nextLong(requestJitterMillis + 1);
+        }
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Instance i = new InstanceImpl(instanceSizeGB);
+        instances.add(i);
+        return i;
+    }
+
+    public Set<Instance> getAllInstances() {
+        synchronized (instances) {
+            return new HashSet<Instance>(instances);
+        }
+    }
+
+    /**
+     * Adds instances that already run containers, as a resource manager finds them after a restart.
+     */
+    public void addInstances(int numInstances, int containersPerInstance, double containerSizeGB) {
+        for (int x = 0; x < numInstances; x++) {
+            Instance i = new InstanceImpl(instanceSizeGB);
+            for (int y = 0; y < containersPerInstance; y++) {
+                i.placeContainer(containerSizeGB);
+            }
+            instances.add(i);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.databricks.manager.benchmarks;
+
+import com.databricks.manager.ContainerId;
+import com.databricks.manager.Instance;
+import com.databricks.manager.ResourceManagerImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of ResourceManagerImpl.getInstance with one reader and with one reader per core.
+ * Lookups do not take a lock, so the all-cores score should grow with the number of cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetInstanceBenchmark {
+
+    @Param({"10000"})
+    public int containers;
+
+    private ResourceManagerImpl manager;
+    private ContainerId[] containerIds;
+
+    @Setup
+    public void setUp() {
+        manager = new ResourceManagerImpl(new FakeCloudProvider(64), 64, 1);
+        List<ContainerId> placed = manager.placeContainers(containers);
+        containerIds = placed.toArray(new ContainerId[placed.size()]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Instance lookupOneThread() {
+        return lookup();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Instance lookupAllCores() {
+        return lookup();
+    }
+
+    private Instance lookup() {
+        return manager.getInstance(containerIds[ThreadLocalRandom.current().nextInt(containerIds.length)]);
+    }
+}
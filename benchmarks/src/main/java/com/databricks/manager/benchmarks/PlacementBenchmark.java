@@ -0,0 +1,69 @@
+package com.databricks.manager.benchmarks;
+
+import com.databricks.manager.ContainerId;
+import com.databricks.manager.ResourceManagerImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of placing a batch of containers and unplacing it again, with one thread and with one
+ * thread per core contending for the same ResourceManagerImpl. The fleet is sized up front, so this
+ * measures the manager's own bookkeeping and not the cloud provider.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlacementBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int batchSize;
+
+    private ResourceManagerImpl manager;
+
+    @Setup
+    public void setUp() {
+        manager = new ResourceManagerImpl(new FakeCloudProvider(64), 64, 1);
+        //room for every thread to hold two batches at once
+        List<ContainerId> placed = manager.placeContainers(2 * batchSize * Runtime.getRuntime().availableProcessors());
+        manager.unplaceContainers(placed);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void placeBatchOneThread() {
+        placeBatch();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void placeBatchAllCores() {
+        placeBatch();
+    }
+
+    private void placeBatch() {
+        manager.unplaceContainers(manager.placeContainers(batchSize));
+    }
+}
@@ -0,0 +1,64 @@
+package com.databricks.manager.benchmarks;
+
+import com.databricks.manager.ResourceManagerConfig;
+import com.databricks.manager.ResourceManagerImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for a ResourceManagerImpl to restore its state from the instances of the cloud provider
+ * after a restart, from the constructor until it is ready. Every instance already runs
+ * containersPerInstance containers. No journal is configured, so every instance is asked for its
+ * containers.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class RestoreStateBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int instances;
+
+    @Param({"4"})
+    public int containersPerInstance;
+
+    private FakeCloudProvider provider;
+    private ResourceManagerImpl manager;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        provider = new FakeCloudProvider(64);
+        provider.addInstances(instances, containersPerInstance, 1);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    @Benchmark
+    public boolean restoreState() {
+        //no background reconciliation to compete with
+        manager = new ResourceManagerImpl(provider, 64, 1,
+            new ResourceManagerConfig().setReconciliationIntervalMillis(0));
+        manager.whenReady().join();
+        return manager.isReady();
+    }
+}
@@ -0,0 +1,89 @@
+package com.databricks.manager.benchmarks;
+
+import com.databricks.manager.AsyncResourceManager;
+import com.databricks.manager.ContainerId;
+import com.databricks.manager.ResourceManagerImpl;
+import com.databricks.manager.StripedResourceManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of placing and unplacing a container with one thread and with one thread per core,
+ * for ResourceManagerImpl (stripes = 0) and for a StripedResourceManager with that many stripes.
+ * The fleet is sized up front so no operation waits for the cloud provider. With enough stripes,
+ * the all-cores score should grow close to linearly with the number of cores, while a single
+ * ResourceManagerImpl stays at about its one-thread score.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StripedPlacementBenchmark {
+
+    @Param({"0", "64"})
+    public int stripes;
+
+    @Param({"10000"})
+    public int containers;
+
+    private AsyncResourceManager manager;
+
+    @Setup
+    public void setUp() {
+        FakeCloudProvider provider = new FakeCloudProvider(64);
+        if (stripes == 0) {
+            manager = new ResourceManagerImpl(provider, 64, 1);
+        }
+        else {
+            manager = new StripedResourceManager(provider, 64, 1, stripes);
+        }
+        //size the fleet, then free it again
+        List<ContainerId> placed = manager.placeContainers(containers);
+        for (ContainerId containerId : placed) {
+            manager.unplaceContainer(containerId);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (manager instanceof ResourceManagerImpl) {
+            ((ResourceManagerImpl) manager).shutdown();
+        }
+        else {
+            ((StripedResourceManager) manager).shutdown();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void placeUnplaceOneThread() {
+        placeUnplace();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void placeUnplaceAllCores() {
+        placeUnplace();
+    }
+
+    private void placeUnplace() {
+        manager.unplaceContainer(manager.placeContainers(1).get(0));
+    }
+}
@@ -0,0 +1,121 @@
+package com.databricks.manager.benchmarks;
+
+import com.databricks.manager.ContainerId;
+import com.databricks.manager.ResourceManagerImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of churn on a full fleet: each operation unplaces the oldest containers a thread
+ * placed and places as many new ones in the memory that was freed, one container at a time and in
+ * batches. No operation waits for the cloud provider.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnplaceChurnBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Fleet {
+
+        @Param({"10000"})
+        public int containers;
+
+        ResourceManagerImpl manager;
+
+        @Setup
+        public void setUp() {
+            manager = new ResourceManagerImpl(new FakeCloudProvider(64), 64, 1);
+        }
+
+        @TearDown
+        public void tearDown() {
+            manager.shutdown();
+        }
+    }
+
+    /**
+     * The containers one thread placed, oldest first.
+     */
+    @State(Scope.Thread)
+    public static class Placed {
+
+        @Param({"32"})
+        public int batchSize;
+
+        ContainerId[] containerIds;
+        int oldest;
+
+        @Setup
+        public void setUp(Fleet fleet) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            List<ContainerId> placed = fleet.manager.placeContainers(Math.max(batchSize, fleet.containers / threads));
+            containerIds = placed.toArray(new ContainerId[placed.size()]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ContainerId churnOneThread(Fleet fleet, Placed placed) {
+        return churnOne(fleet, placed);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ContainerId churnAllCores(Fleet fleet, Placed placed) {
+        return churnOne(fleet, placed);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ContainerId churnBatchOneThread(Fleet fleet, Placed placed) {
+        return churnBatch(fleet, placed);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ContainerId churnBatchAllCores(Fleet fleet, Placed placed) {
+        return churnBatch(fleet, placed);
+    }
+
+    private static ContainerId churnOne(Fleet fleet, Placed placed) {
+        int x = placed.oldest;
+        fleet.manager.unplaceContainer(placed.containerIds[x]);
+        placed.containerIds[x] = fleet.manager.placeContainers(1).get(0);
+        placed.oldest = (x + 1) % placed.containerIds.length;
+        return placed.containerIds[x];
+    }
+
+    private static ContainerId churnBatch(Fleet fleet, Placed placed) {
+        int n = placed.batchSize;
+        List<ContainerId> oldest = new ArrayList<ContainerId>(n);
+        for (int y = 0; y < n; y++) {
+            oldest.add(placed.containerIds[(placed.oldest + y) % placed.containerIds.length]);
+        }
+        fleet.manager.unplaceContainers(oldest);
+        List<ContainerId> replacements = fleet.manager.placeContainers(n);
+        for (int y = 0; y < n; y++) {
+            placed.containerIds[(placed.oldest + y) % placed.containerIds.length] = replacements.get(y);
+        }
+        placed.oldest = (placed.oldest + n) % placed.containerIds.length;
+        return replacements.get(n - 1);
+    }
+}
@@ -0,0 +1,88 @@
+package com.databricks.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides the order in which placements are served when there is not enough capacity for all of
+ * them at once, see ResourceManagerConfig.setAdmissionPolicy. Without one, placements are served
+ * in the order they arrive, and a tenant asking for thousands of containers holds up everyone
+ * who asks after it until its instances have booted.
+ *
+ * With one, requests of a higher priority class are served first. Within a class, tenants share
+ * capacity in proportion to their weights, container by container, so a large request is served
+ * in parts and smaller ones are served in between. Small requests that fit into free capacity are
+ * placed right away, ahead of everything waiting. Quotas cap how many containers a tenant may hold
+ * and how many of them may wait for new instances at once. Setters return this policy so they can
+ * be chained, and a policy should not be changed once a resource manager uses it.
+ */
+public class AdmissionPolicy {
+
+    private final Map<String, Double> weights = new HashMap<String, Double>();
+    private final Map<String, Long> maxContainers = new HashMap<String, Long>();
+    private final Map<String, Long> maxPendingInstances = new HashMap<String, Long>();
+    private int smallRequestContainers = 16;
+
+    /**
+     * @param tenant the tenant, null for the default tenant.
+     * @param weight the tenant's share relative to other tenants, 1 unless set.
+     * @throws IllegalArgumentException if weight is not positive.
+     */
+    public AdmissionPolicy setWeight(String tenant, double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        }
+        weights.put(tenant, weight);
+        return this;
+    }
+
+    public double getWeight(String tenant) {
+        Double weight = weights.get(tenant);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * @param tenant the tenant, null for the default tenant.
+     * @param maxContainers the most containers the tenant may hold, waiting or placed. Requests
+     *                      that would take it over fail with a RejectedExecutionException. No
+     *                      limit unless set.
+     */
+    public AdmissionPolicy setMaxContainers(String tenant, long maxContainers) {
+        this.maxContainers.put(tenant, maxContainers);
+        return this;
+    }
+
+    public long getMaxContainers(String tenant) {
+        Long max = maxContainers.get(tenant);
+        return max == null ? Long.MAX_VALUE : max;
+    }
+
+    /**
+     * @param tenant the tenant, null for the default tenant.
+     * @param maxPendingInstances how many instances' worth of the tenant's containers may wait for
+     *                            instances to boot at once. The rest of its requests wait their
+     *                            turn. No limit unless set.
+     */
+    public AdmissionPolicy setMaxPendingInstances(String tenant, long maxPendingInstances) {
+        this.maxPendingInstances.put(tenant, maxPendingInstances);
+        return this;
+    }
+
+    public long getMaxPendingInstances(String tenant) {
+        Long max = maxPendingInstances.get(tenant);
+        return max == null ? Long.MAX_VALUE : max;
+    }
+
+    /**
+     * @param smallRequestContainers requests of up to this many containers that fit into free
+     *                               capacity skip the queue. 16 unless set.
+     */
+    public AdmissionPolicy setSmallRequestContainers(int smallRequestContainers) {
+        this.smallRequestContainers = smallRequestContainers;
+        return this;
+    }
+
+    public int getSmallRequestContainers() {
+        return smallRequestContainers;
+    }
+}
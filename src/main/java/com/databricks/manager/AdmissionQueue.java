@@ -0,0 +1,359 @@
+package com.databricks.manager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Holds placements back until they can be served without queueing behind other instance
+ * requests, and serves them in the order an AdmissionPolicy asks for. Priority classes are strict.
+ * Within a class, tenants are served by start-time fair queuing over containers: each tenant has
+ * a virtual finish time that grows by the containers it was served divided by its weight, and
+ * the tenant that would start earliest goes next. A request is served in parts of at most what
+ * can be served right away, so a large request never gets ahead of requests that arrive while it
+ * waits for instances.
+ *
+ * Only the monitor of this queue guards its state. It is never held while calling the server or
+ * an admitted callback, so those may take their own monitors and call back into the queue. The
+ * only exception is Server.future, which must return the item's future without blocking.
+ *
+ * @param <T> a container to place.
+ */
+class AdmissionQueue<T> {
+
+    /**
+     * What the queue serves placements from.
+     */
+    interface Server<T> {
+
+        /**
+         * Called while holding the queue's monitor, so it must not block.
+         */
+        CompletableFuture<ContainerId> future(T item);
+
+        /**
+         * @return default-sized containers that fit into free memory now.
+         */
+        long getFreeSlots();
+
+        /**
+         * @return default-sized containers that can be served without waiting behind other
+         *         instance requests, from free memory, unclaimed memory on pending instances and
+         *         instance requests that can start right away.
+         */
+        long getCapacitySlots();
+
+        long getSlotsPerInstance();
+
+        /**
+         * Places the items, requesting instances as needed, and calls placed for each item before
+         * completing its future.
+         *
+         * @return false if any item waits for an instance.
+         */
+        boolean serve(List<T> items);
+    }
+
+    private static final int PRIORITIES = PlacementRequest.Priority.values().length;
+
+    private final Server<T> server;
+    private final AdmissionPolicy policy;
+    private final long slotsPerInstance;
+    // Everything below is guarded by this object's monitor.
+    private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+    private double virtualTime;
+    // Only one thread dispatches at a time. Another one asking meanwhile has it go around again.
+    private boolean dispatching;
+    private boolean again;
+    // Who each placed container is held by, read without the monitor.
+    private final ConcurrentHashMap<ContainerId, Tenant> holders = new ConcurrentHashMap<ContainerId, Tenant>();
+    // Who each served item that is not placed or failed yet is for. Whoever removes it counts it.
+    private final ConcurrentHashMap<T, Tenant> serving = new ConcurrentHashMap<T, Tenant>();
+
+    private class Tenant {
+        final double weight;
+        final long maxContainers;
+        final long maxWaiting;
+        final List<ArrayDeque<Entry>> queues = new ArrayList<ArrayDeque<Entry>>(PRIORITIES);
+        double finishTime;
+        // Containers placed, served and waiting for an instance, and still in the queue.
+        long held;
+        long waiting;
+        long queued;
+
+        Tenant(String name) {
+            this.weight = policy.getWeight(name);
+            this.maxContainers = policy.getMaxContainers(name);
+            long maxPendingInstances = policy.getMaxPendingInstances(name);
+            this.maxWaiting = maxPendingInstances == Long.MAX_VALUE ? Long.MAX_VALUE :
+                maxPendingInstances * slotsPerInstance;
+            for (int p = 0; p < PRIORITIES; p++) {
+                queues.add(new ArrayDeque<Entry>());
+            }
+        }
+    }
+
+    /**
+     * A request, of which the items before next have been served.
+     */
+    private class Entry {
+        final Tenant tenant;
+        final int priority;
+        final List<T> items;
+        final Consumer<Boolean> admitted;
+        int next;
+        boolean warm = true;
+
+        Entry(Tenant tenant, int priority, List<T> items, Consumer<Boolean> admitted) {
+            this.tenant = tenant;
+            this.priority = priority;
+            this.items = items;
+            this.admitted = admitted;
+        }
+    }
+
+    AdmissionQueue(Server<T> server, AdmissionPolicy policy) {
+        this.server = server;
+        this.policy = policy;
+        this.slotsPerInstance = server.getSlotsPerInstance();
+    }
+
+    /**
+     * Serves a request now if it is small and fits into free capacity, or else once it is its
+     * turn. If it would take its tenant over its quota, its items fail right away.
+     *
+     * @param admitted told once every item has been served, whether none of them waited for an
+     *                 instance.
+     */
+    void submit(String tenantName, PlacementRequest.Priority priority, List<T> items, Consumer<Boolean> admitted) {
+        Tenant tenant;
+        boolean now;
+        long free = server.getFreeSlots();
+        synchronized (this) {
+            tenant = tenants.get(tenantName);
+            if (tenant == null) {
+                tenant = new Tenant(tenantName);
+                tenants.put(tenantName, tenant);
+            }
+            if (tenant.held + tenant.waiting + tenant.queued + items.size() > tenant.maxContainers) {
+                tenant = null;
+                now = false;
+            }
+            else {
+                now = items.size() <= policy.getSmallRequestContainers() && free >= items.size();
+                if (now) {
+                    tenant.waiting += items.size();
+                }
+                else {
+                    tenant.queued += items.size();
+                    tenant.queues.get(priority.ordinal()).add(new Entry(tenant, priority.ordinal(), items, admitted));
+                }
+            }
+        }
+        if (tenant == null) {
+            RejectedExecutionException e = new RejectedExecutionException("Tenant " + tenantName +
+                " cannot hold " + items.size() + " more containers");
+            for (T item : items) {
+                server.future(item).completeExceptionally(e);
+            }
+            return;
+        }
+        if (now) {
+            serve(tenant, items);
+            admitted.accept(server.serve(items));
+            return;
+        }
+        dispatch();
+    }
+
+    /**
+     * Counts a served item as held by its tenant. The server calls this before it completes the
+     * item's future, so that a caller who unplaces the container as soon as it sees it always
+     * finds it held.
+     */
+    void placed(T item, ContainerId containerId) {
+        Tenant tenant = serving.remove(item);
+        if (tenant != null) {
+            holders.put(containerId, tenant);
+            synchronized (this) {
+                tenant.waiting--;
+                tenant.held++;
+            }
+        }
+    }
+
+    /**
+     * Forgets a container that was unplaced, which makes room in its tenant's quota.
+     */
+    void unplaced(ContainerId containerId) {
+        if (released(containerId)) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Like unplaced, but leaves serving what the room lets through to the next dispatch.
+     *
+     * @return true if the container took up room in a quota.
+     */
+    boolean released(ContainerId containerId) {
+        Tenant tenant = holders.remove(containerId);
+        if (tenant == null) {
+            return false;
+        }
+        synchronized (this) {
+            tenant.held--;
+        }
+        return true;
+    }
+
+    /**
+     * Serves what is waiting while there is capacity for it. Called whenever capacity may have
+     * come up.
+     */
+    void dispatch() {
+        synchronized (this) {
+            if (dispatching) {
+                again = true;
+                return;
+            }
+            dispatching = true;
+            again = false;
+        }
+        while (true) {
+            long capacity = server.getCapacitySlots();
+            long free = server.getFreeSlots();
+            Entry entry = null;
+            List<T> part = null;
+            boolean last = false;
+            boolean done = false;
+            //requests whose remaining items were cancelled, told outside the monitor
+            List<Entry> cancelled = new ArrayList<Entry>();
+            synchronized (this) {
+                if (capacity > 0) {
+                    entry = next(capacity, free, cancelled);
+                }
+                if (entry == null) {
+                    done = !again;
+                    dispatching = !done;
+                    again = false;
+                }
+                else {
+                    Tenant tenant = entry.tenant;
+                    int n = (int) Math.min(entry.items.size() - entry.next, Math.min(capacity, allowance(tenant, free)));
+                    part = new ArrayList<T>(entry.items.subList(entry.next, entry.next + n));
+                    entry.next += n;
+                    double start = Math.max(virtualTime, tenant.finishTime);
+                    virtualTime = start;
+                    tenant.finishTime = start + n / tenant.weight;
+                    tenant.queued -= n;
+                    tenant.waiting += n;
+                    last = entry.next == entry.items.size();
+                    if (last) {
+                        tenant.queues.get(entry.priority).poll();
+                    }
+                }
+            }
+            for (Entry c : cancelled) {
+                c.admitted.accept(c.warm);
+            }
+            if (done) {
+                return;
+            }
+            if (entry == null) {
+                continue;
+            }
+            serve(entry.tenant, part);
+            entry.warm &= server.serve(part);
+            if (last) {
+                entry.admitted.accept(entry.warm);
+            }
+        }
+    }
+
+    // Picks the request to serve next from the highest priority class that has one its tenant
+    // may be served for, the one whose tenant would start earliest. Requests found to be done
+    // meanwhile are added to finished. Must be called while holding this object's monitor.
+    private Entry next(long capacity, long free, List<Entry> finished) {
+        for (int p = 0; p < PRIORITIES; p++) {
+            Entry best = null;
+            double bestStart = 0;
+            for (Tenant tenant : tenants.values()) {
+                Entry head = head(tenant, p, finished);
+                if (head == null || allowance(tenant, free) == 0) {
+                    continue;
+                }
+                double start = Math.max(virtualTime, tenant.finishTime);
+                if (best == null || start < bestStart) {
+                    best = head;
+                    bestStart = start;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    // How many containers a tenant may be served now, those that fit into free memory and as
+    // many more as it may have waiting for instances. Must be called while holding this object's
+    // monitor.
+    private long allowance(Tenant tenant, long free) {
+        if (tenant.maxWaiting == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return free + Math.max(0, tenant.maxWaiting - tenant.waiting);
+    }
+
+    // The first request of a tenant in a priority class, dropping the items that were cancelled
+    // while they waited and adding requests with none left to finished. Must be called while
+    // holding this object's monitor.
+    private Entry head(Tenant tenant, int priority, List<Entry> finished) {
+        ArrayDeque<Entry> queue = tenant.queues.get(priority);
+        while (!queue.isEmpty()) {
+            Entry head = queue.peek();
+            while (head.next < head.items.size() && server.future(head.items.get(head.next)).isDone()) {
+                head.next++;
+                tenant.queued--;
+            }
+            if (head.next < head.items.size()) {
+                return head;
+            }
+            queue.poll();
+            finished.add(head);
+        }
+        return null;
+    }
+
+    // Keeps count of the items of a tenant that are waiting for an instance and placed.
+    private void serve(final Tenant tenant, List<T> items) {
+        for (final T item : items) {
+            serving.put(item, tenant);
+            server.future(item).whenComplete(new BiConsumer<ContainerId, Throwable>() {
+                public void accept(ContainerId containerId, Throwable failure) {
+                    //placed already counted it unless it failed or was cancelled
+                    if (serving.remove(item) != null) {
+                        if (failure == null) {
+                            holders.put(containerId, tenant);
+                        }
+                        synchronized (AdmissionQueue.this) {
+                            tenant.waiting--;
+                            if (failure == null) {
+                                tenant.held++;
+                            }
+                        }
+                    }
+                    dispatch();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.databricks.manager;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking variant of the resource manager. None of these methods wait for instances to be
+ * requested from the cloud provider; the returned futures complete once they have been. The
+ * blocking methods inherited from ResourceManager behave as if they waited on these futures.
+ */
+public interface AsyncResourceManager extends ResourceManager {
+
+    /**
+     * Places numContainers containers onto instances, requesting more instances from the cloud
+     * provider if needed. The returned future completes once all containers have been placed. If
+     * any of them cannot be placed, it completes exceptionally and the containers that were
+     * placed for it are unplaced again. Cancelling it gives back everything it holds. The
+     * implementation of this method must be thread-safe.
+     *
+     * @param numContainers number of containers to place.
+     * @return a future for the list of containerIds which are IDs that are globally unique across
+     *         all instances.
+     */
+    CompletableFuture<List<ContainerId>> placeContainersAsync(int numContainers);
+
+    /**
+     * Same as placeContainersAsync(int), for a request whose containers may have different sizes.
+     *
+     * @param request the containers to place.
+     * @return a future for the list of containerIds in the order the containers were added to the
+     *         request.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    CompletableFuture<List<ContainerId>> placeContainersAsync(PlacementRequest request);
+
+    /**
+     * Places the containers of a request, settling for fewer of them if the request allows it.
+     * The returned future completes once all containers have been placed, or once the request's
+     * deadline has passed with at least its minimum number of containers placed. Containers
+     * still pending then keep waiting for their instance, see PlacementResult. If the minimum
+     * cannot be reached, because too many containers failed or not enough were placed by the
+     * deadline, the future completes exceptionally, with a TimeoutException in the latter case,
+     * and the containers that were placed for it are unplaced again. Cancelling it gives back
+     * everything it holds. The implementation of this method must be thread-safe.
+     *
+     * @param request the containers to place, with an optional deadline and minimum.
+     * @return a future for what was placed and what is still pending.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    CompletableFuture<PlacementResult> placeContainersPartiallyAsync(PlacementRequest request);
+
+    /**
+     * Places numContainers containers onto instances, one future per container. Each future
+     * completes as soon as the instance hosting its container is available, so containers on
+     * existing instances are returned right away while the rest wait for the cloud provider.
+     * Cancelling a future that has not completed yet gives back the memory held for its
+     * container. The implementation of this method must be thread-safe.
+     *
+     * @param numContainers number of containers to place.
+     * @return one future per container, each completing with its globally unique containerId.
+     */
+    List<CompletableFuture<ContainerId>> placeContainersIncrementally(int numContainers);
+
+    /**
+     * Same as placeContainersIncrementally(int), for a request whose containers may have different
+     * sizes.
+     *
+     * @param request the containers to place.
+     * @return one future per container, in the order the containers were added to the request.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    List<CompletableFuture<ContainerId>> placeContainersIncrementally(PlacementRequest request);
+
+    /**
+     * Unplace a container from its host instance. The implementation of this method must be
+     * thread-safe.
+     *
+     * @param containerId the container id.
+     * @return a future that completes once the container is unplaced, or completes exceptionally
+     *         with an IllegalArgumentException if this container does not exist (i.e., is not
+     *         placed on an instance).
+     */
+    CompletableFuture<Void> unplaceContainerAsync(ContainerId containerId);
+
+    /**
+     * Unplaces many containers at once, such as all containers of a cluster that is shut down.
+     * Containers that do not exist are reported rather than failing the others. The
+     * implementation of this method must be thread-safe.
+     *
+     * @param containerIds the container ids.
+     * @return what happened to each container, in the order they were given.
+     */
+    Map<ContainerId, UnplaceResult> unplaceContainers(Collection<ContainerId> containerIds);
+
+    /**
+     * Get the instances that the containers of a locality group are placed on, see
+     * PlacementRequest.setGroup. The implementation of this method must be thread-safe.
+     *
+     * @param group the locality group.
+     * @return the instances, which is empty if the group has no containers.
+     */
+    Set<Instance> getInstances(String group);
+}
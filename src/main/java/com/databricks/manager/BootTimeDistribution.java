@@ -0,0 +1,56 @@
+package com.databricks.manager;
+
+import java.util.Random;
+
+/**
+ * How long the cloud provider takes to hand out an instance in a simulation, see Simulator.
+ */
+public interface BootTimeDistribution {
+
+    /**
+     * @param random the simulation's source of randomness, so that runs with the same seed
+     *               boot their instances in the same times.
+     * @return the time one instance takes to boot in milliseconds.
+     */
+    long sampleMillis(Random random);
+
+    /**
+     * @return every instance takes exactly millis to boot.
+     */
+    static BootTimeDistribution constant(final long millis) {
+        return new BootTimeDistribution() {
+            public long sampleMillis(Random random) {
+                return millis;
+            }
+        };
+    }
+
+    /**
+     * @return instances take between minMillis and maxMillis to boot, any time as likely as any
+     *         other.
+     */
+    static BootTimeDistribution uniform(final long minMillis, final long maxMillis) {
+        if (maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid boot times: " + minMillis + " to " + maxMillis + " ms");
+        }
+        return new BootTimeDistribution() {
+            public long sampleMillis(Random random) {
+                return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis + 1));
+            }
+        };
+    }
+
+    /**
+     * @param medianMillis half of all instances boot faster than this.
+     * @param sigma the standard deviation of the log of the boot time. Around 0.3 to 0.5 matches
+     *              cloud providers that usually take a few minutes but sometimes many more.
+     * @return boot times with a long tail, as cloud providers have.
+     */
+    static BootTimeDistribution logNormal(final long medianMillis, final double sigma) {
+        return new BootTimeDistribution() {
+            public long sampleMillis(Random random) {
+                return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+        };
+    }
+}
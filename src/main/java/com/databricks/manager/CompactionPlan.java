@@ -0,0 +1,90 @@
+package com.databricks.manager;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Containers to move so that the fleet fits on fewer instances, as worked out by
+ * CompactionPlanner. The resource manager cannot move a container itself, so carrying out a
+ * migration is up to whoever runs it: place a new container on the target, move the work over and
+ * unplace the old one. Meanwhile the resource manager keeps new placements off the instances the
+ * plan drains.
+ */
+public class CompactionPlan {
+
+    /**
+     * A single container to move.
+     */
+    public static class Migration {
+        private final ContainerId containerId;
+        private final Instance from;
+        private final Instance to;
+        private final double sizeGB;
+
+        Migration(ContainerId containerId, Instance from, Instance to, double sizeGB) {
+            this.containerId = containerId;
+            this.from = from;
+            this.to = to;
+            this.sizeGB = sizeGB;
+        }
+
+        public ContainerId getContainerId() {
+            return containerId;
+        }
+
+        public Instance getFrom() {
+            return from;
+        }
+
+        public Instance getTo() {
+            return to;
+        }
+
+        public double getSizeGB() {
+            return sizeGB;
+        }
+
+        @Override
+        public String toString() {
+            return containerId + " (" + sizeGB + " GB) " + from + " -> " + to;
+        }
+    }
+
+    private final List<Migration> migrations;
+    private final List<Instance> drainedInstances;
+    private final double strandedMemoryFraction;
+
+    CompactionPlan(List<Migration> migrations, List<Instance> drainedInstances, double strandedMemoryFraction) {
+        this.migrations = Collections.unmodifiableList(migrations);
+        this.drainedInstances = Collections.unmodifiableList(drainedInstances);
+        this.strandedMemoryFraction = strandedMemoryFraction;
+    }
+
+    /**
+     * @return the containers to move, grouped by the instance they leave.
+     */
+    public List<Migration> getMigrations() {
+        return migrations;
+    }
+
+    /**
+     * @return the instances that are empty once every migration is done, least used first.
+     */
+    public List<Instance> getDrainedInstances() {
+        return drainedInstances;
+    }
+
+    /**
+     * @return the fraction of fleet memory that was stranded when the plan was made, see
+     *         ResourceManagerImpl.getStrandedMemoryFraction.
+     */
+    public double getStrandedMemoryFraction() {
+        return strandedMemoryFraction;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactionPlan{migrations=" + migrations.size() + ", drained=" + drainedInstances.size() +
+            ", stranded=" + strandedMemoryFraction + "}";
+    }
+}
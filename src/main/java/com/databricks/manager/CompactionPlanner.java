@@ -0,0 +1,143 @@
+package com.databricks.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Works out how to pack the containers of a fleet onto fewer instances. Instances are drained
+ * least used first: all containers of an instance are moved, largest first, to the partly used
+ * instance with the least free memory that holds each of them, and the instance counts as drained
+ * if every one of them found a place. Instances that receive containers are never drained
+ * themselves, and empty instances never receive any, so following the plan cannot make the fleet
+ * larger. Containers placed before the resource manager started have no known size, so their
+ * instances are never drained. Not thread-safe, each plan is made by a planner of its own.
+ */
+class CompactionPlanner {
+
+    private final long instanceSizeMB;
+    // Free memory of the instances containers may move to.
+    private final TreeMap<Long, LinkedHashSet<Instance>> targets = new TreeMap<Long, LinkedHashSet<Instance>>();
+    private final Set<Instance> received = new HashSet<Instance>();
+
+    /**
+     * @param instanceSizeMB the size of every instance.
+     */
+    CompactionPlanner(long instanceSizeMB) {
+        this.instanceSizeMB = instanceSizeMB;
+    }
+
+    /**
+     * @param unreservedMB memory on each instance that is not reserved by a placement.
+     * @param containers the size of each container on each instance, NaN if it is not known.
+     * @param strandedMemoryFraction recorded in the plan.
+     */
+    CompactionPlan plan(final Map<Instance, Long> unreservedMB, Map<Instance, Map<ContainerId, Double>> containers,
+                        double strandedMemoryFraction) {
+        List<Instance> sources = new ArrayList<Instance>();
+        for (Map.Entry<Instance, Long> i : unreservedMB.entrySet()) {
+            Map<ContainerId, Double> onInstance = containers.get(i.getKey());
+            if (onInstance != null && !onInstance.isEmpty() && i.getValue() < instanceSizeMB) {
+                sources.add(i.getKey());
+                if (i.getValue() > 0) {
+                    addTarget(i.getKey(), i.getValue());
+                }
+            }
+        }
+        //least used first, those are the cheapest to empty
+        Collections.sort(sources, new Comparator<Instance>() {
+            public int compare(Instance a, Instance b) {
+                return Long.compare(unreservedMB.get(b), unreservedMB.get(a));
+            }
+        });
+
+        List<CompactionPlan.Migration> migrations = new ArrayList<CompactionPlan.Migration>();
+        List<Instance> drained = new ArrayList<Instance>();
+        for (Instance source : sources) {
+            if (received.contains(source)) {
+                continue;
+            }
+            List<CompactionPlan.Migration> moves = drain(source, unreservedMB.get(source), containers.get(source));
+            if (moves != null) {
+                migrations.addAll(moves);
+                drained.add(source);
+            }
+        }
+        return new CompactionPlan(migrations, drained, strandedMemoryFraction);
+    }
+
+    // Moves every container off source, or none of them if one does not fit anywhere else.
+    private List<CompactionPlan.Migration> drain(Instance source, long freeMB, Map<ContainerId, Double> containers) {
+        List<Map.Entry<ContainerId, Double>> largestFirst = new ArrayList<Map.Entry<ContainerId, Double>>(containers.entrySet());
+        for (Map.Entry<ContainerId, Double> c : largestFirst) {
+            if (Double.isNaN(c.getValue())) {
+                return null;
+            }
+        }
+        Collections.sort(largestFirst, new Comparator<Map.Entry<ContainerId, Double>>() {
+            public int compare(Map.Entry<ContainerId, Double> a, Map.Entry<ContainerId, Double> b) {
+                return Double.compare(b.getValue(), a.getValue());
+            }
+        });
+
+        if (freeMB > 0) {
+            removeTarget(source, freeMB);
+        }
+        List<CompactionPlan.Migration> moves = new ArrayList<CompactionPlan.Migration>();
+        List<Long> targetFreeMB = new ArrayList<Long>();
+        for (Map.Entry<ContainerId, Double> c : largestFirst) {
+            long sizeMB = MemoryMB.ofContainer(c.getValue());
+            Map.Entry<Long, LinkedHashSet<Instance>> fit = targets.ceilingEntry(sizeMB);
+            if (fit == null) {
+                //put everything back the way it was
+                for (int x = moves.size() - 1; x >= 0; x--) {
+                    Instance to = moves.get(x).getTo();
+                    long before = targetFreeMB.get(x);
+                    long after = before - MemoryMB.ofContainer(moves.get(x).getSizeGB());
+                    if (after > 0) {
+                        removeTarget(to, after);
+                    }
+                    addTarget(to, before);
+                }
+                if (freeMB > 0) {
+                    addTarget(source, freeMB);
+                }
+                return null;
+            }
+            Instance to = fit.getValue().iterator().next();
+            long before = fit.getKey();
+            removeTarget(to, before);
+            if (before - sizeMB > 0) {
+                addTarget(to, before - sizeMB);
+            }
+            moves.add(new CompactionPlan.Migration(c.getKey(), source, to, c.getValue()));
+            targetFreeMB.add(before);
+        }
+        for (CompactionPlan.Migration m : moves) {
+            received.add(m.getTo());
+        }
+        return moves;
+    }
+
+    private void addTarget(Instance i, long freeMB) {
+        LinkedHashSet<Instance> instances = targets.get(freeMB);
+        if (instances == null) {
+            instances = new LinkedHashSet<Instance>();
+            targets.put(freeMB, instances);
+        }
+        instances.add(i);
+    }
+
+    private void removeTarget(Instance i, long freeMB) {
+        LinkedHashSet<Instance> instances = targets.get(freeMB);
+        if (instances != null && instances.remove(i) && instances.isEmpty()) {
+            targets.remove(freeMB);
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package com.databricks.manager;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Maps every placed container to the instance hosting it. Lookups never take a lock unless they
+ * race an update of the same segment, so they scale with the number of reading threads while
+ * placements and unplacements update the index concurrently. All methods are thread-safe.
+ *
+ * Container ids of the form instanceId-sequence are kept as two longs in open-addressing tables
+ * with linear probing, split into segments that each have a lock of their own. Removal shifts the
+ * following entries back instead of leaving tombstones, so a table only ever holds live
+ * containers. A table does not keep ContainerId objects alive, and the containers of one
+ * placement call share a single Placement. The tables can live off the heap, in which case a live
+ * container costs no heap at all, see getHeapBytes. Any other container id is kept in a
+ * ConcurrentHashMap.
+ */
+class ContainerIndex {
+
+    private static final int SEGMENT_BITS = 6;
+
+    private final Segment[] segments;
+    private final boolean offHeap;
+    // Ids that are not of the form instanceId-sequence, so cannot be kept as numbers.
+    private final ConcurrentHashMap<ContainerId, Placement> others = new ConcurrentHashMap<ContainerId, Placement>();
+
+    ContainerIndex() {
+        this(false);
+    }
+
+    /**
+     * @param offHeap whether to keep the tables in direct buffers instead of on the heap.
+     */
+    ContainerIndex(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.segments = new Segment[1 << SEGMENT_BITS];
+        for (int x = 0; x < segments.length; x++) {
+            segments[x] = new Segment(offHeap);
+        }
+    }
+
+    /**
+     * @return the instance hosting the container, or null if it is not placed.
+     */
+    Instance get(ContainerId containerId) {
+        Placement placement = getPlacement(containerId);
+        return placement == null ? null : placement.getInstance();
+    }
+
+    /**
+     * @return where the container is placed, or null if it is not placed.
+     */
+    Placement getPlacement(ContainerId containerId) {
+        long instanceNumber = containerId.getInstanceNumber();
+        if (instanceNumber < 0) {
+            return others.get(containerId);
+        }
+        int hash = mix(containerId.hashCode());
+        return segmentFor(hash).get(instanceNumber + 1, containerId.getSequenceNumber(), hash);
+    }
+
+    void put(ContainerId containerId, Placement placement) {
+        long instanceNumber = containerId.getInstanceNumber();
+        if (instanceNumber < 0) {
+            others.put(containerId, placement);
+            return;
+        }
+        int hash = mix(containerId.hashCode());
+        segmentFor(hash).put(instanceNumber + 1, containerId.getSequenceNumber(), hash, placement);
+    }
+
+    /**
+     * Removes a container from the index. When several threads remove the same container at
+     * once, exactly one of them gets its placement back.
+     *
+     * @return where the container was placed, or null if it was not placed.
+     */
+    Placement remove(ContainerId containerId) {
+        long instanceNumber = containerId.getInstanceNumber();
+        if (instanceNumber < 0) {
+            return others.remove(containerId);
+        }
+        int hash = mix(containerId.hashCode());
+        return segmentFor(hash).remove(instanceNumber + 1, containerId.getSequenceNumber(), hash, null);
+    }
+
+    /**
+     * Removes a container from the index if it is still placed where placement says.
+     *
+     * @return true if it was removed.
+     */
+    boolean remove(ContainerId containerId, Placement placement) {
+        long instanceNumber = containerId.getInstanceNumber();
+        if (instanceNumber < 0) {
+            return others.remove(containerId, placement);
+        }
+        int hash = mix(containerId.hashCode());
+        return segmentFor(hash).remove(instanceNumber + 1, containerId.getSequenceNumber(), hash, placement) != null;
+    }
+
+    /**
+     * @return the containers on each instance. Concurrent updates may or may not be included.
+     */
+    Map<Instance, Set<ContainerId>> byInstance() {
+        final Map<Instance, Set<ContainerId>> containers = new HashMap<Instance, Set<ContainerId>>();
+        forEach(new BiConsumer<ContainerId, Placement>() {
+            public void accept(ContainerId containerId, Placement placement) {
+                Set<ContainerId> onInstance = containers.get(placement.getInstance());
+                if (onInstance == null) {
+                    onInstance = new HashSet<ContainerId>();
+                    containers.put(placement.getInstance(), onInstance);
+                }
+                onInstance.add(containerId);
+            }
+        });
+        return containers;
+    }
+
+    /**
+     * @return the size of each container on each instance, NaN if it is not known. Concurrent
+     *         updates may or may not be included.
+     */
+    Map<Instance, Map<ContainerId, Double>> sizesByInstance() {
+        final Map<Instance, Map<ContainerId, Double>> containers = new HashMap<Instance, Map<ContainerId, Double>>();
+        forEach(new BiConsumer<ContainerId, Placement>() {
+            public void accept(ContainerId containerId, Placement placement) {
+                Map<ContainerId, Double> onInstance = containers.get(placement.getInstance());
+                if (onInstance == null) {
+                    onInstance = new HashMap<ContainerId, Double>();
+                    containers.put(placement.getInstance(), onInstance);
+                }
+                onInstance.put(containerId, placement.getSizeGB());
+            }
+        });
+        return containers;
+    }
+
+    int size() {
+        int size = others.size();
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return an estimate of the heap the index takes up, assuming compressed references. With
+     *         the tables off the heap, this is about the shared placements and the containers
+     *         whose ids are not numbers.
+     */
+    long getHeapBytes() {
+        //a map node, a ContainerId and a table slot each
+        long bytes = others.size() * 80L;
+        for (Segment segment : segments) {
+            bytes += segment.getHeapBytes();
+        }
+        return bytes;
+    }
+
+    // Visits every container, one segment at a time.
+    private void forEach(BiConsumer<ContainerId, Placement> visitor) {
+        for (Segment segment : segments) {
+            segment.forEach(visitor);
+        }
+        for (Map.Entry<ContainerId, Placement> p : others.entrySet()) {
+            visitor.accept(p.getKey(), p.getValue());
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> (32 - SEGMENT_BITS)];
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * An open-addressing table. Its arrays are only swapped as a whole, so a lookup without the
+     * lock never reads past their end.
+     */
+    private static class Table {
+        // Two longs per slot, instanceId + 1 and sequence. 0 marks an empty slot.
+        final LongBuffer keys;
+        // The placement id of each slot.
+        final IntBuffer values;
+        // The number of slots - 1, which is a power of two.
+        final int mask;
+
+        Table(int capacity, boolean offHeap) {
+            if (offHeap) {
+                this.keys = ByteBuffer.allocateDirect(capacity * 16).order(ByteOrder.nativeOrder()).asLongBuffer();
+                this.values = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+            else {
+                this.keys = LongBuffer.allocate(capacity * 2);
+                this.values = IntBuffer.allocate(capacity);
+            }
+            this.mask = capacity - 1;
+        }
+
+        // Returns the slot holding the key, or the empty slot where it would go.
+        int find(long instanceKey, long sequence, int hash) {
+            int slot = hash & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                long key = keys.get(2 * slot);
+                if (key == 0 || (key == instanceKey && keys.get(2 * slot + 1) == sequence)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            //only a table that changes while we probe it has no empty slot
+            return -1;
+        }
+    }
+
+    /**
+     * A part of the index with a lock of its own. Writers take the write lock, readers try
+     * without a lock first and only take the read lock if a writer got in their way.
+     */
+    private static class Segment {
+
+        private final StampedLock lock = new StampedLock();
+        private final boolean offHeap;
+        private Table table;
+        private int size;
+        // Placements by id. The containers of a placement call share one Placement, and so one
+        // id, which is reused once none of them is left.
+        private Placement[] placements = new Placement[4];
+        private int[] references = new int[4];
+        private final IdentityHashMap<Placement, Integer> ids = new IdentityHashMap<Placement, Integer>();
+        private int[] freeIds = new int[4];
+        private int numFreeIds;
+        private int nextId;
+
+        Segment(boolean offHeap) {
+            this.offHeap = offHeap;
+            this.table = new Table(16, offHeap);
+        }
+
+        Placement get(long instanceKey, long sequence, int hash) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                Placement placement = find(instanceKey, sequence, hash);
+                if (lock.validate(stamp)) {
+                    return placement;
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return find(instanceKey, sequence, hash);
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Must not throw whatever a concurrent writer does, the caller validates the result.
+        private Placement find(long instanceKey, long sequence, int hash) {
+            Table t = table;
+            Placement[] byId = placements;
+            int slot = t.find(instanceKey, sequence, hash);
+            if (slot < 0 || t.keys.get(2 * slot) == 0) {
+                return null;
+            }
+            int id = t.values.get(slot);
+            return id >= 0 && id < byId.length ? byId[id] : null;
+        }
+
+        void put(long instanceKey, long sequence, int hash, Placement placement) {
+            long stamp = lock.writeLock();
+            try {
+                int slot = table.find(instanceKey, sequence, hash);
+                if (table.keys.get(2 * slot) == 0) {
+                    if (4 * (size + 1) > 3 * (table.mask + 1)) {
+                        grow();
+                        slot = table.find(instanceKey, sequence, hash);
+                    }
+                    table.keys.put(2 * slot, instanceKey);
+                    table.keys.put(2 * slot + 1, sequence);
+                    size++;
+                }
+                else {
+                    release(table.values.get(slot));
+                }
+                table.values.put(slot, intern(placement));
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * @param expected if not null, only remove the key if it is placed there.
+         * @return the placement that was removed, or null if none was.
+         */
+        Placement remove(long instanceKey, long sequence, int hash, Placement expected) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int hole = t.find(instanceKey, sequence, hash);
+                if (t.keys.get(2 * hole) == 0) {
+                    return null;
+                }
+                int id = t.values.get(hole);
+                Placement placement = placements[id];
+                if (expected != null && placement != expected) {
+                    return null;
+                }
+                //move back every entry after the hole that would not be found past it otherwise
+                int next = hole;
+                while (true) {
+                    next = (next + 1) & t.mask;
+                    long key = t.keys.get(2 * next);
+                    if (key == 0) {
+                        break;
+                    }
+                    int home = mix(ContainerId.hash(key - 1, t.keys.get(2 * next + 1))) & t.mask;
+                    boolean reachable = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+                    if (!reachable) {
+                        t.keys.put(2 * hole, key);
+                        t.keys.put(2 * hole + 1, t.keys.get(2 * next + 1));
+                        t.values.put(hole, t.values.get(next));
+                        hole = next;
+                    }
+                }
+                t.keys.put(2 * hole, 0);
+                t.keys.put(2 * hole + 1, 0);
+                size--;
+                release(id);
+                return placement;
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        long getHeapBytes() {
+            long stamp = lock.readLock();
+            try {
+                long bytes = offHeap ? 0 : (table.mask + 1) * 20L;
+                //the arrays by id, and a Placement and two identity map slots per placement
+                bytes += placements.length * 12L + freeIds.length * 4L + ids.size() * 48L;
+                return bytes;
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void forEach(BiConsumer<ContainerId, Placement> visitor) {
+            long stamp = lock.readLock();
+            try {
+                Table t = table;
+                for (int slot = 0; slot <= t.mask; slot++) {
+                    long key = t.keys.get(2 * slot);
+                    if (key != 0) {
+                        visitor.accept(ContainerId.of(key - 1, t.keys.get(2 * slot + 1)), placements[t.values.get(slot)]);
+                    }
+                }
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Must be called while holding the write lock.
+        private void grow() {
+            Table old = table;
+            Table grown = new Table(2 * (old.mask + 1), offHeap);
+            for (int slot = 0; slot <= old.mask; slot++) {
+                long key = old.keys.get(2 * slot);
+                if (key != 0) {
+                    long sequence = old.keys.get(2 * slot + 1);
+                    int to = grown.find(key, sequence, mix(ContainerId.hash(key - 1, sequence)));
+                    grown.keys.put(2 * to, key);
+                    grown.keys.put(2 * to + 1, sequence);
+                    grown.values.put(to, old.values.get(slot));
+                }
+            }
+            table = grown;
+        }
+
+        // Must be called while holding the write lock.
+        private int intern(Placement placement) {
+            Integer known = ids.get(placement);
+            int id;
+            if (known != null) {
+                id = known;
+            }
+            else {
+                if (numFreeIds > 0) {
+                    id = freeIds[--numFreeIds];
+                }
+                else {
+                    id = nextId++;
+                    if (id == placements.length) {
+                        //readers without the lock keep the old arrays, which hold the same ids
+                        Placement[] more = new Placement[2 * id];
+                        System.arraycopy(placements, 0, more, 0, id);
+                        int[] moreReferences = new int[2 * id];
+                        System.arraycopy(references, 0, moreReferences, 0, id);
+                        placements = more;
+                        references = moreReferences;
+                    }
+                }
+                placements[id] = placement;
+                ids.put(placement, id);
+            }
+            references[id]++;
+            return id;
+        }
+
+        // Must be called while holding the write lock.
+        private void release(int id) {
+            if (--references[id] == 0) {
+                ids.remove(placements[id]);
+                placements[id] = null;
+                if (numFreeIds == freeIds.length) {
+                    int[] more = new int[2 * freeIds.length];
+                    System.arraycopy(freeIds, 0, more, 0, numFreeIds);
+                    freeIds = more;
+                }
+                freeIds[numFreeIds++] = id;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.databricks.manager;
+
+/**
+ * Maps container ids to non-negative ints with open addressing and linear probing. Removal
+ * shifts the following entries back instead of leaving tombstones, so lookups stay short no
+ * matter how many containers come and go, and neither lookups, updates nor removals allocate.
+ * Not thread-safe.
+ */
+class ContainerTable {
+
+    private static final int ABSENT = -1;
+
+    private ContainerId[] keys;
+    private int[] values;
+    private int size;
+    // keys.length - 1, keys.length is a power of two.
+    private int mask;
+
+    ContainerTable() {
+        this(8);
+    }
+
+    /**
+     * @param expectedSize number of entries the table can hold before it grows.
+     */
+    ContainerTable(int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        this.keys = new ContainerId[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of containerId, or -1 if it is not in the table.
+     */
+    int get(ContainerId containerId) {
+        int slot = find(containerId);
+        return keys[slot] == null ? ABSENT : values[slot];
+    }
+
+    /**
+     * Adds containerId, or changes its value if it is in the table already.
+     */
+    void put(ContainerId containerId, int value) {
+        int slot = find(containerId);
+        if (keys[slot] == null) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                slot = find(containerId);
+            }
+            keys[slot] = containerId;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * @return the value containerId had, or -1 if it was not in the table.
+     */
+    int remove(ContainerId containerId) {
+        int hole = find(containerId);
+        if (keys[hole] == null) {
+            return ABSENT;
+        }
+        int value = values[hole];
+        //move back every entry after the hole that would not be found past it otherwise
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            ContainerId key = keys[next];
+            if (key == null) {
+                break;
+            }
+            int home = home(key);
+            boolean reachable = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!reachable) {
+                keys[hole] = key;
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = null;
+        size--;
+        return value;
+    }
+
+    // Returns the slot holding containerId, or the empty slot where it would go.
+    private int find(ContainerId containerId) {
+        int slot = home(containerId);
+        while (keys[slot] != null && !keys[slot].equals(containerId)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int home(ContainerId containerId) {
+        int h = containerId.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void grow() {
+        ContainerId[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new ContainerId[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int x = 0; x < oldKeys.length; x++) {
+            if (oldKeys[x] != null) {
+                int slot = find(oldKeys[x]);
+                keys[slot] = oldKeys[x];
+                values[slot] = oldValues[x];
+            }
+        }
+    }
+}
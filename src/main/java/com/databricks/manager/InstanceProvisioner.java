@@ -0,0 +1,265 @@
+package com.databricks.manager;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests instances from the cloud provider on a bounded pool of long-lived threads. Up to
+ * maxQueuedRequests requests wait for their turn, and anything beyond that is rejected so that a
+ * burst of placements cannot pile up threads or memory. Idle threads exit after a minute.
+ *
+ * How many calls to CloudProvider.requestInstance run at once adapts to how the cloud provider
+ * copes, like TCP congestion control. The limit starts at initialConcurrentRequests and grows by
+ * one per successful request until the first failure, which doubles it every round trip. After
+ * that, each failure halves it and each round trip of successes adds one, additive increase and
+ * multiplicative decrease, so a throttling provider is backed off from quickly and probed again
+ * slowly. The limit never exceeds maxConcurrentRequests or drops below one.
+ */
+public class InstanceProvisioner {
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final CloudProvider provider;
+    private final ExecutorService executor;
+    private final int maxConcurrentRequests;
+    private final int maxQueuedRequests;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    // Everything below is guarded by this object's monitor.
+    private final ArrayDeque<CompletableFuture<Instance>> waiting = new ArrayDeque<CompletableFuture<Instance>>();
+    private int inFlight;
+    private double limit;
+    // The limit grows by one per success below this, by one per round trip above it.
+    private double slowStartThreshold;
+    private boolean shutdown;
+
+    /**
+     * @param provider the cloud provider that we request instances from.
+     * @param maxConcurrentRequests maximum number of instance requests in flight at once.
+     * @param maxQueuedRequests maximum number of instance requests waiting for a thread.
+     * @param threadFactory creates the threads that call the cloud provider. On JDKs with
+     *                      virtual threads this can be a virtual thread factory.
+     */
+    public InstanceProvisioner(CloudProvider provider, int maxConcurrentRequests, int maxQueuedRequests,
+                               ThreadFactory threadFactory) {
+        this(provider, maxConcurrentRequests, maxConcurrentRequests, maxQueuedRequests, threadFactory);
+    }
+
+    /**
+     * @param provider the cloud provider that we request instances from.
+     * @param initialConcurrentRequests number of instance requests in flight at once to start
+     *                                  out with.
+     * @param maxConcurrentRequests maximum number of instance requests in flight at once.
+     * @param maxQueuedRequests maximum number of instance requests waiting for a thread.
+     * @param threadFactory creates the threads that call the cloud provider. On JDKs with
+     *                      virtual threads this can be a virtual thread factory.
+     */
+    public InstanceProvisioner(CloudProvider provider, int initialConcurrentRequests, int maxConcurrentRequests,
+                               int maxQueuedRequests, ThreadFactory threadFactory) {
+        this(provider, initialConcurrentRequests, maxConcurrentRequests, maxQueuedRequests,
+            newExecutor(maxConcurrentRequests, threadFactory));
+    }
+
+    /**
+     * @param provider the cloud provider that we request instances from.
+     * @param initialConcurrentRequests number of instance requests in flight at once to start
+     *                                  out with.
+     * @param maxConcurrentRequests maximum number of instance requests in flight at once.
+     * @param maxQueuedRequests maximum number of instance requests waiting for a thread.
+     * @param executor runs the calls to the cloud provider, never more of them at once than the
+     *                 concurrency limit. It is shut down with the provisioner.
+     */
+    public InstanceProvisioner(CloudProvider provider, int initialConcurrentRequests, int maxConcurrentRequests,
+                               int maxQueuedRequests, ExecutorService executor) {
+        if (maxConcurrentRequests <= 0 || maxQueuedRequests < 0 || initialConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("Invalid provisioning limits: " + maxConcurrentRequests +
+                " concurrent, " + maxQueuedRequests + " queued");
+        }
+        this.provider = provider;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxQueuedRequests = maxQueuedRequests;
+        this.limit = Math.min(initialConcurrentRequests, maxConcurrentRequests);
+        this.slowStartThreshold = maxConcurrentRequests;
+        this.executor = executor;
+    }
+
+    // The provisioner a config asks for.
+    static InstanceProvisioner create(CloudProvider provider, ResourceManagerConfig config) {
+        if (config.getProvisioningExecutor() != null) {
+            return new InstanceProvisioner(provider, config.getInitialConcurrentInstanceRequests(),
+                config.getMaxConcurrentInstanceRequests(), config.getMaxQueuedInstanceRequests(),
+                config.getProvisioningExecutor());
+        }
+        return new InstanceProvisioner(provider, config.getInitialConcurrentInstanceRequests(),
+            config.getMaxConcurrentInstanceRequests(), config.getMaxQueuedInstanceRequests(),
+            config.getProvisioningThreadFactory());
+    }
+
+    private static ExecutorService newExecutor(int maxConcurrentRequests, ThreadFactory threadFactory) {
+        //never more tasks than threads, the limit keeps the rest in waiting
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, maxConcurrentRequests),
+            Math.max(1, maxConcurrentRequests), KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates daemon threads named instance-provisioner-N, so that outstanding requests never keep
+     * the JVM alive on their own.
+     */
+    public static ThreadFactory defaultThreadFactory() {
+        final AtomicInteger count = new AtomicInteger(1);
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "instance-provisioner-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Requests an instance from the cloud provider. This method is thread-safe and never blocks.
+     *
+     * @return a future that completes with the instance, or exceptionally with whatever the cloud
+     *         provider threw. If too many requests are waiting already or the provisioner is shut
+     *         down, it completes exceptionally with a RejectedExecutionException.
+     */
+    public CompletableFuture<Instance> requestInstance() {
+        CompletableFuture<Instance> future = new CompletableFuture<Instance>();
+        synchronized (this) {
+            if (shutdown) {
+                future.completeExceptionally(new RejectedExecutionException("Instance provisioner is shut down"));
+                return future;
+            }
+            if (inFlight >= limit && waiting.size() >= maxQueuedRequests) {
+                future.completeExceptionally(new RejectedExecutionException(
+                    waiting.size() + " instance requests are waiting already"));
+                return future;
+            }
+            waiting.add(future);
+        }
+        dispatch();
+        return future;
+    }
+
+    // Starts waiting requests while the limit allows.
+    private void dispatch() {
+        while (true) {
+            final CompletableFuture<Instance> future;
+            synchronized (this) {
+                if (waiting.isEmpty() || inFlight >= limit) {
+                    if (shutdown && waiting.isEmpty() && inFlight == 0) {
+                        executor.shutdown();
+                    }
+                    return;
+                }
+                future = waiting.poll();
+                inFlight++;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        call(future);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    inFlight--;
+                }
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void call(CompletableFuture<Instance> future) {
+        long start = System.nanoTime();
+        Instance i = null;
+        RuntimeException failure = null;
+        try {
+            i = provider.requestInstance();
+        }
+        catch (RuntimeException e) {
+            failure = e;
+        }
+        latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        synchronized (this) {
+            inFlight--;
+            if (failure != null) {
+                //most likely throttled, back off
+                slowStartThreshold = Math.max(1, limit / 2);
+                limit = slowStartThreshold;
+            }
+            else if (limit < slowStartThreshold) {
+                limit = Math.min(maxConcurrentRequests, limit + 1);
+            }
+            else {
+                limit = Math.min(maxConcurrentRequests, limit + 1 / limit);
+            }
+        }
+        //start the next requests before handing this one out, its caller may take a while
+        dispatch();
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        }
+        else {
+            future.complete(i);
+        }
+    }
+
+    /**
+     * @return the number of instance requests that are running or waiting for their turn.
+     */
+    public synchronized int getOutstandingRequests() {
+        return inFlight + waiting.size();
+    }
+
+    /**
+     * @return the number of instance requests waiting for their turn.
+     */
+    public synchronized int getQueuedRequests() {
+        return waiting.size();
+    }
+
+    /**
+     * @return the number of instance requests currently allowed to run at once.
+     */
+    public synchronized int getConcurrencyLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return how long calls to CloudProvider.requestInstance took, whether they succeeded or not.
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latencies;
+    }
+
+    /**
+     * Stops accepting new requests. Requests that were already accepted still run to completion.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+        }
+        dispatch();
+    }
+
+    /**
+     * Blocks until all accepted requests have completed after a shutdown, or the timeout elapses.
+     *
+     * @return true if all requests completed.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
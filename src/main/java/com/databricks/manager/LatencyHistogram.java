@@ -0,0 +1,103 @@
+package com.databricks.manager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets that grow exponentially, eight buckets per power of two, so any
+ * latency from a millisecond to days is recorded to within 12.5% in a fixed amount of memory.
+ * Recording never blocks or allocates. All methods are thread-safe, and reads are consistent
+ * enough for monitoring but not an atomic snapshot.
+ */
+public class LatencyHistogram {
+
+    // Buckets per power of two is 1 << SUB_BUCKET_BITS.
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong maxMillis = new AtomicLong();
+
+    /**
+     * @param millis a latency in milliseconds, negative latencies are counted as 0.
+     */
+    public void record(long millis) {
+        millis = Math.max(0, millis);
+        counts.incrementAndGet(bucket(millis));
+        count.incrementAndGet();
+        totalMillis.addAndGet(millis);
+        while (true) {
+            long max = maxMillis.get();
+            if (millis <= max || maxMillis.compareAndSet(max, millis))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxMillis() {
+        return maxMillis.get();
+    }
+
+    /**
+     * @return the mean latency in milliseconds, or 0 if nothing was recorded.
+     */
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalMillis.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return an upper bound for the given percentile of the recorded latencies in milliseconds,
+     *         never more than the largest one, or 0 if nothing was recorded.
+     */
+    public long getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) {
+                return Math.min(upperBound(b), getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+
+    // Latencies below SUB_BUCKETS get a bucket each, above that each power of two is split into
+    // SUB_BUCKETS buckets.
+    private static int bucket(long millis) {
+        if (millis < SUB_BUCKETS) {
+            return (int) millis;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(millis);
+        int sub = (int) (millis >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowerBound = (1L << exponent) + sub * width;
+        return lowerBound + width - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount() + ", mean=" + getMeanMillis() + "ms, p50=" +
+            getPercentileMillis(50) + "ms, p99=" + getPercentileMillis(99) + "ms, max=" + getMaxMillis() + "ms}";
+    }
+}
@@ -0,0 +1,116 @@
+package com.databricks.manager;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * The counters and latencies a resource manager records as it works, see ResourceManagerMetrics
+ * for what they mean. Recording never blocks or allocates, so it stays on in production.
+ */
+final class ManagerMetrics {
+
+    final LongAdder placements = new LongAdder();
+    final LongAdder containersPlaced = new LongAdder();
+    final LongAdder containersFailed = new LongAdder();
+    final LongAdder containersUnplaced = new LongAdder();
+    final LongAdder instancesRequested = new LongAdder();
+    final LongAdder instanceRequestsFailed = new LongAdder();
+    final LongAdder driftRepaired = new LongAdder();
+    final LatencyHistogram placementMillis = new LatencyHistogram();
+    // In microseconds, a monitor is rarely held for a whole millisecond.
+    final LatencyHistogram lockWaitMicros = new LatencyHistogram();
+    final LatencyHistogram lockHoldMicros = new LatencyHistogram();
+
+    /**
+     * Records a critical section that asked for the monitor at requestedNanos and got it at
+     * acquiredNanos. Must be called just before the monitor is released.
+     */
+    void locked(long requestedNanos, long acquiredNanos) {
+        long releasedNanos = System.nanoTime();
+        lockWaitMicros.record(TimeUnit.NANOSECONDS.toMicros(acquiredNanos - requestedNanos));
+        lockHoldMicros.record(TimeUnit.NANOSECONDS.toMicros(releasedNanos - acquiredNanos));
+    }
+
+    void placed(long startNanos, int numPlaced, int numFailed) {
+        placements.increment();
+        containersPlaced.add(numPlaced);
+        containersFailed.add(numFailed);
+        placementMillis.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    // How long a snapshot serves attribute reads, long enough for one scrape of every attribute.
+    static final long SNAPSHOT_MAX_AGE_MILLIS = 1000;
+
+    /**
+     * Registers a resource manager's metrics with the platform MBean server as
+     * com.databricks.manager:type=ResourceManager,name=name.
+     *
+     * @param metrics called for a snapshot when an attribute is read. Taking one means going over
+     *                every instance, so a snapshot serves all reads for SNAPSHOT_MAX_AGE_MILLIS.
+     * @return the name it was registered under.
+     * @throws IllegalArgumentException if the name is taken or not a valid ObjectName value.
+     */
+    static ObjectName register(String name, final Supplier<ResourceManagerMetrics> metrics) {
+        //the bean forwards to the current snapshot
+        ResourceManagerMXBean bean = (ResourceManagerMXBean) Proxy.newProxyInstance(
+            ResourceManagerMXBean.class.getClassLoader(), new Class<?>[] {ResourceManagerMXBean.class},
+            new InvocationHandler() {
+                private ResourceManagerMetrics snapshot;
+                private long takenNanos;
+
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(this, args);
+                    }
+                    try {
+                        return method.invoke(snapshot(), args);
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+
+                private synchronized ResourceManagerMetrics snapshot() {
+                    long now = System.nanoTime();
+                    if (snapshot == null || now - takenNanos > TimeUnit.MILLISECONDS.toNanos(SNAPSHOT_MAX_AGE_MILLIS)) {
+                        snapshot = metrics.get();
+                        takenNanos = now;
+                    }
+                    return snapshot;
+                }
+            });
+        try {
+            ObjectName objectName = new ObjectName("com.databricks.manager:type=ResourceManager,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(bean, ResourceManagerMXBean.class, true), objectName);
+            return objectName;
+        }
+        catch (JMException e) {
+            throw new IllegalArgumentException("Cannot register resource manager " + name + " with JMX", e);
+        }
+    }
+
+    static void unregister(ObjectName objectName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        }
+        catch (JMException e) {
+            // Do some logging
+            System.err.println("ERROR UNREGISTERING " + objectName);
+        }
+    }
+}
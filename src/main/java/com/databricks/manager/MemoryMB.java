@@ -0,0 +1,40 @@
+package com.databricks.manager;
+
+/**
+ * The resource manager accounts for memory in whole (decimal) megabytes, so adding and subtracting
+ * container sizes never accumulates floating-point error. Sizes like 0.1 GB are exact in these
+ * units, unlike in binary fractions of a GB. Sizes in GB are converted at the edges: container
+ * sizes are rounded up and free memory reported by instances is rounded down, so rounding can only
+ * ever leave a sliver of an instance unused, never overcommit it.
+ */
+final class MemoryMB {
+
+    static final long PER_GB = 1000;
+    // Sizes in GB are doubles, and instances accumulate rounding errors of their own. Anything
+    // within a kilobyte of a whole megabyte counts as that megabyte.
+    private static final double TOLERANCE = 1e-3;
+
+    private MemoryMB() {
+    }
+
+    /**
+     * @return the memory a container of sizeGB takes up.
+     */
+    static long ofContainer(double sizeGB) {
+        return (long) Math.ceil(sizeGB * PER_GB - TOLERANCE);
+    }
+
+    /**
+     * @return the memory that is free when memoryGB is reported free.
+     */
+    static long ofFree(double memoryGB) {
+        return (long) Math.floor(memoryGB * PER_GB + TOLERANCE);
+    }
+
+    /**
+     * @return memoryMB in GB. Larger amounts of memory always give larger results.
+     */
+    static double toGB(long memoryMB) {
+        return (double) memoryMB / PER_GB;
+    }
+}
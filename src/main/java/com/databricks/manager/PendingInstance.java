@@ -0,0 +1,76 @@
+package com.databricks.manager;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An instance that has been requested from the cloud provider but has not been handed to us yet.
+ * Placements claim memory on it while the request is outstanding and place their containers once
+ * its future completes, so concurrent callers fill the same new instance instead of each
+ * requesting their own.
+ *
+ * Claims and unclaimed memory are guarded by the resource manager's monitor. Once the instance
+ * has been activated they no longer change.
+ */
+class PendingInstance {
+
+    private final CompletableFuture<Instance> future;
+    // Identifies the request in the state journal, and the instance once it has been returned.
+    private final long key;
+    // Memory that no placement has claimed yet.
+    private long unclaimedMemoryMB;
+    // Containers waiting for this instance, one future per container.
+    private final Set<CompletableFuture<ContainerId>> claims;
+
+    PendingInstance(long memoryMB, long key) {
+        this.future = new CompletableFuture<Instance>();
+        this.key = key;
+        this.unclaimedMemoryMB = memoryMB;
+        this.claims = new HashSet<CompletableFuture<ContainerId>>();
+    }
+
+    /**
+     * @return a future that completes with the instance once the cloud provider returns it.
+     */
+    CompletableFuture<Instance> getFuture() {
+        return future;
+    }
+
+    long getKey() {
+        return key;
+    }
+
+    long getUnclaimedMemoryMB() {
+        return unclaimedMemoryMB;
+    }
+
+    void claim(CompletableFuture<ContainerId> slot, long memoryMB) {
+        claims.add(slot);
+        unclaimedMemoryMB -= memoryMB;
+    }
+
+    /**
+     * Gives back the memory claimed for a container that is no longer wanted.
+     *
+     * @return false if the slot did not hold a claim on this instance.
+     */
+    boolean release(CompletableFuture<ContainerId> slot, long memoryMB) {
+        if (!claims.remove(slot)) {
+            return false;
+        }
+        unclaimedMemoryMB += memoryMB;
+        return true;
+    }
+
+    /**
+     * @return the number of containers waiting for this instance.
+     */
+    int getNumClaims() {
+        return claims.size();
+    }
+
+    boolean isClaimed(CompletableFuture<ContainerId> slot) {
+        return claims.contains(slot);
+    }
+}
@@ -0,0 +1,37 @@
+package com.databricks.manager;
+
+/**
+ * Where a container is placed, how much memory it takes there and which locality group it is in.
+ */
+class Placement {
+
+    // Size of containers that were placed before the manager started, which it cannot know.
+    static final double UNKNOWN_SIZE = Double.NaN;
+
+    private final Instance instance;
+    private final double sizeGB;
+    // Null unless the container was placed for a group, see PlacementRequest.setGroup.
+    private final String group;
+
+    Placement(Instance instance, double sizeGB) {
+        this(instance, sizeGB, null);
+    }
+
+    Placement(Instance instance, double sizeGB, String group) {
+        this.instance = instance;
+        this.sizeGB = sizeGB;
+        this.group = group;
+    }
+
+    Instance getInstance() {
+        return instance;
+    }
+
+    double getSizeGB() {
+        return sizeGB;
+    }
+
+    String getGroup() {
+        return group;
+    }
+}
@@ -0,0 +1,227 @@
+package com.databricks.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Turns the per-container futures of a placement into what the blocking, all-or-nothing and
+ * partial placement methods return, so that every resource manager implementation behaves the
+ * same way. Containers a caller will never see are unplaced through the manager that placed them.
+ */
+final class PlacementFutures {
+
+    private PlacementFutures() {
+    }
+
+    /**
+     * Waits for every slot, see ResourceManagerImpl.placeContainers.
+     */
+    static List<ContainerId> join(List<CompletableFuture<ContainerId>> slots, ResourceManager manager) {
+        List<ContainerId> containerIds = new ArrayList<ContainerId>();
+        for (int x = 0; x < slots.size(); x++) {
+            try {
+                containerIds.add(slots.get(x).get());
+            }
+            catch (ExecutionException e) {
+                //all or nothing, like all
+                for (CompletableFuture<ContainerId> slot : slots) {
+                    slot.cancel(false);
+                }
+                unplacePlaced(slots, manager);
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new CompletionException(e.getCause());
+            }
+            catch (InterruptedException e) {
+                //give back what we are still waiting for and keep what was placed already
+                Thread.currentThread().interrupt();
+                for (int y = x; y < slots.size(); y++) {
+                    CompletableFuture<ContainerId> slot = slots.get(y);
+                    if (!slot.cancel(false) && !slot.isCompletedExceptionally()) {
+                        containerIds.add(slot.join());
+                    }
+                }
+                break;
+            }
+        }
+        return containerIds;
+    }
+
+    /**
+     * @return a future for all slots, see AsyncResourceManager.placeContainersAsync.
+     */
+    static CompletableFuture<List<ContainerId>> all(final List<CompletableFuture<ContainerId>> slots,
+                                                    final ResourceManager manager) {
+        final CompletableFuture<List<ContainerId>> result = new CompletableFuture<List<ContainerId>>();
+        CompletableFuture<?>[] all = slots.toArray(new CompletableFuture<?>[slots.size()]);
+        CompletableFuture.allOf(all).whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void ignored, Throwable failure) {
+                if (failure != null) {
+                    if (result.completeExceptionally(failure)) {
+                        unplacePlaced(slots, manager);
+                    }
+                    return;
+                }
+                List<ContainerId> containerIds = new ArrayList<ContainerId>(slots.size());
+                for (CompletableFuture<ContainerId> slot : slots) {
+                    containerIds.add(slot.join());
+                }
+                result.complete(containerIds);
+            }
+        });
+        result.whenComplete(new BiConsumer<List<ContainerId>, Throwable>() {
+            public void accept(List<ContainerId> containerIds, Throwable failure) {
+                if (result.isCancelled()) {
+                    for (CompletableFuture<ContainerId> slot : slots) {
+                        slot.cancel(false);
+                    }
+                    unplacePlaced(slots, manager);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return a future for as many slots as the request makes do with, see
+     *         AsyncResourceManager.placeContainersPartiallyAsync.
+     */
+    static CompletableFuture<PlacementResult> partial(final List<CompletableFuture<ContainerId>> slots,
+                                                      PlacementRequest request, ScheduledExecutorService deadlines,
+                                                      final ResourceManager manager) {
+        final int minContainers = request.getMinContainers();
+        final CompletableFuture<PlacementResult> result = new CompletableFuture<PlacementResult>();
+        final AtomicInteger placed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+        final AtomicBoolean deadlinePassed = new AtomicBoolean();
+        final Runnable settle = new Runnable() {
+            public void run() {
+                int pending = slots.size() - placed.get() - failed.get();
+                if (placed.get() + pending < minContainers) {
+                    result.completeExceptionally(firstFailure.get());
+                }
+                else if (pending == 0 || (deadlinePassed.get() && placed.get() >= minContainers)) {
+                    result.complete(new PlacementResult(slots));
+                }
+                else if (deadlinePassed.get()) {
+                    result.completeExceptionally(new TimeoutException(placed.get() + " of at least " +
+                        minContainers + " containers were placed by the deadline"));
+                }
+            }
+        };
+        for (CompletableFuture<ContainerId> slot : slots) {
+            slot.whenComplete(new BiConsumer<ContainerId, Throwable>() {
+                public void accept(ContainerId containerId, Throwable failure) {
+                    if (failure != null) {
+                        firstFailure.compareAndSet(null, failure);
+                        failed.incrementAndGet();
+                    }
+                    else {
+                        placed.incrementAndGet();
+                    }
+                    settle.run();
+                }
+            });
+        }
+        if (request.getDeadlineMillis() >= 0 && !result.isDone()) {
+            final ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+                public void run() {
+                    deadlinePassed.set(true);
+                    settle.run();
+                }
+            }, request.getDeadlineMillis(), TimeUnit.MILLISECONDS);
+            result.whenComplete(new BiConsumer<PlacementResult, Throwable>() {
+                public void accept(PlacementResult r, Throwable failure) {
+                    deadline.cancel(false);
+                }
+            });
+        }
+        settle.run();
+        //the caller only hears of a failure once everything is given back
+        final CompletableFuture<PlacementResult> settled = new CompletableFuture<PlacementResult>();
+        result.whenComplete(new BiConsumer<PlacementResult, Throwable>() {
+            public void accept(PlacementResult r, Throwable failure) {
+                if (failure == null) {
+                    settled.complete(r);
+                    return;
+                }
+                for (CompletableFuture<ContainerId> slot : slots) {
+                    slot.cancel(false);
+                }
+                unplacePlaced(slots, manager);
+                settled.completeExceptionally(failure);
+            }
+        });
+        settled.whenComplete(new BiConsumer<PlacementResult, Throwable>() {
+            public void accept(PlacementResult r, Throwable failure) {
+                if (settled.isCancelled()) {
+                    result.cancel(false);
+                }
+            }
+        });
+        return settled;
+    }
+
+    /**
+     * Waits for a partial placement, see ResourceManagerImpl.placeContainersPartially.
+     */
+    static PlacementResult await(CompletableFuture<PlacementResult> result)
+        throws TimeoutException, InterruptedException {
+        try {
+            return result.get();
+        }
+        catch (InterruptedException e) {
+            result.cancel(false);
+            throw e;
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    /**
+     * @return a timer for the deadlines of partial placements. Its thread is only started by the
+     *         first deadline, and deadlines that are set already still pass after a shutdown.
+     */
+    static ScheduledThreadPoolExecutor deadlineTimer() {
+        ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "placement-deadlines");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        deadlines.setRemoveOnCancelPolicy(true);
+        return deadlines;
+    }
+
+    // Rolls back the containers that were placed for a request its caller will never see.
+    private static void unplacePlaced(List<CompletableFuture<ContainerId>> slots, ResourceManager manager) {
+        for (CompletableFuture<ContainerId> slot : slots) {
+            if (slot.isDone() && !slot.isCompletedExceptionally()) {
+                manager.unplaceContainer(slot.join());
+            }
+        }
+    }
+}
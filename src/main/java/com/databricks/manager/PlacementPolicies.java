@@ -0,0 +1,303 @@
+package com.databricks.manager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The placement policies that come with the resource manager.
+ */
+public final class PlacementPolicies {
+
+    private PlacementPolicies() {
+    }
+
+    /**
+     * Puts a placement on the instance with the least free memory that holds all of it, or else
+     * fills the fullest instances first. This keeps empty instances empty and is the default.
+     */
+    public static final PlacementPolicy.Factory BEST_FIT = new PlacementPolicy.Factory() {
+        public PlacementPolicy create(double instanceSizeGB, double containerSizeGB) {
+            return new BestFit();
+        }
+    };
+
+    /**
+     * Puts containers on the instance that joined the fleet first among those with enough free
+     * memory. Combined with the resource manager placing the largest containers of a request
+     * first, this is first-fit decreasing.
+     */
+    public static final PlacementPolicy.Factory FIRST_FIT_DECREASING = new PlacementPolicy.Factory() {
+        public PlacementPolicy create(double instanceSizeGB, double containerSizeGB) {
+            return new FirstFit();
+        }
+    };
+
+    /**
+     * Puts containers on the instance with the most free memory, spreading load across the fleet.
+     */
+    public static final PlacementPolicy.Factory WORST_FIT = new PlacementPolicy.Factory() {
+        public PlacementPolicy create(double instanceSizeGB, double containerSizeGB) {
+            return new WorstFit();
+        }
+    };
+
+    /**
+     * Best fit over buckets of instances with the same number of free container slots. Selection
+     * takes constant time for a given instance and container size unless only part of a slot is
+     * left, in which case it takes logarithmic time in the number of instances. Instances within a
+     * bucket are used in the order they got there, except that what is left of a partly used slot
+     * goes to the instance it fits most tightly.
+     */
+    public static final PlacementPolicy.Factory BUCKETED = new PlacementPolicy.Factory() {
+        public PlacementPolicy create(double instanceSizeGB, double containerSizeGB) {
+            return new Bucketed(instanceSizeGB, containerSizeGB);
+        }
+    };
+
+    /**
+     * Indexes instances by their free memory.
+     */
+    private abstract static class ByFreeMemory implements PlacementPolicy {
+
+        protected final TreeMap<Double, LinkedHashSet<Instance>> byFreeMemoryGB =
+            new TreeMap<Double, LinkedHashSet<Instance>>();
+
+        public void add(Instance instance, double freeMemoryGB) {
+            LinkedHashSet<Instance> instances = byFreeMemoryGB.get(freeMemoryGB);
+            if (instances == null) {
+                instances = new LinkedHashSet<Instance>();
+                byFreeMemoryGB.put(freeMemoryGB, instances);
+            }
+            instances.add(instance);
+        }
+
+        public void remove(Instance instance, double freeMemoryGB) {
+            LinkedHashSet<Instance> instances = byFreeMemoryGB.get(freeMemoryGB);
+            if (instances != null && instances.remove(instance) && instances.isEmpty()) {
+                byFreeMemoryGB.remove(freeMemoryGB);
+            }
+        }
+
+        public Instance selectForGroup(double containerSizeGB, int numContainers) {
+            Instance whole = first(byFreeMemoryGB.ceilingEntry(containerSizeGB * numContainers));
+            if (whole != null) {
+                return whole;
+            }
+            Map.Entry<Double, LinkedHashSet<Instance>> most = byFreeMemoryGB.lastEntry();
+            if (most == null || most.getKey() < containerSizeGB) {
+                return null;
+            }
+            return first(most);
+        }
+
+        protected static Instance first(Map.Entry<Double, LinkedHashSet<Instance>> entry) {
+            return entry == null ? null : entry.getValue().iterator().next();
+        }
+    }
+
+    private static class BestFit extends ByFreeMemory {
+
+        public Instance select(double containerSizeGB, int numContainers) {
+            Instance whole = first(byFreeMemoryGB.ceilingEntry(containerSizeGB * numContainers));
+            if (whole != null) {
+                return whole;
+            }
+            return first(byFreeMemoryGB.ceilingEntry(containerSizeGB));
+        }
+    }
+
+    private static class WorstFit extends ByFreeMemory {
+
+        public Instance select(double containerSizeGB, int numContainers) {
+            Map.Entry<Double, LinkedHashSet<Instance>> most = byFreeMemoryGB.lastEntry();
+            if (most == null || most.getKey() < containerSizeGB) {
+                return null;
+            }
+            return first(most);
+        }
+    }
+
+    private static class FirstFit implements PlacementPolicy {
+
+        // The position each instance joined the fleet at. Instances keep it while they are full.
+        private final HashMap<Instance, Integer> positions = new HashMap<Instance, Integer>();
+        private Instance[] instances = new Instance[16];
+        // A max segment tree over the free memory of the instances by position, with the leaves
+        // from instances.length on. Positions of instances that are not tracked hold -1.
+        private double[] mostGB = emptyTree(16);
+
+        private static double[] emptyTree(int leaves) {
+            double[] tree = new double[2 * leaves];
+            Arrays.fill(tree, -1);
+            return tree;
+        }
+
+        public void join(Instance instance) {
+            int position = positions.size();
+            positions.put(instance, position);
+            if (position == instances.length) {
+                grow();
+            }
+            instances[position] = instance;
+        }
+
+        public void add(Instance instance, double freeMemoryGB) {
+            if (!positions.containsKey(instance)) {
+                join(instance);
+            }
+            set(positions.get(instance), freeMemoryGB);
+        }
+
+        public void remove(Instance instance, double freeMemoryGB) {
+            Integer position = positions.get(instance);
+            if (position != null) {
+                set(position, -1);
+            }
+        }
+
+        private void set(int position, double freeMemoryGB) {
+            int x = instances.length + position;
+            mostGB[x] = freeMemoryGB;
+            for (x /= 2; x >= 1; x /= 2) {
+                mostGB[x] = Math.max(mostGB[2 * x], mostGB[2 * x + 1]);
+            }
+        }
+
+        private void grow() {
+            int leaves = instances.length;
+            double[] tree = emptyTree(2 * leaves);
+            System.arraycopy(mostGB, leaves, tree, 2 * leaves, leaves);
+            for (int x = 2 * leaves - 1; x >= 1; x--) {
+                tree[x] = Math.max(tree[2 * x], tree[2 * x + 1]);
+            }
+            instances = Arrays.copyOf(instances, 2 * leaves);
+            mostGB = tree;
+        }
+
+        // The instance that joined first among those with at least freeMemoryGB of free memory.
+        private Instance first(double freeMemoryGB) {
+            if (mostGB[1] < freeMemoryGB) {
+                return null;
+            }
+            int x = 1;
+            while (x < instances.length) {
+                x = mostGB[2 * x] >= freeMemoryGB ? 2 * x : 2 * x + 1;
+            }
+            return instances[x - instances.length];
+        }
+
+        public Instance select(double containerSizeGB, int numContainers) {
+            return first(containerSizeGB);
+        }
+
+        public Instance selectForGroup(double containerSizeGB, int numContainers) {
+            Instance whole = first(containerSizeGB * numContainers);
+            if (whole != null) {
+                return whole;
+            }
+            return mostGB[1] < containerSizeGB ? null : first(mostGB[1]);
+        }
+    }
+
+    private static class Bucketed implements PlacementPolicy {
+
+        private final double containerSizeGB;
+        // Instances by the number of default-sized containers that still fit on them. The last
+        // bucket also holds instances with more room than a fresh instance.
+        private final List<Set<Instance>> bySlots = new ArrayList<Set<Instance>>();
+        // Instances by their free memory in MB, so that the partly used slots of a bucket need not
+        // be searched one by one.
+        private final TreeMap<Long, LinkedHashSet<Instance>> byFreeMB = new TreeMap<Long, LinkedHashSet<Instance>>();
+
+        Bucketed(double instanceSizeGB, double containerSizeGB) {
+            this.containerSizeGB = containerSizeGB;
+            int buckets = (int) Math.floor(instanceSizeGB / containerSizeGB) + 1;
+            for (int x = 0; x < buckets; x++) {
+                bySlots.add(new LinkedHashSet<Instance>());
+            }
+        }
+
+        private int bucket(double freeMemoryGB) {
+            return Math.min(bySlots.size() - 1, (int) Math.floor(freeMemoryGB / containerSizeGB));
+        }
+
+        public void add(Instance instance, double freeMemoryGB) {
+            bySlots.get(bucket(freeMemoryGB)).add(instance);
+            long freeMB = MemoryMB.ofFree(freeMemoryGB);
+            LinkedHashSet<Instance> instances = byFreeMB.get(freeMB);
+            if (instances == null) {
+                instances = new LinkedHashSet<Instance>();
+                byFreeMB.put(freeMB, instances);
+            }
+            instances.add(instance);
+        }
+
+        public void remove(Instance instance, double freeMemoryGB) {
+            bySlots.get(bucket(freeMemoryGB)).remove(instance);
+            long freeMB = MemoryMB.ofFree(freeMemoryGB);
+            LinkedHashSet<Instance> instances = byFreeMB.get(freeMB);
+            if (instances != null && instances.remove(instance) && instances.isEmpty()) {
+                byFreeMB.remove(freeMB);
+            }
+        }
+
+        public Instance select(double containerSizeGB, int numContainers) {
+            Instance whole = firstFrom(containerSizeGB * numContainers);
+            return whole != null ? whole : firstFrom(containerSizeGB);
+        }
+
+        public Instance selectForGroup(double containerSizeGB, int numContainers) {
+            Instance whole = firstFrom(containerSizeGB * numContainers);
+            if (whole != null) {
+                return whole;
+            }
+            int least = bucket(containerSizeGB);
+            for (int x = bySlots.size() - 1; x > least; x--) {
+                Iterator<Instance> it = bySlots.get(x).iterator();
+                if (it.hasNext()) {
+                    return it.next();
+                }
+            }
+            return firstIn(least, containerSizeGB);
+        }
+
+        // The first instance with at least freeMemoryGB of free memory from the tightest bucket.
+        // Only the bucket freeMemoryGB falls in, which includes partly used slots, is searched.
+        private Instance firstFrom(double freeMemoryGB) {
+            if (Math.floor(freeMemoryGB / containerSizeGB) >= bySlots.size()) {
+                //more than a fresh instance
+                return null;
+            }
+            int least = bucket(freeMemoryGB);
+            Instance first = firstIn(least, freeMemoryGB);
+            if (first != null) {
+                return first;
+            }
+            for (int x = least + 1; x < bySlots.size(); x++) {
+                Iterator<Instance> it = bySlots.get(x).iterator();
+                if (it.hasNext()) {
+                    return it.next();
+                }
+            }
+            return null;
+        }
+
+        // The instance in the bucket with the least free memory that is at least freeMemoryGB.
+        private Instance firstIn(int bucket, double freeMemoryGB) {
+            Map.Entry<Long, LinkedHashSet<Instance>> fits = byFreeMB.ceilingEntry(MemoryMB.ofContainer(freeMemoryGB));
+            if (fits == null) {
+                return null;
+            }
+            //the tightest fit is in a fuller bucket if none in this one fits
+            Instance first = fits.getValue().iterator().next();
+            return bySlots.get(bucket).contains(first) ? first : null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.databricks.manager;
+
+/**
+ * Decides which instance the next containers of a placement go to. A policy keeps its own index
+ * of the instances that have free memory, so that it can pick one without scanning the fleet.
+ * Each resource manager creates its own policy through a Factory and only calls it while holding
+ * its monitor, so implementations need not be thread-safe.
+ *
+ * The built-in policies are available from PlacementPolicies.
+ */
+public interface PlacementPolicy {
+
+    /**
+     * Creates the policy of a single resource manager.
+     */
+    interface Factory {
+
+        /**
+         * @param instanceSizeGB the size of instances provided by the cloud provider.
+         * @param containerSizeGB the default size of containers placed by the resource manager.
+         */
+        PlacementPolicy create(double instanceSizeGB, double containerSizeGB);
+    }
+
+    /**
+     * Called once when an instance joins the fleet, before it is first added. Instances that are
+     * full when they join are only added once they have free memory. Does nothing unless
+     * overridden.
+     */
+    default void join(Instance instance) {
+    }
+
+    /**
+     * Starts tracking an instance with freeMemoryGB of memory that is not reserved yet.
+     */
+    void add(Instance instance, double freeMemoryGB);
+
+    /**
+     * Stops tracking an instance. freeMemoryGB is the value it was last added with.
+     */
+    void remove(Instance instance, double freeMemoryGB);
+
+    /**
+     * Picks the instance for the next containers of a placement. The resource manager places as
+     * many of them on it as fit, then asks again for the rest.
+     *
+     * @param containerSizeGB the size of the next container.
+     * @param numContainers the number of containers of this size that still need an instance.
+     * @return an instance with at least containerSizeGB of free memory, or null if there is none.
+     */
+    Instance select(double containerSizeGB, int numContainers);
+
+    /**
+     * Picks the instance for the next containers of a locality group, which should end up on as
+     * few instances as possible. The built-in policies pick an instance that holds all of them,
+     * or else the one with the most free memory. Falls back to select unless overridden.
+     *
+     * @param containerSizeGB the size of the next container.
+     * @param numContainers the number of containers of this size that still need an instance.
+     * @return an instance with at least containerSizeGB of free memory, or null if there is none.
+     */
+    default Instance selectForGroup(double containerSizeGB, int numContainers) {
+        return select(containerSizeGB, numContainers);
+    }
+}
@@ -0,0 +1,176 @@
+package com.databricks.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The containers a single placement asks for. Containers of different sizes in one request, say a
+ * Spark driver and its executors, are packed onto the same fleet of instances. A request may also
+ * accept fewer containers than it asks for by a deadline, see
+ * AsyncResourceManager.placeContainersPartiallyAsync. If the resource manager has an admission
+ * policy, the request's tenant and priority decide when it is served, see AdmissionPolicy. The
+ * containers of a group, say the workers of one Spark cluster, are kept on as few instances as
+ * possible, see setGroup. Adders and setters return this request so they can be chained.
+ */
+public class PlacementRequest {
+
+    /**
+     * Priority classes for admission. Requests of a higher class are always served before those
+     * of a lower one.
+     */
+    public enum Priority {
+        // Interactive clusters somebody is waiting for.
+        INTERACTIVE,
+        NORMAL,
+        // Jobs that can wait for capacity.
+        BATCH
+    }
+
+    private final List<Double> containerSizesGB = new ArrayList<Double>();
+    // -1 means all of them.
+    private int minContainers = -1;
+    // -1 means no deadline.
+    private long deadlineMillis = -1;
+    private String tenant = null;
+    private Priority priority = Priority.NORMAL;
+    private String group = null;
+    private int maxContainersPerInstance = Integer.MAX_VALUE;
+
+    /**
+     * Adds numContainers containers of size containerSizeGB to the request.
+     *
+     * @throws IllegalArgumentException if numContainers is negative or containerSizeGB is not
+     *                                  positive.
+     */
+    public PlacementRequest addContainers(int numContainers, double containerSizeGB) {
+        if (numContainers < 0 || !(containerSizeGB > 0)) {
+            throw new IllegalArgumentException("Cannot place " + numContainers + " containers of size " +
+                containerSizeGB + " GB");
+        }
+        for (int x = 0; x < numContainers; x++) {
+            containerSizesGB.add(containerSizeGB);
+        }
+        return this;
+    }
+
+    /**
+     * @return the size of each requested container, in the order they were added. Placement
+     *         results list containers in the same order.
+     */
+    public List<Double> getContainerSizesGB() {
+        return Collections.unmodifiableList(containerSizesGB);
+    }
+
+    public int getNumContainers() {
+        return containerSizesGB.size();
+    }
+
+    /**
+     * @param minContainers the fewest containers the request can make do with by its deadline.
+     *                      All of them unless set.
+     * @throws IllegalArgumentException if minContainers is negative.
+     */
+    public PlacementRequest setMinContainers(int minContainers) {
+        if (minContainers < 0) {
+            throw new IllegalArgumentException("Cannot make do with " + minContainers + " containers");
+        }
+        this.minContainers = minContainers;
+        return this;
+    }
+
+    /**
+     * @return the fewest containers the request can make do with, never more than it asks for.
+     */
+    public int getMinContainers() {
+        return minContainers < 0 ? getNumContainers() : Math.min(minContainers, getNumContainers());
+    }
+
+    /**
+     * @param timeout how long after the placement starts to stop waiting for the containers that
+     *                have not been placed yet. No deadline unless set.
+     * @throws IllegalArgumentException if timeout is negative.
+     */
+    public PlacementRequest setDeadline(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative deadline " + timeout + " " + unit);
+        }
+        this.deadlineMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * @return the deadline in milliseconds from the start of the placement, or -1 if there is none.
+     */
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * @param tenant who the containers are for, for fair sharing and quotas. Requests without a
+     *               tenant share the default tenant.
+     */
+    public PlacementRequest setTenant(String tenant) {
+        this.tenant = tenant;
+        return this;
+    }
+
+    /**
+     * @return who the containers are for, or null for the default tenant.
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
+    /**
+     * @param priority the priority class of the request, NORMAL unless set.
+     */
+    public PlacementRequest setPriority(Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("Priority cannot be null");
+        }
+        this.priority = priority;
+        return this;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param group the locality group of the containers. Containers of a group go to instances
+     *              the group is on already first, and are otherwise packed onto as few instances
+     *              as possible, across all requests for the group. No group unless set.
+     */
+    public PlacementRequest setGroup(String group) {
+        this.group = group;
+        return this;
+    }
+
+    /**
+     * @return the locality group of the containers, or null if they have none.
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * @param maxContainersPerInstance the most containers of the group that may share an
+     *                                 instance, to spread the group out. 1 keeps every container
+     *                                 of the group on an instance of its own. Only applies to
+     *                                 requests with a group, unlimited unless set.
+     * @throws IllegalArgumentException if maxContainersPerInstance is not positive.
+     */
+    public PlacementRequest setMaxContainersPerInstance(int maxContainersPerInstance) {
+        if (maxContainersPerInstance <= 0) {
+            throw new IllegalArgumentException("Cannot put " + maxContainersPerInstance + " containers on an instance");
+        }
+        this.maxContainersPerInstance = maxContainersPerInstance;
+        return this;
+    }
+
+    public int getMaxContainersPerInstance() {
+        return maxContainersPerInstance;
+    }
+}
@@ -0,0 +1,113 @@
+package com.databricks.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * What a placement that may settle for fewer containers than it asked for got by the time it
+ * returned: the containers that were placed, the ones still waiting for their instance, and how
+ * many could not be placed at all. Containers keep the order they were added to the request in,
+ * within each of those lists.
+ */
+public class PlacementResult {
+
+    private final List<ContainerId> placed;
+    private final List<CompletableFuture<ContainerId>> pending;
+    private final int failed;
+
+    PlacementResult(List<CompletableFuture<ContainerId>> slots) {
+        List<ContainerId> placed = new ArrayList<ContainerId>();
+        List<CompletableFuture<ContainerId>> pending = new ArrayList<CompletableFuture<ContainerId>>();
+        int failed = 0;
+        for (CompletableFuture<ContainerId> slot : slots) {
+            if (!slot.isDone()) {
+                pending.add(slot);
+            }
+            else if (slot.isCompletedExceptionally()) {
+                failed++;
+            }
+            else {
+                placed.add(slot.join());
+            }
+        }
+        this.placed = Collections.unmodifiableList(placed);
+        this.pending = Collections.unmodifiableList(pending);
+        this.failed = failed;
+    }
+
+    /**
+     * @return the containers that were placed.
+     */
+    public List<ContainerId> getPlacedContainers() {
+        return placed;
+    }
+
+    /**
+     * @return one future per container that is still waiting for its instance. Cancelling one
+     *         gives back the memory held for its container.
+     */
+    public List<CompletableFuture<ContainerId>> getPendingContainers() {
+        return pending;
+    }
+
+    /**
+     * @return the number of containers that could not be placed, including cancelled ones.
+     */
+    public int getNumFailed() {
+        return failed;
+    }
+
+    /**
+     * @return true if every container of the request was placed.
+     */
+    public boolean isComplete() {
+        return pending.isEmpty() && failed == 0;
+    }
+
+    /**
+     * @return a future that completes once every pending container is placed or has failed, with
+     *         the ones that were placed.
+     */
+    public CompletableFuture<List<ContainerId>> getRemainingContainers() {
+        final List<CompletableFuture<ContainerId>> pending = this.pending;
+        List<CompletableFuture<Void>> settled = new ArrayList<CompletableFuture<Void>>(pending.size());
+        for (CompletableFuture<ContainerId> slot : pending) {
+            settled.add(slot.handle(new BiFunction<ContainerId, Throwable, Void>() {
+                public Void apply(ContainerId containerId, Throwable failure) {
+                    return null;
+                }
+            }));
+        }
+        return CompletableFuture.allOf(settled.toArray(new CompletableFuture<?>[settled.size()]))
+            .thenApply(new Function<Void, List<ContainerId>>() {
+                public List<ContainerId> apply(Void ignored) {
+                    List<ContainerId> containerIds = new ArrayList<ContainerId>();
+                    for (CompletableFuture<ContainerId> slot : pending) {
+                        if (!slot.isCompletedExceptionally()) {
+                            containerIds.add(slot.join());
+                        }
+                    }
+                    return containerIds;
+                }
+            });
+    }
+
+    /**
+     * Stops waiting for the pending containers and gives back the memory held for them.
+     * Containers placed in the meantime stay placed and are returned by their futures.
+     */
+    public void cancelPending() {
+        for (CompletableFuture<ContainerId> slot : pending) {
+            slot.cancel(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PlacementResult{placed=" + placed.size() + ", pending=" + pending.size() + ", failed=" + failed + "}";
+    }
+}
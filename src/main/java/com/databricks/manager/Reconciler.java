@@ -0,0 +1,152 @@
+package com.databricks.manager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs the calls that check instances against the resource manager's bookkeeping, both when it
+ * starts and periodically afterwards. Instances are visited in parallel by a fork-join pool of its
+ * own, since visiting one means waiting on remote calls and the common pool is sized for CPU-bound
+ * work. The pool and the timer are only started once they are first needed. All methods are
+ * thread-safe.
+ */
+class Reconciler {
+
+    private final int parallelism;
+    private ForkJoinPool pool;
+    private ScheduledExecutorService timer;
+    private boolean shutdown;
+
+    /**
+     * @param parallelism number of instances visited at once.
+     */
+    Reconciler(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    private synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Reconciler is shut down");
+            }
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    private synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Reconciler is shut down");
+            }
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "reconciler");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Visits every instance in the background. A visit that fails is logged and does not stop
+     * the others.
+     *
+     * @return a future that completes once every instance has been visited.
+     */
+    CompletableFuture<Void> scan(Collection<? extends Instance> instances, final Consumer<Instance> visitor) {
+        final List<Instance> list = new ArrayList<Instance>(instances);
+        if (list.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(new Runnable() {
+            public void run() {
+                new Scan(list, 0, list.size(), visitor).invoke();
+            }
+        }, pool());
+    }
+
+    /**
+     * Runs pass on owner every intervalMillis until shutdown, starting one interval from now. Only
+     * a weak reference to owner is kept, so an owner that is dropped without being shut down can
+     * still be collected, after which its passes stop. pass must not refer to owner itself.
+     */
+    <T> void schedule(T owner, final Consumer<? super T> pass, long intervalMillis) {
+        final WeakReference<T> ref = new WeakReference<T>(owner);
+        timer().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                T o = ref.get();
+                if (o == null) {
+                    //throwing is what stops a fixed delay task from running again
+                    throw new CancellationException();
+                }
+                try {
+                    pass.accept(o);
+                }
+                catch (RuntimeException e) {
+                    // Do some logging
+                    System.err.println("ERROR OCCURRED DURING RECONCILIATION: " + e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void shutdown() {
+        shutdown = true;
+        if (timer != null) {
+            timer.shutdown();
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Splits the instances in halves until each task visits a single one.
+     */
+    private static class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Instance> instances;
+        private final int from;
+        private final int to;
+        private final Consumer<Instance> visitor;
+
+        Scan(List<Instance> instances, int from, int to, Consumer<Instance> visitor) {
+            this.instances = instances;
+            this.from = from;
+            this.to = to;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Scan(instances, from, mid, visitor), new Scan(instances, mid, to, visitor));
+                return;
+            }
+            try {
+                visitor.accept(instances.get(from));
+            }
+            catch (RuntimeException e) {
+                // Do some logging
+                System.err.println("ERROR RECONCILING INSTANCE: " + e);
+            }
+        }
+    }
+}
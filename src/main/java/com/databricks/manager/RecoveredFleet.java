@@ -0,0 +1,238 @@
+package com.databricks.manager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Matches the instances recovered from the state journal with the cloud provider's instances,
+ * lazily. Instance has no ID, so the only way to tell which instance is which is to ask it for its
+ * containers. Instead of doing that for every instance at startup, instances are asked one at a
+ * time whenever a recovered instance is first used, until it has been found. Every instance is
+ * asked at most once, and each one that is asked gets matched, adopted or left for recovered
+ * instances without containers, so the work done for one lookup is never repeated for the next.
+ *
+ * Instances that are not in the journal (their request completed after the last record was
+ * written) are adopted, and recovered instances that are never found once every instance has been
+ * asked are lost. The resource manager also checks every instance in the background, so the
+ * instances nobody has used yet are found in parallel. All methods are thread-safe; the listener
+ * is called while holding this object's monitor.
+ */
+class RecoveredFleet {
+
+    /**
+     * Told about what the provider's instances turned out to be.
+     */
+    interface Listener {
+
+        /**
+         * A recovered instance was found.
+         *
+         * @param containers the containers placed on it according to the journal.
+         * @param actualContainers the containers actually placed on it.
+         * @param remainingMemoryGB its remaining memory.
+         */
+        void bound(RecoveredInstance recovered, Set<ContainerId> containers,
+                   List<ContainerId> actualContainers, double remainingMemoryGB);
+
+        /**
+         * An instance the journal does not know about was found.
+         */
+        void adopted(Instance instance, List<ContainerId> containers, double remainingMemoryGB);
+
+        /**
+         * A recovered instance does not exist anymore.
+         *
+         * @param containers the containers placed on it according to the journal.
+         */
+        void lost(RecoveredInstance recovered, Set<ContainerId> containers);
+    }
+
+    private final Listener listener;
+    // Everything below is guarded by this.
+    private final LinkedHashSet<Instance> unprobed;
+    private final Map<ContainerId, RecoveredInstance> hosts;
+    private final Map<RecoveredInstance, Set<ContainerId>> containers;
+    // Recovered instances without containers, which any empty instance can stand for.
+    private final LinkedList<RecoveredInstance> empty;
+    private int probing;
+
+    RecoveredFleet(Collection<Instance> instances, Listener listener) {
+        this.listener = listener;
+        this.unprobed = new LinkedHashSet<Instance>(instances);
+        this.hosts = new HashMap<ContainerId, RecoveredInstance>();
+        this.containers = new HashMap<RecoveredInstance, Set<ContainerId>>();
+        this.empty = new LinkedList<RecoveredInstance>();
+    }
+
+    /**
+     * Registers a recovered instance and the containers the journal has on it. Must be called
+     * before the recovered instance is used.
+     */
+    synchronized void add(RecoveredInstance recovered, Set<ContainerId> recoveredContainers) {
+        containers.put(recovered, recoveredContainers);
+        if (recoveredContainers.isEmpty()) {
+            empty.add(recovered);
+        }
+        for (ContainerId containerId : recoveredContainers) {
+            hosts.put(containerId, recovered);
+        }
+    }
+
+    /**
+     * Finds the instance behind a recovered instance, asking the provider's instances for their
+     * containers until it turns up.
+     *
+     * @return the instance, or null if it no longer exists.
+     */
+    Instance resolve(RecoveredInstance recovered) {
+        probeUntil(recovered);
+        return recovered.resolve();
+    }
+
+    /**
+     * Asks every instance that has not been asked yet for its containers, so that everything the
+     * journal missed is known and every recovered instance is either found or lost.
+     */
+    void finish() {
+        probeUntil(null);
+    }
+
+    // Probes instances until target has been found or lost, or until all have been probed if
+    // target is null.
+    private void probeUntil(RecoveredInstance target) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                Instance next;
+                synchronized (this) {
+                    while (true) {
+                        if (target != null ? !target.isUnbound() : isDone()) {
+                            return;
+                        }
+                        Iterator<Instance> it = unprobed.iterator();
+                        if (it.hasNext()) {
+                            next = it.next();
+                            it.remove();
+                            probing++;
+                            break;
+                        }
+                        if (probing == 0) {
+                            loseUnbound();
+                        }
+                        else {
+                            //another thread is asking the instance we are looking for
+                            try {
+                                wait();
+                            }
+                            catch (InterruptedException e) {
+                                interrupted = true;
+                            }
+                        }
+                    }
+                }
+                probe(next);
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Asks a single instance for its containers, unless it has been asked already. Checking
+     * every instance this way from several threads finds all recovered instances in parallel.
+     */
+    void check(Instance i) {
+        synchronized (this) {
+            if (!unprobed.remove(i)) {
+                return;
+            }
+            probing++;
+        }
+        probe(i);
+    }
+
+    /**
+     * @return true if every instance has been matched, adopted or lost.
+     */
+    synchronized boolean isDone() {
+        return unprobed.isEmpty() && probing == 0 && containers.isEmpty();
+    }
+
+    private void probe(Instance i) {
+        List<ContainerId> actual;
+        double remainingMemoryGB;
+        try {
+            actual = i.getAllContainers();
+            remainingMemoryGB = i.getRemainingMemoryGB();
+        }
+        catch (RuntimeException e) {
+            synchronized (this) {
+                unprobed.add(i);
+                probing--;
+                notifyAll();
+            }
+            throw e;
+        }
+        synchronized (this) {
+            probing--;
+            settle(i, actual, remainingMemoryGB);
+            notifyAll();
+        }
+    }
+
+    // Must be called while holding this object's monitor.
+    private void settle(Instance i, List<ContainerId> actual, double remainingMemoryGB) {
+        RecoveredInstance owner = null;
+        for (ContainerId containerId : actual) {
+            RecoveredInstance host = hosts.get(containerId);
+            if (host != null && host.isUnbound()) {
+                owner = host;
+                break;
+            }
+        }
+        if (owner == null && actual.isEmpty() && !empty.isEmpty()) {
+            owner = empty.poll();
+        }
+        if (owner == null) {
+            listener.adopted(i, actual, remainingMemoryGB);
+            return;
+        }
+        Set<ContainerId> recoveredContainers = forget(owner);
+        empty.remove(owner);
+        listener.bound(owner, recoveredContainers, actual, remainingMemoryGB);
+        owner.bind(i);
+    }
+
+    // Must be called while holding this object's monitor.
+    private void loseUnbound() {
+        for (RecoveredInstance recovered : new ArrayList<RecoveredInstance>(containers.keySet())) {
+            Set<ContainerId> recoveredContainers = forget(recovered);
+            listener.lost(recovered, recoveredContainers);
+            recovered.markLost();
+        }
+        empty.clear();
+    }
+
+    // Must be called while holding this object's monitor.
+    private Set<ContainerId> forget(RecoveredInstance recovered) {
+        Set<ContainerId> recoveredContainers = containers.remove(recovered);
+        if (recoveredContainers == null) {
+            return new HashSet<ContainerId>();
+        }
+        for (ContainerId containerId : recoveredContainers) {
+            hosts.remove(containerId);
+        }
+        return recoveredContainers;
+    }
+}
@@ -0,0 +1,95 @@
+package com.databricks.manager;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stands in for an instance recovered from the state journal until the cloud provider's instance
+ * it describes has been found. The resource manager keeps using this object for its bookkeeping;
+ * the first call that needs the real instance finds it through the recovered fleet, and every
+ * call after that goes straight to it. If the instance turns out to no longer exist, it behaves
+ * like an instance that is full and has no containers.
+ */
+class RecoveredInstance implements Instance {
+
+    private final RecoveredFleet fleet;
+    private final long key;
+    // Memory not used by containers according to the journal.
+    private final double recoveredFreeGB;
+    // Set once by the fleet, under its monitor.
+    private volatile Instance instance;
+    private volatile boolean lost;
+
+    RecoveredInstance(RecoveredFleet fleet, long key, double recoveredFreeGB) {
+        this.fleet = fleet;
+        this.key = key;
+        this.recoveredFreeGB = recoveredFreeGB;
+    }
+
+    long getKey() {
+        return key;
+    }
+
+    double getRecoveredFreeGB() {
+        return recoveredFreeGB;
+    }
+
+    /**
+     * @return the cloud provider's instance, or null if it no longer exists.
+     */
+    Instance resolve() {
+        Instance i = instance;
+        if (i != null || lost) {
+            return i;
+        }
+        return fleet.resolve(this);
+    }
+
+    // Must be called while holding the fleet's monitor.
+    void bind(Instance instance) {
+        this.instance = instance;
+    }
+
+    // Must be called while holding the fleet's monitor.
+    void markLost() {
+        this.lost = true;
+    }
+
+    boolean isUnbound() {
+        return instance == null && !lost;
+    }
+
+    /**
+     * @return the cloud provider's instance behind i, which is i itself unless it was recovered,
+     *         or null if it no longer exists.
+     */
+    static Instance unwrap(Instance i) {
+        return i instanceof RecoveredInstance ? ((RecoveredInstance) i).resolve() : i;
+    }
+
+    public double getRemainingMemoryGB() {
+        Instance i = resolve();
+        return i == null ? 0 : i.getRemainingMemoryGB();
+    }
+
+    public List<ContainerId> getAllContainers() {
+        Instance i = resolve();
+        return i == null ? Collections.<ContainerId>emptyList() : i.getAllContainers();
+    }
+
+    public ContainerId placeContainer(double memoryGB) {
+        Instance i = resolve();
+        if (i == null) {
+            throw new IllegalStateException("Instance " + key + " no longer exists");
+        }
+        return i.placeContainer(memoryGB);
+    }
+
+    public void unplaceContainer(ContainerId containerId) {
+        Instance i = resolve();
+        if (i == null) {
+            throw new IllegalArgumentException("Container " + containerId + " does not exist");
+        }
+        i.unplaceContainer(containerId);
+    }
+}
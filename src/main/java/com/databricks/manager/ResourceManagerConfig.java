@@ -0,0 +1,339 @@
+package com.databricks.manager;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Optional settings for ResourceManagerImpl. Every setting starts out with a default that suits a
+ * fleet of around 10,000 instances, and setters return this config so they can be chained.
+ */
+public class ResourceManagerConfig {
+
+    // 0 starts at the maximum.
+    private int initialConcurrentInstanceRequests = 0;
+    private int maxConcurrentInstanceRequests = 64;
+    private int maxQueuedInstanceRequests = 10000;
+    private ThreadFactory provisioningThreadFactory = InstanceProvisioner.defaultThreadFactory();
+    private ExecutorService provisioningExecutor = null;
+    private PlacementPolicy.Factory placementPolicy = PlacementPolicies.BEST_FIT;
+    private File journalDirectory = null;
+    private long journalFlushIntervalMillis = 10;
+    private int journalSnapshotInterval = 100000;
+    private int reconciliationParallelism = 32;
+    private long reconciliationIntervalMillis = 0;
+    private int warmPoolSlots = 0;
+    private long warmPoolLeadTimeMillis = 0;
+    private long warmPoolIntervalMillis = 1000;
+    private long compactionIntervalMillis = 0;
+    private Tracer tracer = Tracer.NOOP;
+    private String jmxName = null;
+    private AdmissionPolicy admissionPolicy = null;
+    private boolean offHeapContainerIndex = false;
+    // Runs the warm pool instead of a thread of its own, see Simulator.
+    private ScheduledExecutorService timer = null;
+
+    // A config with the same settings, for the stripes of a StripedResourceManager.
+    ResourceManagerConfig copy() {
+        ResourceManagerConfig copy = new ResourceManagerConfig();
+        copy.initialConcurrentInstanceRequests = initialConcurrentInstanceRequests;
+        copy.maxConcurrentInstanceRequests = maxConcurrentInstanceRequests;
+        copy.maxQueuedInstanceRequests = maxQueuedInstanceRequests;
+        copy.provisioningThreadFactory = provisioningThreadFactory;
+        copy.provisioningExecutor = provisioningExecutor;
+        copy.placementPolicy = placementPolicy;
+        copy.journalDirectory = journalDirectory;
+        copy.journalFlushIntervalMillis = journalFlushIntervalMillis;
+        copy.journalSnapshotInterval = journalSnapshotInterval;
+        copy.reconciliationParallelism = reconciliationParallelism;
+        copy.reconciliationIntervalMillis = reconciliationIntervalMillis;
+        copy.warmPoolSlots = warmPoolSlots;
+        copy.warmPoolLeadTimeMillis = warmPoolLeadTimeMillis;
+        copy.warmPoolIntervalMillis = warmPoolIntervalMillis;
+        copy.compactionIntervalMillis = compactionIntervalMillis;
+        copy.tracer = tracer;
+        copy.jmxName = jmxName;
+        copy.admissionPolicy = admissionPolicy;
+        copy.offHeapContainerIndex = offHeapContainerIndex;
+        copy.timer = timer;
+        return copy;
+    }
+
+    public int getInitialConcurrentInstanceRequests() {
+        return initialConcurrentInstanceRequests > 0 ? initialConcurrentInstanceRequests : maxConcurrentInstanceRequests;
+    }
+
+    /**
+     * @param initialConcurrentInstanceRequests number of calls to CloudProvider.requestInstance
+     *                                          allowed to run at once to start out with. The limit
+     *                                          adapts to how the cloud provider copes from there,
+     *                                          see InstanceProvisioner. By default it starts at
+     *                                          maxConcurrentInstanceRequests, so that a placement
+     *                                          requests all the instances it needs at once and
+     *                                          the limit only shrinks once the provider throttles.
+     *                                          Setting it lower opts into slow start.
+     */
+    public ResourceManagerConfig setInitialConcurrentInstanceRequests(int initialConcurrentInstanceRequests) {
+        this.initialConcurrentInstanceRequests = initialConcurrentInstanceRequests;
+        return this;
+    }
+
+    public int getMaxConcurrentInstanceRequests() {
+        return maxConcurrentInstanceRequests;
+    }
+
+    /**
+     * @param maxConcurrentInstanceRequests maximum number of calls to CloudProvider.requestInstance
+     *                                      running at once.
+     */
+    public ResourceManagerConfig setMaxConcurrentInstanceRequests(int maxConcurrentInstanceRequests) {
+        this.maxConcurrentInstanceRequests = maxConcurrentInstanceRequests;
+        return this;
+    }
+
+    public int getMaxQueuedInstanceRequests() {
+        return maxQueuedInstanceRequests;
+    }
+
+    /**
+     * @param maxQueuedInstanceRequests maximum number of instance requests waiting for one of the
+     *                                  running ones to finish. Placements that need more instances
+     *                                  than that fail instead of queueing.
+     */
+    public ResourceManagerConfig setMaxQueuedInstanceRequests(int maxQueuedInstanceRequests) {
+        this.maxQueuedInstanceRequests = maxQueuedInstanceRequests;
+        return this;
+    }
+
+    public ThreadFactory getProvisioningThreadFactory() {
+        return provisioningThreadFactory;
+    }
+
+    /**
+     * @param provisioningThreadFactory creates the threads that call the cloud provider. On JDKs
+     *                                  with virtual threads, pass a virtual thread factory to
+     *                                  avoid parking a platform thread per instance request.
+     */
+    public ResourceManagerConfig setProvisioningThreadFactory(ThreadFactory provisioningThreadFactory) {
+        this.provisioningThreadFactory = provisioningThreadFactory;
+        return this;
+    }
+
+    public ExecutorService getProvisioningExecutor() {
+        return provisioningExecutor;
+    }
+
+    /**
+     * @param provisioningExecutor if not null, runs the calls to CloudProvider.requestInstance
+     *                             instead of threads from the provisioning thread factory. It is
+     *                             shut down with the resource manager.
+     */
+    public ResourceManagerConfig setProvisioningExecutor(ExecutorService provisioningExecutor) {
+        this.provisioningExecutor = provisioningExecutor;
+        return this;
+    }
+
+    public PlacementPolicy.Factory getPlacementPolicy() {
+        return placementPolicy;
+    }
+
+    /**
+     * @param placementPolicy decides which instances containers are placed on. Defaults to
+     *                        PlacementPolicies.BEST_FIT.
+     */
+    public ResourceManagerConfig setPlacementPolicy(PlacementPolicy.Factory placementPolicy) {
+        this.placementPolicy = placementPolicy;
+        return this;
+    }
+
+    public File getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * @param journalDirectory where the resource manager journals its state. When set, a restarted
+     *                         resource manager recovers from the journal instead of asking every
+     *                         instance for its containers. Disabled by default.
+     */
+    public ResourceManagerConfig setJournalDirectory(File journalDirectory) {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    public long getJournalFlushIntervalMillis() {
+        return journalFlushIntervalMillis;
+    }
+
+    /**
+     * @param journalFlushIntervalMillis how often journal records are written and fsynced. A crash
+     *                                   loses at most this much of the journal, which recovery
+     *                                   makes up for by checking the instances it is about.
+     */
+    public ResourceManagerConfig setJournalFlushIntervalMillis(long journalFlushIntervalMillis) {
+        this.journalFlushIntervalMillis = journalFlushIntervalMillis;
+        return this;
+    }
+
+    public int getJournalSnapshotInterval() {
+        return journalSnapshotInterval;
+    }
+
+    /**
+     * @param journalSnapshotInterval number of journal records after which the journal is
+     *                                compacted into a snapshot.
+     */
+    public ResourceManagerConfig setJournalSnapshotInterval(int journalSnapshotInterval) {
+        this.journalSnapshotInterval = journalSnapshotInterval;
+        return this;
+    }
+
+    public int getReconciliationParallelism() {
+        return reconciliationParallelism;
+    }
+
+    /**
+     * @param reconciliationParallelism number of instances checked at once when the resource
+     *                                  manager starts and when it looks for drift.
+     */
+    public ResourceManagerConfig setReconciliationParallelism(int reconciliationParallelism) {
+        this.reconciliationParallelism = reconciliationParallelism;
+        return this;
+    }
+
+    public long getReconciliationIntervalMillis() {
+        return reconciliationIntervalMillis;
+    }
+
+    /**
+     * @param reconciliationIntervalMillis how often instances are checked for drift from the
+     *                                     resource manager's bookkeeping, see
+     *                                     ResourceManagerImpl.reconcile. 0, the default, turns
+     *                                     it off; a manager that checks periodically should be
+     *                                     shut down once it is no longer used.
+     */
+    public ResourceManagerConfig setReconciliationIntervalMillis(long reconciliationIntervalMillis) {
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis;
+        return this;
+    }
+
+    public int getWarmPoolSlots() {
+        return warmPoolSlots;
+    }
+
+    /**
+     * @param warmPoolSlots number of free slots for default-sized containers to keep ready, by
+     *                      requesting instances ahead of need. 0 by default.
+     */
+    public ResourceManagerConfig setWarmPoolSlots(int warmPoolSlots) {
+        this.warmPoolSlots = warmPoolSlots;
+        return this;
+    }
+
+    public long getWarmPoolLeadTimeMillis() {
+        return warmPoolLeadTimeMillis;
+    }
+
+    /**
+     * @param warmPoolLeadTimeMillis how far ahead to keep slots ready for the containers expected
+     *                               from recent placement rates, about as long as an instance takes
+     *                               to boot. 0 by default, which only keeps warmPoolSlots ready.
+     */
+    public ResourceManagerConfig setWarmPoolLeadTimeMillis(long warmPoolLeadTimeMillis) {
+        this.warmPoolLeadTimeMillis = warmPoolLeadTimeMillis;
+        return this;
+    }
+
+    public long getWarmPoolIntervalMillis() {
+        return warmPoolIntervalMillis;
+    }
+
+    /**
+     * @param warmPoolIntervalMillis how often the placement rate is sampled and the warm pool is
+     *                               topped up.
+     */
+    public ResourceManagerConfig setWarmPoolIntervalMillis(long warmPoolIntervalMillis) {
+        this.warmPoolIntervalMillis = warmPoolIntervalMillis;
+        return this;
+    }
+
+    public long getCompactionIntervalMillis() {
+        return compactionIntervalMillis;
+    }
+
+    /**
+     * @param compactionIntervalMillis how often to plan how the fleet could be packed onto fewer
+     *                                 instances, see ResourceManagerImpl.planCompaction. 0 turns
+     *                                 it off, which is the default.
+     */
+    public ResourceManagerConfig setCompactionIntervalMillis(long compactionIntervalMillis) {
+        this.compactionIntervalMillis = compactionIntervalMillis;
+        return this;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * @param tracer receives a span for every placement, instance request and recovery. Traces
+     *               nothing by default.
+     */
+    public ResourceManagerConfig setTracer(Tracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+    public String getJmxName() {
+        return jmxName;
+    }
+
+    /**
+     * @param jmxName if not null, the resource manager's metrics are registered with the platform
+     *                MBean server as com.databricks.manager:type=ResourceManager,name=jmxName
+     *                until it is shut down, see ResourceManagerMXBean.
+     */
+    public ResourceManagerConfig setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+        return this;
+    }
+
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+
+    /**
+     * @param admissionPolicy if not null, placements that cannot be served from free capacity
+     *                        wait for their turn by tenant and priority instead of queueing
+     *                        instance requests in the order they came in, see AdmissionPolicy.
+     *                        Null, the default, serves every placement right away.
+     */
+    public ResourceManagerConfig setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        this.admissionPolicy = admissionPolicy;
+        return this;
+    }
+
+    public boolean isOffHeapContainerIndex() {
+        return offHeapContainerIndex;
+    }
+
+    /**
+     * @param offHeapContainerIndex whether the index from containers to their instances keeps its
+     *                              tables in direct buffers, so that live containers take up no
+     *                              heap and add nothing to garbage collection. Off by default, see
+     *                              ResourceManagerMetrics.getIndexHeapBytesPerContainer.
+     */
+    public ResourceManagerConfig setOffHeapContainerIndex(boolean offHeapContainerIndex) {
+        this.offHeapContainerIndex = offHeapContainerIndex;
+        return this;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    ResourceManagerConfig setTimer(ScheduledExecutorService timer) {
+        this.timer = timer;
+        return this;
+    }
+}
@@ -2,140 +2,1080 @@ package com.databricks.manager;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.concurrent.*;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
-import java.io.File;
-import java.io.FileWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import javax.management.ObjectName;
 
 /**
  * The resource manager should place and unplace containers onto instances. The resource manager
- * should take in a cloud provider, a fixed instance size, and a fixed container size.
+ * should take in a cloud provider, a fixed instance size, and a default container size. Requests
+ * may also mix containers of other sizes, which share the same fleet of instances.
+ *
+ * All bookkeeping is guarded by this object's monitor, which is only ever held for short,
+ * non-blocking critical sections. Calls to the cloud provider and to instances happen outside of
+ * it, so a caller waiting for new instances to boot never stalls callers that can be served from
+ * existing capacity.
  */
-public class ResourceManagerImpl implements ResourceManager {
+public class ResourceManagerImpl implements AsyncResourceManager {
 
     private CloudProvider provider;
+    private InstanceProvisioner provisioner;
     private double instanceSizeGB;
+    private long instanceSizeMB;
     private double containerSizeGB;
-    private HashMap<ContainerId, Instance> containerInstance;
-    private HashSet<Instance> freeInstances;
+    private long containerSizeMB;
+    // Read without holding the monitor, see getInstance.
+    private ContainerIndex containerInstance;
+    // Memory on each known instance that has not been reserved by a placement yet. Placement
+    // decisions are made from this alone, without asking instances, see MemoryMB.
+    private HashMap<Instance, Long> unreservedMemoryMB;
+    // Default-sized containers that fit into the unreserved memory, instance by instance. Read
+    // without holding the monitor, see getFreeSlots.
+    private volatile long freeSlots;
+    // Unreserved memory on instances that are not empty, see getStrandedMemoryFraction.
+    private long strandedMB;
+    // Instances the last compaction plan drains, which get no new placements.
+    private Set<Instance> draining = new LinkedHashSet<Instance>();
+    // Containers of each locality group on each instance, see getInstances.
+    private HashMap<String, HashMap<Instance, Integer>> groups = new HashMap<String, HashMap<Instance, Integer>>();
+    // The last compaction plan, null if there is none yet.
+    private volatile CompactionPlan compactionPlan;
+    // Indexes the instances with enough unreserved memory for at least one more container.
+    private PlacementPolicy placementPolicy;
+    // Instances requested from the cloud provider that have not been returned yet.
+    private LinkedHashSet<PendingInstance> pendingInstances;
+    // Null unless a journal directory was configured.
+    private StateJournal journal;
+    // Keys of the instances in the journal.
+    private HashMap<Instance, Long> instanceKeys;
+    // Finds the instances recovered from the journal, null if we did not recover from one.
+    private RecoveredFleet recoveredFleet;
+    // Checks instances against the bookkeeping, see reconcile.
+    private Reconciler reconciler;
+    // Completes once every instance that existed when we started is known.
+    private final CompletableFuture<Void> ready;
+    // Differences found by the last call to reconcile, guarded by reconcileLock.
+    private final Object reconcileLock = new Object();
+    private Map<ContainerId, Instance> extraSuspects = new HashMap<ContainerId, Instance>();
+    private Map<ContainerId, Instance> missingSuspects = new HashMap<ContainerId, Instance>();
+    private Set<Instance> unknownSuspects = new HashSet<Instance>();
+    private Map<Instance, Long> memorySuspects = new HashMap<Instance, Long>();
+    // Requests instances ahead of need, see topUpWarmPool.
+    private WarmPool warmPool;
+    // Null unless this is a stripe of a StripedResourceManager, see the constructor.
+    private final ConcurrentMap<Instance, ResourceManagerImpl> owners;
+    // Held while placing onto an instance and while measuring what unplacing containers of
+    // unknown size freed on it, see lockFor.
+    private final ConcurrentHashMap<Instance, Object> instanceLocks = new ConcurrentHashMap<Instance, Object>();
+    // Ends partial placements at their deadline.
+    private final ScheduledThreadPoolExecutor deadlines;
+    // Counters and latencies, see getMetrics.
+    private final ManagerMetrics metrics = new ManagerMetrics();
+    private final Tracer tracer;
+    // Null unless a JMX name was configured.
+    private ObjectName jmxName;
+    // Null unless an admission policy was configured.
+    private final AdmissionQueue<Slot> admission;
 
     /**
      * Constructor for the resource manager.
      *
      * @param provider the cloud provider that we request instances from.
      * @param instanceSizeGB the size of all instances that is provided by the cloud provider.
-     * @param containerSizeGB the size of all containers we want to place on instances.
+     * @param containerSizeGB the size of containers placed by placeContainers(int).
+     * @throws IllegalArgumentException if a container does not fit on an instance.
      */
     public ResourceManagerImpl(CloudProvider provider, double instanceSizeGB, double containerSizeGB) {
+        this(provider, instanceSizeGB, containerSizeGB, new ResourceManagerConfig());
+    }
+
+    /**
+     * Constructor for the resource manager.
+     *
+     * @param provider the cloud provider that we request instances from.
+     * @param instanceSizeGB the size of all instances that is provided by the cloud provider.
+     * @param containerSizeGB the size of containers placed by placeContainers(int).
+     * @param config optional settings.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    public ResourceManagerImpl(CloudProvider provider, double instanceSizeGB, double containerSizeGB,
+                               ResourceManagerConfig config) {
+        this(provider, instanceSizeGB, containerSizeGB, config, null, null, null, null);
+    }
+
+    /**
+     * Constructor for a resource manager that shares its provisioner, reconciler and container
+     * index with others, as the stripes of a StripedResourceManager do. Pass null for any of them
+     * to create its own.
+     *
+     * @param owners if not null, every instance this resource manager starts keeping track of is
+     *               added to it.
+     */
+    ResourceManagerImpl(CloudProvider provider, double instanceSizeGB, double containerSizeGB,
+                        ResourceManagerConfig config, InstanceProvisioner sharedProvisioner,
+                        Reconciler sharedReconciler, ContainerIndex sharedIndex,
+                        ConcurrentMap<Instance, ResourceManagerImpl> owners) {
+        if (containerSizeGB <= 0 || containerSizeGB > instanceSizeGB) {
+            throw new IllegalArgumentException("Container size " + containerSizeGB +
+                " GB does not fit on instances of size " + instanceSizeGB + " GB");
+        }
         this.provider = provider;
+        this.provisioner = sharedProvisioner != null ? sharedProvisioner : InstanceProvisioner.create(provider, config);
+        this.owners = owners;
+        this.tracer = config.getTracer();
         this.instanceSizeGB = instanceSizeGB;
+        this.instanceSizeMB = MemoryMB.ofFree(instanceSizeGB);
         this.containerSizeGB = containerSizeGB;
-        this.containerInstance = new HashMap<ContainerId, Instance>();
-        this.freeInstances = new HashSet<Instance>();
+        this.containerSizeMB = MemoryMB.ofContainer(containerSizeGB);
+        this.containerInstance = sharedIndex != null ? sharedIndex : new ContainerIndex(config.isOffHeapContainerIndex());
+        this.unreservedMemoryMB = new HashMap<Instance, Long>();
+        this.placementPolicy = config.getPlacementPolicy().create(instanceSizeGB, containerSizeGB);
+        this.pendingInstances = new LinkedHashSet<PendingInstance>();
+        this.instanceKeys = new HashMap<Instance, Long>();
+        if (config.getJournalDirectory() != null) {
+            try {
+                this.journal = new StateJournal(config.getJournalDirectory(),
+                    config.getJournalFlushIntervalMillis(), config.getJournalSnapshotInterval());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        this.reconciler = sharedReconciler != null ? sharedReconciler : new Reconciler(config.getReconciliationParallelism());
         Set<Instance> previousState = provider.getAllInstances();
-        if (previousState.size() > 0) {
-            restoreState(previousState);
+        final Span recovery = tracer.startSpan("recovery");
+        recovery.setAttribute("instances", previousState.size());
+        if (journal != null && !journal.getRecoveredState().isEmpty()) {
+            recovery.setAttribute("journal", 1);
+            recover(journal.getRecoveredState(), previousState);
+            final RecoveredFleet fleet = recoveredFleet;
+            this.ready = reconciler.scan(previousState, new Consumer<Instance>() {
+                public void accept(Instance i) {
+                    fleet.check(i);
+                }
+            }).thenRun(new Runnable() {
+                public void run() {
+                    try {
+                        fleet.finish();
+                    }
+                    catch (RuntimeException e) {
+                        //whatever is left is found when it is first used
+                        System.err.println("ERROR RECONCILING INSTANCE: " + e);
+                    }
+                }
+            });
+        }
+        else {
+            recovery.setAttribute("journal", 0);
+            this.ready = restoreState(previousState);
+        }
+        ready.whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void ignored, Throwable failure) {
+                recovery.end(failure);
+            }
+        });
+        if (config.getReconciliationIntervalMillis() > 0) {
+            reconciler.schedule(this, RECONCILE, config.getReconciliationIntervalMillis());
+        }
+        if (config.getCompactionIntervalMillis() > 0) {
+            reconciler.schedule(this, PLAN_COMPACTION, config.getCompactionIntervalMillis());
+        }
+        this.deadlines = PlacementFutures.deadlineTimer();
+        this.admission = config.getAdmissionPolicy() == null ? null :
+            new AdmissionQueue<Slot>(new AdmissionServer(), config.getAdmissionPolicy());
+        this.warmPool = new WarmPool(config.getWarmPoolSlots(), config.getWarmPoolLeadTimeMillis(),
+            config.getWarmPoolIntervalMillis(), config.getTimer());
+        if (warmPool.isEnabled()) {
+            warmPool.schedule(new Runnable() {
+                public void run() {
+                    topUpWarmPool();
+                }
+            });
+        }
+        if (config.getJmxName() != null) {
+            try {
+                this.jmxName = ManagerMetrics.register(config.getJmxName(), new Supplier<ResourceManagerMetrics>() {
+                    public ResourceManagerMetrics get() {
+                        return getMetrics();
+                    }
+                });
+            }
+            catch (IllegalArgumentException e) {
+                shutdown();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A container a placement asked for, and the future its caller waits on.
+     */
+    private static class Slot {
+        final double sizeGB;
+        final long sizeMB;
+        final CompletableFuture<ContainerId> future;
+        // The locality group of the placement and how many of its containers fit on an instance.
+        final String group;
+        final int maxPerInstance;
+
+        Slot(double sizeGB, String group, int maxPerInstance) {
+            this.sizeGB = sizeGB;
+            this.sizeMB = MemoryMB.ofContainer(sizeGB);
+            this.future = new CompletableFuture<ContainerId>();
+            this.group = group;
+            this.maxPerInstance = maxPerInstance;
         }
     }
 
-    private List<Instance> allocateInstances(int num) {
+    private static final Comparator<Slot> LARGEST_FIRST = new Comparator<Slot>() {
+        public int compare(Slot a, Slot b) {
+            return Long.compare(b.sizeMB, a.sizeMB);
+        }
+    };
+
+    // Periodic passes, static so that the reconciler's timer does not keep the manager reachable.
+    private static final Consumer<ResourceManagerImpl> RECONCILE = new Consumer<ResourceManagerImpl>() {
+        public void accept(ResourceManagerImpl manager) {
+            manager.reconcile();
+        }
+    };
+
+    private static final Consumer<ResourceManagerImpl> PLAN_COMPACTION = new Consumer<ResourceManagerImpl>() {
+        public void accept(ResourceManagerImpl manager) {
+            manager.planCompaction();
+        }
+    };
+
+    /**
+     * Memory reserved by a single placement call, both on instances we already have and on
+     * instances that are still being requested.
+     */
+    private static class Reservation {
+        final Map<Instance, List<Slot>> onInstances = new LinkedHashMap<Instance, List<Slot>>();
+        final Map<PendingInstance, List<Slot>> onPendingInstances = new LinkedHashMap<PendingInstance, List<Slot>>();
+        // Pending instances created by this reservation that still have to be requested.
+        final List<PendingInstance> toRequest = new ArrayList<PendingInstance>();
+
+        void onInstance(Instance i, List<Slot> slots) {
+            List<Slot> reserved = onInstances.get(i);
+            if (reserved == null) {
+                reserved = new ArrayList<Slot>();
+                onInstances.put(i, reserved);
+            }
+            reserved.addAll(slots);
+        }
+
+        void onPendingInstance(PendingInstance p, List<Slot> slots) {
+            List<Slot> claimed = onPendingInstances.get(p);
+            if (claimed == null) {
+                claimed = new ArrayList<Slot>();
+                onPendingInstances.put(p, claimed);
+            }
+            claimed.addAll(slots);
+        }
+
+        // Containers reserved on an instance, pending or not.
+        int reservedOn(Object instance) {
+            List<Slot> reserved = instance instanceof PendingInstance ?
+                onPendingInstances.get(instance) : onInstances.get(instance);
+            return reserved == null ? 0 : reserved.size();
+        }
+    }
+
+    private CompletableFuture<Void> requestInstances(List<PendingInstance> pending) {
+        List<CompletableFuture<Instance>> futures = new ArrayList<CompletableFuture<Instance>>(pending.size());
         //allocate Instances in parallel
-        Executor executor = Executors.newFixedThreadPool(num);
-        CompletionService<Instance> completionService = new ExecutorCompletionService<Instance>(executor);
-        for(int i =0; i<num; i++) {
-            completionService.submit(new Callable<Instance>() {
-                public Instance call() {
-                    return provider.requestInstance();
+        for (final PendingInstance p : pending) {
+            if (journal != null) {
+                journal.requested(p.getKey());
+            }
+            metrics.instancesRequested.increment();
+            final Span span = tracer.startSpan("provisioning");
+            provisioner.requestInstance().whenComplete(new BiConsumer<Instance, Throwable>() {
+                public void accept(Instance i, Throwable failure) {
+                    span.end(failure);
+                    if (failure != null) {
+                        metrics.instanceRequestsFailed.increment();
+                        abandon(p);
+                        p.getFuture().completeExceptionally(failure);
+                    }
+                    else {
+                        activate(p, i, i.getRemainingMemoryGB());
+                        p.getFuture().complete(i);
+                    }
+                    //an instance request can start again
+                    if (admission != null) {
+                        admission.dispatch();
+                    }
                 }
             });
+            futures.add(p.getFuture());
         }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
 
-        int received = 0;
-        List<Instance> instanceList = new ArrayList<Instance>();
-        while (received < num){
-            try{
-                Future<Instance> instanceFuture = completionService.take();
-                instanceList.add(instanceFuture.get());
+    /**
+     * Requests enough instances to bring the free slots for default-sized containers, on
+     * instances we have and on unclaimed pending instances, up to what the warm pool wants to keep
+     * ready. Nothing is requested until isReady(), since instances we have not looked at yet may
+     * have the room.
+     *
+     * @return a future that completes once the requested instances are up.
+     */
+    CompletableFuture<Void> topUpWarmPool() {
+        if (!ready.isDone()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<PendingInstance> toRequest = new ArrayList<PendingInstance>();
+        synchronized (this) {
+            long slots = freeSlots;
+            for (PendingInstance p : pendingInstances) {
+                slots += p.getUnclaimedMemoryMB() / containerSizeMB;
             }
-            catch (Exception e) {
-                // Do some logging
-                System.err.println("ERROR OCCURRED WITH INSTANCE FUTURE");
+            long perInstance = instanceSizeMB / containerSizeMB;
+            long missing = warmPool.getTargetSlots() - slots;
+            for (long x = 0; x < (missing + perInstance - 1) / perInstance; x++) {
+                PendingInstance p = new PendingInstance(instanceSizeMB, journal == null ? 0 : journal.nextKey());
+                pendingInstances.add(p);
+                toRequest.add(p);
             }
-            received++;
         }
-        return instanceList;
+        if (!toRequest.isEmpty()) {
+            warmPool.requested(toRequest.size());
+        }
+        return requestInstances(toRequest);
     }
 
-    private void restoreState (Set<Instance> previousState) {
-        for (Instance i : previousState) {
-            List<ContainerId> containerIds = i.getAllContainers();
-            for (ContainerId containerId : containerIds) {
-                this.containerInstance.put(containerId, i); 
+    /**
+     * Asks every instance for its containers in the background, indexing each instance as soon as
+     * it has answered.
+     *
+     * @return a future that completes once all instances are indexed.
+     */
+    private CompletableFuture<Void> restoreState (Set<Instance> previousState) {
+        return reconciler.scan(previousState, new Consumer<Instance>() {
+            public void accept(Instance i) {
+                restoreState(i);
             }
-            if (i.getRemainingMemoryGB() >= this.containerSizeGB) {
-                freeInstances.add(i);
+        });
+    }
+
+    private void restoreState(Instance i) {
+        List<ContainerId> containerIds = i.getAllContainers();
+        adopt(i, containerIds, i.getRemainingMemoryGB());
+    }
+
+    // Starts keeping track of an instance placed containers are already on.
+    private synchronized void adopt(Instance i, List<ContainerId> containerIds, double remainingMemoryGB) {
+        long key = 0;
+        if (journal != null) {
+            key = journal.nextKey();
+            instanceKeys.put(i, key);
+            journal.instanceAdded(key, remainingMemoryGB);
+        }
+        //before its containers, so that whoever finds one also finds who keeps track of it
+        setUnreservedMemory(i, MemoryMB.ofFree(remainingMemoryGB));
+        for (ContainerId containerId : containerIds) {
+            if (containerInstance.get(containerId) == null) {
+                this.containerInstance.put(containerId, new Placement(i, Placement.UNKNOWN_SIZE));
+                if (journal != null) {
+                    journal.placed(containerId, key, Placement.UNKNOWN_SIZE);
+                }
             }
         }
     }
 
     /**
-     * Places numContainers containers onto instances. If there are not enough resources with the
-     * instances we currently have, request from the cloud provider for more instances. This method
-     * should only return once all containers have been successfully placed. This method is
-     * thread-safe.
+     * Restores the state in the journal without calling a single instance. Each recovered
+     * instance stands in for its cloud provider instance until it is first used, and is checked
+     * against it then, see RecoveredFleet.
+     */
+    private synchronized void recover(StateJournal.State state, Set<Instance> instances) {
+        recoveredFleet = new RecoveredFleet(instances, new RecoveryListener());
+        Map<Long, RecoveredInstance> recovered = new HashMap<Long, RecoveredInstance>();
+        Map<RecoveredInstance, Set<ContainerId>> containers = new HashMap<RecoveredInstance, Set<ContainerId>>();
+        for (Map.Entry<Long, Double> i : state.freeMemoryGB.entrySet()) {
+            RecoveredInstance r = new RecoveredInstance(recoveredFleet, i.getKey(), i.getValue());
+            recovered.put(i.getKey(), r);
+            containers.put(r, new HashSet<ContainerId>());
+            instanceKeys.put(r, i.getKey());
+            setUnreservedMemory(r, MemoryMB.ofFree(i.getValue()));
+        }
+        for (Map.Entry<ContainerId, StateJournal.ContainerRecord> c : state.containers.entrySet()) {
+            RecoveredInstance r = recovered.get(c.getValue().instanceKey);
+            if (r != null) {
+                ContainerId containerId = c.getKey();
+                containerInstance.put(containerId, new Placement(r, c.getValue().sizeGB));
+                containers.get(r).add(containerId);
+            }
+        }
+        for (Map.Entry<RecoveredInstance, Set<ContainerId>> r : containers.entrySet()) {
+            recoveredFleet.add(r.getKey(), r.getValue());
+        }
+        //instance requests that were in flight, their instances are adopted when found
+        for (long key : state.outstandingRequests) {
+            journal.requestFailed(key);
+        }
+    }
+
+    /**
+     * Brings the bookkeeping in line with what recovered instances turn out to hold, for whatever
+     * happened after the last journal records that made it to disk.
+     */
+    private class RecoveryListener implements RecoveredFleet.Listener {
+
+        public void bound(RecoveredInstance r, Set<ContainerId> containers,
+                          List<ContainerId> actualContainers, double remainingMemoryGB) {
+            List<ContainerId> gone = new ArrayList<ContainerId>();
+            synchronized (ResourceManagerImpl.this) {
+                for (ContainerId containerId : actualContainers) {
+                    if (!containers.contains(containerId) && containerInstance.get(containerId) == null) {
+                        containerInstance.put(containerId, new Placement(r, Placement.UNKNOWN_SIZE));
+                        journal.placed(containerId, r.getKey(), Placement.UNKNOWN_SIZE);
+                    }
+                }
+                Set<ContainerId> actual = new HashSet<ContainerId>(actualContainers);
+                for (ContainerId containerId : containers) {
+                    if (!actual.contains(containerId) && containerInstance.remove(containerId) != null) {
+                        journal.unplaced(containerId, 0);
+                        gone.add(containerId);
+                    }
+                }
+                journal.instanceAdded(r.getKey(), remainingMemoryGB);
+                //keep whatever was reserved on it since we recovered
+                long drift = MemoryMB.ofFree(remainingMemoryGB) - MemoryMB.ofFree(r.getRecoveredFreeGB());
+                setUnreservedMemory(r, unreservedMemoryMB.get(r) + drift);
+            }
+            released(gone);
+        }
+
+        public void adopted(Instance i, List<ContainerId> containers, double remainingMemoryGB) {
+            adopt(i, containers, remainingMemoryGB);
+        }
+
+        public void lost(RecoveredInstance r, Set<ContainerId> containers) {
+            synchronized (ResourceManagerImpl.this) {
+                for (ContainerId containerId : containers) {
+                    containerInstance.remove(containerId);
+                }
+                Iterator<HashMap<Instance, Integer>> counts = groups.values().iterator();
+                while (counts.hasNext()) {
+                    HashMap<Instance, Integer> onInstances = counts.next();
+                    if (onInstances.remove(r) != null && onInstances.isEmpty()) {
+                        counts.remove();
+                    }
+                }
+                setUnreservedMemory(r, 0);
+                instanceKeys.remove(r);
+                journal.instanceLost(r.getKey());
+            }
+            released(containers);
+        }
+    }
+
+    /**
+     * Reserves room for one container per slot, largest containers first. Existing instances are
+     * filled first, then instances other callers are already waiting for, and only the rest is
+     * covered by new instance requests. The new instances are sized by first-fit decreasing over
+     * all pending instances. Everything is taken out of the shared pools right away, so the
+     * containers can be placed outside of the monitor without racing other callers.
+     */
+    private Reservation reserve(List<Slot> slots) {
+        Reservation reservation = new Reservation();
+        List<Slot> sorted = new ArrayList<Slot>(slots);
+        Collections.sort(sorted, LARGEST_FIRST);
+        long requested = System.nanoTime();
+        synchronized (this) {
+            long acquired = System.nanoTime();
+            int start = 0;
+            while (start < sorted.size()) {
+                long sizeMB = sorted.get(start).sizeMB;
+                int end = start + 1;
+                while (end < sorted.size() && sorted.get(end).sizeMB == sizeMB) {
+                    end++;
+                }
+                reserve(sorted.subList(start, end), sizeMB, reservation);
+                start = end;
+            }
+            metrics.locked(requested, acquired);
+        }
+        return reservation;
+    }
+
+    // Reserves room for slots that all have the same size and belong to the same placement. Must
+    // be called while holding this object's monitor.
+    private void reserve(List<Slot> slots, long sizeMB, Reservation reservation) {
+        int next = 0;
+        String group = slots.get(0).group;
+        int maxPerInstance = group == null ? Integer.MAX_VALUE : slots.get(0).maxPerInstance;
+        if (group != null && groups.containsKey(group)) {
+            //the instances the group is on already come first
+            for (Map.Entry<Instance, Integer> g : groups.get(group).entrySet()) {
+                Instance i = g.getKey();
+                Long unreserved = unreservedMemoryMB.get(i);
+                if (next == slots.size())
+                    break;
+                if (unreserved == null || draining.contains(i))
+                    continue;
+                int fits = (int) Math.min(slots.size() - next, unreserved / sizeMB);
+                fits = Math.min(fits, maxPerInstance - g.getValue() - reservation.reservedOn(i));
+                if (fits > 0) {
+                    reservation.onInstance(i, slots.subList(next, next + fits));
+                    next += fits;
+                    setUnreservedMemory(i, unreserved - fits * sizeMB);
+                }
+            }
+        }
+
+        //instances the group has no more room on are hidden from the policy meanwhile
+        List<Instance> full = new ArrayList<Instance>();
+        while (next < slots.size()) {
+            double sizeGB = MemoryMB.toGB(sizeMB);
+            Instance i = group == null ? placementPolicy.select(sizeGB, slots.size() - next) :
+                placementPolicy.selectForGroup(sizeGB, slots.size() - next);
+            if (i == null)
+                break;
+            long unreserved = unreservedMemoryMB.get(i);
+            int fits = (int) Math.min(slots.size() - next, unreserved / sizeMB);
+            if (fits == 0)
+                break;
+            fits = Math.min(fits, maxPerInstance - groupCount(group, i) - reservation.reservedOn(i));
+            if (fits <= 0) {
+                placementPolicy.remove(i, MemoryMB.toGB(unreserved));
+                full.add(i);
+                continue;
+            }
+            reservation.onInstance(i, slots.subList(next, next + fits));
+            next += fits;
+            setUnreservedMemory(i, unreserved - fits * sizeMB);
+        }
+        for (Instance i : full) {
+            placementPolicy.add(i, MemoryMB.toGB(unreservedMemoryMB.get(i)));
+        }
+
+        //draining instances are only used before anything new is provisioned
+        for (Instance i : new ArrayList<Instance>(draining)) {
+            if (next == slots.size())
+                break;
+            long unreserved = unreservedMemoryMB.get(i);
+            int fits = (int) Math.min(slots.size() - next, unreserved / sizeMB);
+            fits = Math.min(fits, maxPerInstance - groupCount(group, i) - reservation.reservedOn(i));
+            if (fits > 0) {
+                reservation.onInstance(i, slots.subList(next, next + fits));
+                next += fits;
+                setUnreservedMemory(i, unreserved - fits * sizeMB);
+            }
+        }
+
+        //pending instances are in the order they were requested, so this is first fit
+        for (PendingInstance p : pendingInstances) {
+            if (next == slots.size())
+                break;
+            int fits = (int) Math.min(slots.size() - next, p.getUnclaimedMemoryMB() / sizeMB);
+            fits = Math.min(fits, maxPerInstance - reservation.reservedOn(p));
+            if (fits > 0) {
+                reservation.onPendingInstance(p, claim(p, slots.subList(next, next + fits)));
+                next += fits;
+            }
+        }
+
+        int containersPerInstance = (int) Math.min(this.instanceSizeMB / sizeMB, maxPerInstance);
+        while (next < slots.size()) {
+            PendingInstance p = new PendingInstance(instanceSizeMB, journal == null ? 0 : journal.nextKey());
+            int fits = Math.min(slots.size() - next, containersPerInstance);
+            pendingInstances.add(p);
+            reservation.onPendingInstance(p, claim(p, slots.subList(next, next + fits)));
+            reservation.toRequest.add(p);
+            next += fits;
+        }
+    }
+
+    // Must be called while holding this object's monitor.
+    private List<Slot> claim(PendingInstance p, List<Slot> slots) {
+        for (Slot slot : slots) {
+            p.claim(slot.future, slot.sizeMB);
+        }
+        return slots;
+    }
+
+    /**
+     * Reserves room for one container per slot and completes each slot once its container is
+     * placed. Slots on existing instances are completed right away, the rest as their instances
+     * come up. A slot cancelled while its instance is still pending gives its claim back at once.
      *
-     * @param numContainers number of containers to place.
-     * @return a list of containerIds which are IDs that are globally unique across all instances.
+     * Slots that need new instances before isReady() wait for it without blocking the caller.
+     *
+     * @return false if any slot has to wait for an instance that is still pending or for isReady().
+     */
+    private boolean fill(final List<Slot> slots) {
+        Reservation reservation = reserve(slots);
+        if (!reservation.toRequest.isEmpty() && !ready.isDone()) {
+            //instances we have not looked at yet may have the room, find them before asking for more
+            unreserve(reservation);
+            ready.whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(Void ignored, Throwable failure) {
+                    if (failure != null) {
+                        for (Slot slot : slots) {
+                            slot.future.completeExceptionally(failure);
+                        }
+                        return;
+                    }
+                    fill(slots);
+                }
+            });
+            return false;
+        }
+        requestInstances(reservation.toRequest);
+
+        List<Slot> refused = new ArrayList<Slot>();
+        for (Map.Entry<Instance, List<Slot>> r : reservation.onInstances.entrySet()) {
+            refused.addAll(placeOn(r.getKey(), r.getValue()));
+        }
+        for (Map.Entry<PendingInstance, List<Slot>> claim : reservation.onPendingInstances.entrySet()) {
+            final PendingInstance p = claim.getKey();
+            final List<Slot> claimed = claim.getValue();
+            for (final Slot slot : claimed) {
+                slot.future.whenComplete(new BiConsumer<ContainerId, Throwable>() {
+                    public void accept(ContainerId containerId, Throwable failure) {
+                        if (slot.future.isCancelled()) {
+                            releaseClaim(p, slot);
+                        }
+                    }
+                });
+            }
+            p.getFuture().whenComplete(new BiConsumer<Instance, Throwable>() {
+                public void accept(Instance i, Throwable failure) {
+                    if (failure != null) {
+                        for (Slot slot : claimed) {
+                            slot.future.completeExceptionally(failure);
+                        }
+                        return;
+                    }
+                    //claims are final once the instance is active
+                    List<Slot> live = new ArrayList<Slot>();
+                    for (Slot slot : claimed) {
+                        if (p.isClaimed(slot.future)) {
+                            live.add(slot);
+                        }
+                    }
+                    List<Slot> refused = placeOn(i, live);
+                    if (!refused.isEmpty()) {
+                        fill(refused);
+                    }
+                }
+            });
+        }
+        if (!refused.isEmpty()) {
+            fill(refused);
+        }
+        return reservation.onPendingInstances.isEmpty();
+    }
+
+    // Gives back everything a reservation holds. It must not have been acted on yet.
+    private synchronized void unreserve(Reservation reservation) {
+        for (Map.Entry<Instance, List<Slot>> r : reservation.onInstances.entrySet()) {
+            long reservedMB = 0;
+            for (Slot slot : r.getValue()) {
+                reservedMB += slot.sizeMB;
+            }
+            setUnreservedMemory(r.getKey(), unreservedMemoryMB.get(r.getKey()) + reservedMB);
+        }
+        for (Map.Entry<PendingInstance, List<Slot>> claim : reservation.onPendingInstances.entrySet()) {
+            for (Slot slot : claim.getValue()) {
+                claim.getKey().release(slot.future, slot.sizeMB);
+            }
+        }
+        pendingInstances.removeAll(reservation.toRequest);
+    }
+
+    private synchronized void releaseClaim(PendingInstance p, Slot slot) {
+        if (pendingInstances.contains(p)) {
+            p.release(slot.future, slot.sizeMB);
+        }
+    }
+
+    /**
+     * Places a container for each slot on an instance we reserved memory on. Memory held for
+     * slots that were cancelled in the meantime goes back to the free pool. If the instance
+     * refuses a container, it is taken out of the free pool until one of its containers is
+     * unplaced. Slots are only completed once the bookkeeping is done, so a caller never sees a
+     * container before the manager does.
+     *
+     * @return the slots the instance refused, which still need a container.
      */
-    public synchronized List<ContainerId> placeContainers(int numContainers) {
-        List<ContainerId> containerIds = new ArrayList<ContainerId>();
+    private List<Slot> placeOn(Instance i, List<Slot> slots) {
+        List<Slot> refused = new ArrayList<Slot>();
+        Map<Slot, ContainerId> placed = new LinkedHashMap<Slot, ContainerId>();
+        long releasedMB = 0;
+        synchronized (lockFor(i)) {
+            for (Slot slot : slots) {
+                if (!refused.isEmpty()) {
+                    refused.add(slot);
+                }
+                else if (slot.future.isDone()) {
+                    releasedMB += slot.sizeMB;
+                }
+                else {
+                    try {
+                        placed.put(slot, i.placeContainer(slot.sizeGB));
+                    }
+                    catch (IllegalStateException e) {
+                        refused.add(slot);
+                    }
+                }
+            }
+        }
 
-        //iterate through free instances and allocate containers
-        Iterator<Instance> it = freeInstances.iterator();
-        while (it.hasNext() && containerIds.size() < numContainers) {
-            Instance i = it.next();
-            //add as much as possible to current free instance
-            while (i.getRemainingMemoryGB() >= containerSizeGB && containerIds.size() < numContainers) {
-                ContainerId newContainer = i.placeContainer(containerSizeGB);
-                containerIds.add(newContainer);
-                containerInstance.put(newContainer, i);
+        //the containers of one size share a placement, the index only keeps one of each
+        Map<Double, Placement> shared = new HashMap<Double, Placement>();
+        for (Map.Entry<Slot, ContainerId> p : placed.entrySet()) {
+            Placement placement = shared.get(p.getKey().sizeGB);
+            if (placement == null) {
+                placement = new Placement(i, p.getKey().sizeGB, p.getKey().group);
+                shared.put(p.getKey().sizeGB, placement);
             }
+            containerInstance.put(p.getValue(), placement);
+        }
+        long requested = System.nanoTime();
+        synchronized (this) {
+            long acquired = System.nanoTime();
+            for (Slot slot : placed.keySet()) {
+                countInGroup(slot.group, i, 1);
+            }
+            if (journal != null && !placed.isEmpty()) {
+                long key = instanceKeys.get(i);
+                for (Map.Entry<Slot, ContainerId> p : placed.entrySet()) {
+                    journal.placed(p.getValue(), key, p.getKey().sizeGB);
+                }
+            }
+            if (!refused.isEmpty()) {
+                setUnreservedMemory(i, 0);
+            }
+            else if (releasedMB > 0) {
+                setUnreservedMemory(i, unreservedMemoryMB.get(i) + releasedMB);
+            }
+            metrics.locked(requested, acquired);
+        }
+
+        for (Map.Entry<Slot, ContainerId> p : placed.entrySet()) {
+            if (admission != null) {
+                //its tenant holds it before anyone can unplace it
+                admission.placed(p.getKey(), p.getValue());
+            }
+            if (!p.getKey().future.complete(p.getValue())) {
+                //cancelled while we were placing it
+                unplaceContainer(p.getValue());
+            }
+        }
+        return refused;
+    }
 
-            //remove instance if it's full
-            if (i.getRemainingMemoryGB() < containerSizeGB) {
-                it.remove();
+    // The lock that keeps our own placements off an instance while we measure how much memory
+    // unplacing containers of unknown size freed on it. The Instance contract says nothing about
+    // how instances lock themselves, so we do not rely on it.
+    private Object lockFor(Instance i) {
+        Object lock = instanceLocks.get(i);
+        if (lock == null) {
+            Object created = new Object();
+            lock = instanceLocks.putIfAbsent(i, created);
+            if (lock == null) {
+                lock = created;
             }
         }
+        return lock;
+    }
 
-        if (containerIds.size() == numContainers)
-            return containerIds;
+    /**
+     * Moves a pending instance that the cloud provider returned into the free pool. Whatever was
+     * not claimed while it was pending becomes free memory on the instance.
+     */
+    private synchronized void activate(PendingInstance p, Instance i, double remainingMemoryGB) {
+        pendingInstances.remove(p);
+        if (journal != null) {
+            instanceKeys.put(i, p.getKey());
+            journal.requestCompleted(p.getKey(), remainingMemoryGB);
+        }
+        long claimed = instanceSizeMB - p.getUnclaimedMemoryMB();
+        setUnreservedMemory(i, MemoryMB.ofFree(remainingMemoryGB) - claimed);
+    }
 
+    private synchronized void abandon(PendingInstance p) {
+        pendingInstances.remove(p);
+        if (journal != null) {
+            journal.requestFailed(p.getKey());
+        }
+    }
 
-        int instancesNeeded = (int) Math.ceil((numContainers - containerIds.size()) * (this.containerSizeGB / this.instanceSizeGB));
-        List<Instance> instanceList = allocateInstances(instancesNeeded);
+    // Must be called while holding this object's monitor.
+    private void setUnreservedMemory(Instance i, long memoryMB) {
+        Long previous = unreservedMemoryMB.put(i, memoryMB);
+        if (previous != null) {
+            unindex(i, previous);
+        }
+        else {
+            placementPolicy.join(i);
+            if (owners != null) {
+                owners.put(i, this);
+            }
+        }
+        if (memoryMB >= instanceSizeMB) {
+            //drained, it can take placements again
+            draining.remove(i);
+        }
+        index(i, memoryMB);
+    }
 
-        for (Instance i : instanceList) {
-            //add as many containers as possible to new instance
-            while (i.getRemainingMemoryGB() >= containerSizeGB && containerIds.size() < numContainers) {
-                ContainerId newContainer = i.placeContainer(containerSizeGB);
-                containerIds.add(newContainer);
-                containerInstance.put(newContainer, i);
+    // Makes an instance's unreserved memory available to placements. Must be called while
+    // holding this object's monitor.
+    private void index(Instance i, long memoryMB) {
+        if (memoryMB < instanceSizeMB) {
+            strandedMB += memoryMB;
+        }
+        if (memoryMB > 0) {
+            //draining instances are left out of the policy but still count as free
+            if (!draining.contains(i)) {
+                placementPolicy.add(i, MemoryMB.toGB(memoryMB));
             }
+            freeSlots += memoryMB / containerSizeMB;
+        }
+    }
 
-            if (i.getRemainingMemoryGB() >= containerSizeGB) {
-                freeInstances.add(i);
+    // Undoes index. Must be called while holding this object's monitor.
+    private void unindex(Instance i, long memoryMB) {
+        if (memoryMB < instanceSizeMB) {
+            strandedMB -= memoryMB;
+        }
+        if (memoryMB > 0) {
+            if (!draining.contains(i)) {
+                placementPolicy.remove(i, MemoryMB.toGB(memoryMB));
             }
+            freeSlots -= memoryMB / containerSizeMB;
         }
+    }
+
+    /**
+     * Places numContainers containers onto instances. If there are not enough resources with the
+     * instances we currently have or are already waiting for, request from the cloud provider for
+     * more instances. This method returns once all containers have been placed, or throws like
+     * placeContainers(PlacementRequest) if any of them cannot be. This method is thread-safe, and
+     * callers that fit into existing capacity are never held up by callers waiting for new
+     * instances.
+     *
+     * @param numContainers number of containers to place.
+     * @return a list of containerIds which are IDs that are globally unique across all instances.
+     */
+    public List<ContainerId> placeContainers(int numContainers) {
+        return placeContainers(defaultRequest(numContainers));
+    }
+
+    /**
+     * Places the containers of a request onto instances, which may have different sizes. This
+     * method returns once all containers have been placed. If any of them cannot be placed, the
+     * containers that were placed for it are unplaced again and the failure is thrown instead,
+     * such as a RejectedExecutionException once too many instance requests are queued, after
+     * shutdown or over an admission quota. This method is thread-safe.
+     *
+     * @param request the containers to place.
+     * @return a list of containerIds in the order the containers were added to the request.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    public List<ContainerId> placeContainers(PlacementRequest request) {
+        return PlacementFutures.join(placeContainersIncrementally(request), this);
+    }
+
+    /**
+     * Places numContainers containers onto instances. The returned future completes once all
+     * containers have been placed. If any of them cannot be placed, it completes exceptionally
+     * and the containers that were placed for it are unplaced again. Cancelling it gives back
+     * everything it holds. This method is thread-safe and never waits for the cloud provider.
+     *
+     * @param numContainers number of containers to place.
+     * @return a future for the list of containerIds which are IDs that are globally unique across
+     *         all instances.
+     */
+    public CompletableFuture<List<ContainerId>> placeContainersAsync(int numContainers) {
+        return placeContainersAsync(defaultRequest(numContainers));
+    }
 
-        return containerIds;
+    /**
+     * Places the containers of a request onto instances, which may have different sizes. The
+     * returned future completes once all containers have been placed. If any of them cannot be
+     * placed, it completes exceptionally and the containers that were placed for it are unplaced
+     * again. Cancelling it gives back everything it holds. This method is thread-safe and never
+     * waits for the cloud provider.
+     *
+     * @param request the containers to place.
+     * @return a future for the list of containerIds in the order the containers were added to the
+     *         request.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    public CompletableFuture<List<ContainerId>> placeContainersAsync(PlacementRequest request) {
+        return PlacementFutures.all(placeContainersIncrementally(request), this);
     }
 
+    /**
+     * Places the containers of a request, settling for fewer of them if the request allows it.
+     * Returns once all containers have been placed, or once the request's deadline has passed with
+     * at least its minimum number of containers placed. Containers still pending then keep
+     * waiting for their instance, see PlacementResult. This method is thread-safe.
+     *
+     * @param request the containers to place, with an optional deadline and minimum.
+     * @return what was placed and what is still pending.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     * @throws TimeoutException if fewer than the minimum were placed by the deadline, in which
+     *                          case the containers placed for the request are unplaced again.
+     * @throws InterruptedException if interrupted while waiting, in which case everything placed
+     *                              for the request is given back.
+     */
+    public PlacementResult placeContainersPartially(PlacementRequest request)
+        throws TimeoutException, InterruptedException {
+        return PlacementFutures.await(placeContainersPartiallyAsync(request));
+    }
+
+    /**
+     * Places the containers of a request, settling for fewer of them if the request allows it.
+     * The returned future completes once all containers have been placed, or once the request's
+     * deadline has passed with at least its minimum number of containers placed. Containers
+     * still pending then keep waiting for their instance, see PlacementResult. If the minimum
+     * cannot be reached, the future completes exceptionally and the containers that were placed
+     * for it are unplaced again. Cancelling it gives back everything it holds. This method is
+     * thread-safe and never waits for the cloud provider.
+     *
+     * @param request the containers to place, with an optional deadline and minimum.
+     * @return a future for what was placed and what is still pending.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    public CompletableFuture<PlacementResult> placeContainersPartiallyAsync(PlacementRequest request) {
+        return PlacementFutures.partial(placeContainersIncrementally(request), request, deadlines, this);
+    }
+
+    /**
+     * Places numContainers containers onto instances, one future per container. Containers that
+     * fit on existing instances are placed before this method returns, the others as soon as
+     * their instance comes up. Cancelling a future that has not completed yet gives back the
+     * memory held for its container. This method is thread-safe and never waits for the cloud
+     * provider.
+     *
+     * @param numContainers number of containers to place.
+     * @return one future per container, each completing with its globally unique containerId.
+     */
+    public List<CompletableFuture<ContainerId>> placeContainersIncrementally(int numContainers) {
+        return placeContainersIncrementally(defaultRequest(numContainers));
+    }
+
+    /**
+     * Places the containers of a request onto instances, one future per container. Containers that
+     * fit on existing instances are placed before this method returns, the others as soon as
+     * their instance comes up. Cancelling a future that has not completed yet gives back the
+     * memory held for its container. This method is thread-safe and never waits for the cloud
+     * provider.
+     *
+     * @param request the containers to place.
+     * @return one future per container, in the order the containers were added to the request.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    public List<CompletableFuture<ContainerId>> placeContainersIncrementally(PlacementRequest request) {
+        List<Slot> slots = new ArrayList<Slot>(request.getNumContainers());
+        List<CompletableFuture<ContainerId>> futures = new ArrayList<CompletableFuture<ContainerId>>(request.getNumContainers());
+        for (double sizeGB : request.getContainerSizesGB()) {
+            if (sizeGB > instanceSizeGB) {
+                throw new IllegalArgumentException("Container size " + sizeGB +
+                    " GB does not fit on instances of size " + instanceSizeGB + " GB");
+            }
+            Slot slot = new Slot(sizeGB, request.getGroup(), request.getMaxContainersPerInstance());
+            slots.add(slot);
+            futures.add(slot.future);
+        }
+        if (!slots.isEmpty()) {
+            long start = System.nanoTime();
+            final Span span = tracer.startSpan("placement");
+            span.setAttribute("containers", slots.size());
+            if (admission != null) {
+                final int numContainers = slots.size();
+                admission.submit(request.getTenant(), request.getPriority(), slots, new Consumer<Boolean>() {
+                    public void accept(Boolean warm) {
+                        span.setAttribute("warm", warm ? 1 : 0);
+                        warmPool.placed(numContainers, warm);
+                    }
+                });
+            }
+            else {
+                boolean warm = fill(slots);
+                span.setAttribute("warm", warm ? 1 : 0);
+                warmPool.placed(slots.size(), warm);
+            }
+            settled(slots, start, span);
+        }
+        return Collections.unmodifiableList(futures);
+    }
+
+    // Records a placement once every one of its slots has completed, one way or another.
+    private void settled(final List<Slot> slots, final long startNanos, final Span span) {
+        for (Slot slot : slots) {
+            if (!slot.future.isDone()) {
+                CompletableFuture<?>[] futures = new CompletableFuture<?>[slots.size()];
+                for (int x = 0; x < futures.length; x++) {
+                    futures[x] = slots.get(x).future;
+                }
+                CompletableFuture.allOf(futures).whenComplete(new BiConsumer<Void, Throwable>() {
+                    public void accept(Void ignored, Throwable failure) {
+                        settled(slots, startNanos, span);
+                    }
+                });
+                return;
+            }
+        }
+        int failed = 0;
+        Throwable failure = null;
+        for (Slot slot : slots) {
+            if (slot.future.isCompletedExceptionally()) {
+                failed++;
+                if (failure == null) {
+                    try {
+                        slot.future.join();
+                    }
+                    catch (CompletionException e) {
+                        failure = e.getCause();
+                    }
+                    catch (CancellationException e) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        metrics.placed(startNanos, slots.size() - failed, failed);
+        span.end(failure);
+    }
+
+    private PlacementRequest defaultRequest(int numContainers) {
+        return new PlacementRequest().addContainers(numContainers, containerSizeGB);
+    }
+
+
     /**
      * Get the instance that the input container is placed on. Note that this instance returned
-     * should be the same Instance object that is returned by the cloud provider.
+     * should be the same Instance object that is returned by the cloud provider. This method is
+     * thread-safe and never takes a lock, except to find the instances recovered from the journal
+     * the first time they are looked up. Containers on instances that are known already are
+     * served while the others are still being looked at after a restart; other lookups wait
+     * until that is done.
      *
      * @param containerId the container id.
      * @return this instance should be referencing the same object that is returned by the
@@ -145,6 +1085,18 @@ public class ResourceManagerImpl implements ResourceManager {
      */
     public Instance getInstance(ContainerId containerId) {
         Instance i = containerInstance.get(containerId);
+        if (i == null && !ready.isDone()) {
+            //it may be on an instance we have not looked at yet
+            awaitReady();
+            i = containerInstance.get(containerId);
+        }
+        if (i instanceof RecoveredInstance) {
+            i = ((RecoveredInstance) i).resolve();
+            if (containerInstance.get(containerId) == null) {
+                //checking the instance showed the container is gone
+                i = null;
+            }
+        }
         if (i != null) {
             return i;
         }
@@ -160,14 +1112,710 @@ public class ResourceManagerImpl implements ResourceManager {
      * @throws IllegalArgumentException if this container does not exist (i.e., is not placed on an
      *                                  instance).
      */
-    public synchronized void unplaceContainer(ContainerId containerId) {
-        Instance i = containerInstance.get(containerId);
-        if (i != null) {
-            i.unplaceContainer(containerId);
-            freeInstances.add(i);
+    public void unplaceContainer(ContainerId containerId) {
+        try {
+            unplaceContainerAsync(containerId).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Unplace a container from its host instance. This method is thread-safe. Unplacing never
+     * involves the cloud provider, so the returned future is already complete, unless the container
+     * is not known before isReady(), in which case it completes once the instances have been looked
+     * at. The calling thread is never blocked.
+     *
+     * @param containerId the container id.
+     * @return a future that completes once the container is unplaced, or completes exceptionally
+     *         with an IllegalArgumentException if this container does not exist (i.e., is not
+     *         placed on an instance).
+     */
+    public CompletableFuture<Void> unplaceContainerAsync(final ContainerId containerId) {
+        //removing first makes sure concurrent unplaces of the same container only free it once
+        Placement placement = containerInstance.remove(containerId);
+        if (placement == null && !ready.isDone()) {
+            //it may be on an instance we have not looked at yet
+            return ready.thenCompose(new Function<Void, CompletableFuture<Void>>() {
+                public CompletableFuture<Void> apply(Void ignored) {
+                    return unplace(containerId, containerInstance.remove(containerId));
+                }
+            });
+        }
+        return unplace(containerId, placement);
+    }
+
+    // Unplaces a container that has been removed from containerInstance already.
+    private CompletableFuture<Void> unplace(ContainerId containerId, Placement placement) {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        Instance i;
+        double sizeGB;
+        long sizeMB;
+        try {
+            if (placement == null) {
+                throw new IllegalArgumentException("Container " + containerId + " does not exist");
+            }
+            i = placement.getInstance();
+            sizeGB = placement.getSizeGB();
+            sizeMB = MemoryMB.ofContainer(sizeGB);
+            if (Double.isNaN(sizeGB)) {
+                //placed before we started, so only the instance knows its size
+                Instance host = RecoveredInstance.unwrap(i);
+                if (host == null) {
+                    throw new IllegalArgumentException("Container " + containerId + " does not exist");
+                }
+                synchronized (lockFor(i)) {
+                    double before = host.getRemainingMemoryGB();
+                    host.unplaceContainer(containerId);
+                    double after = host.getRemainingMemoryGB();
+                    sizeGB = after - before;
+                    sizeMB = MemoryMB.ofFree(after) - MemoryMB.ofFree(before);
+                }
+            }
+            else {
+                i.unplaceContainer(containerId);
+            }
+        }
+        catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        long requested = System.nanoTime();
+        synchronized (this) {
+            long acquired = System.nanoTime();
+            if (journal != null) {
+                journal.unplaced(containerId, sizeGB);
+            }
+            countInGroup(placement.getGroup(), i, -1);
+            setUnreservedMemory(i, unreservedMemoryMB.get(i) + sizeMB);
+            metrics.locked(requested, acquired);
+        }
+        metrics.containersUnplaced.increment();
+        unplaced(Collections.singleton(containerId));
+        result.complete(null);
+        return result;
+    }
+
+    /**
+     * Unplaces many containers at once, such as all containers of a cluster that is shut down.
+     * Containers are grouped by instance, each instance is locked once for all of its containers
+     * and the free memory of each instance is updated once. This method is thread-safe.
+     *
+     * @param containerIds the container ids.
+     * @return what happened to each container, in the order they were given.
+     */
+    public Map<ContainerId, UnplaceResult> unplaceContainers(Collection<ContainerId> containerIds) {
+        Map<ContainerId, UnplaceResult> results = new LinkedHashMap<ContainerId, UnplaceResult>();
+        Map<Instance, Map<ContainerId, Placement>> byInstance = new LinkedHashMap<Instance, Map<ContainerId, Placement>>();
+        List<ContainerId> unknown = new ArrayList<ContainerId>();
+        for (ContainerId containerId : containerIds) {
+            if (!results.containsKey(containerId)) {
+                results.put(containerId, UnplaceResult.NOT_PLACED);
+                //removing first makes sure concurrent unplaces of the same container only free it once
+                Placement placement = containerInstance.remove(containerId);
+                if (placement == null) {
+                    unknown.add(containerId);
+                }
+                else {
+                    group(byInstance, containerId, placement);
+                }
+            }
+        }
+        if (!unknown.isEmpty() && !ready.isDone()) {
+            awaitReady();
+            for (ContainerId containerId : unknown) {
+                Placement placement = containerInstance.remove(containerId);
+                if (placement != null) {
+                    group(byInstance, containerId, placement);
+                }
+            }
+        }
+
+        Map<Instance, Long> freedMB = new LinkedHashMap<Instance, Long>();
+        Map<ContainerId, Double> journaledGB = new LinkedHashMap<ContainerId, Double>();
+        for (Map.Entry<Instance, Map<ContainerId, Placement>> group : byInstance.entrySet()) {
+            Instance host = RecoveredInstance.unwrap(group.getKey());
+            if (host == null) {
+                continue;
+            }
+            double knownGB = 0;
+            long knownMB = 0;
+            boolean measure = false;
+            double measuredGB = 0;
+            ContainerId firstUnknown = null;
+            synchronized (lockFor(group.getKey())) {
+                double before = 0;
+                for (Placement placement : group.getValue().values()) {
+                    measure |= Double.isNaN(placement.getSizeGB());
+                }
+                if (measure) {
+                    before = host.getRemainingMemoryGB();
+                }
+                for (Map.Entry<ContainerId, Placement> c : group.getValue().entrySet()) {
+                    try {
+                        host.unplaceContainer(c.getKey());
+                    }
+                    catch (IllegalArgumentException e) {
+                        continue;
+                    }
+                    catch (RuntimeException e) {
+                        containerInstance.put(c.getKey(), c.getValue());
+                        results.put(c.getKey(), UnplaceResult.FAILED);
+                        continue;
+                    }
+                    results.put(c.getKey(), UnplaceResult.UNPLACED);
+                    double sizeGB = c.getValue().getSizeGB();
+                    if (Double.isNaN(sizeGB)) {
+                        sizeGB = 0;
+                        firstUnknown = firstUnknown == null ? c.getKey() : firstUnknown;
+                    }
+                    knownGB += sizeGB;
+                    knownMB += MemoryMB.ofContainer(sizeGB);
+                    journaledGB.put(c.getKey(), sizeGB);
+                }
+                if (measure) {
+                    measuredGB = host.getRemainingMemoryGB() - before;
+                }
+            }
+            long unknownMB = 0;
+            if (firstUnknown != null) {
+                //the journal only needs the total that was freed on the instance
+                journaledGB.put(firstUnknown, measuredGB - knownGB);
+                unknownMB = MemoryMB.ofFree(measuredGB - knownGB);
+            }
+            freedMB.put(group.getKey(), knownMB + unknownMB);
+        }
+
+        long requested = System.nanoTime();
+        synchronized (this) {
+            long acquired = System.nanoTime();
+            if (journal != null) {
+                for (Map.Entry<ContainerId, Double> c : journaledGB.entrySet()) {
+                    journal.unplaced(c.getKey(), c.getValue());
+                }
+            }
+            for (Map.Entry<Instance, Long> i : freedMB.entrySet()) {
+                setUnreservedMemory(i.getKey(), unreservedMemoryMB.get(i.getKey()) + i.getValue());
+            }
+            for (Map.Entry<Instance, Map<ContainerId, Placement>> group : byInstance.entrySet()) {
+                for (Map.Entry<ContainerId, Placement> c : group.getValue().entrySet()) {
+                    if (results.get(c.getKey()) == UnplaceResult.UNPLACED) {
+                        countInGroup(c.getValue().getGroup(), group.getKey(), -1);
+                    }
+                }
+            }
+            metrics.locked(requested, acquired);
+        }
+        //one entry per container that was unplaced
+        metrics.containersUnplaced.add(journaledGB.size());
+        List<ContainerId> unplaced = new ArrayList<ContainerId>();
+        for (Map.Entry<ContainerId, UnplaceResult> r : results.entrySet()) {
+            if (r.getValue() == UnplaceResult.UNPLACED) {
+                unplaced.add(r.getKey());
+            }
+        }
+        unplaced(unplaced);
+        return results;
+    }
+
+    // Gives the quota of containers that are gone back to their tenants, however they went. Must
+    // not be called while holding this object's monitor, as it may serve waiting placements.
+    private void unplaced(Collection<ContainerId> containerIds) {
+        if (admission != null) {
+            for (ContainerId containerId : containerIds) {
+                admission.unplaced(containerId);
+            }
+        }
+    }
+
+    // Like unplaced, for the recovery listener, which is called while the recovered fleet's monitor
+    // is held. Waiting placements are served on another thread so that none of them waits for it.
+    private void released(Collection<ContainerId> containerIds) {
+        if (admission == null) {
+            return;
+        }
+        boolean released = false;
+        for (ContainerId containerId : containerIds) {
+            released |= admission.released(containerId);
+        }
+        if (released) {
+            try {
+                deadlines.execute(new Runnable() {
+                    public void run() {
+                        admission.dispatch();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                //shut down, nothing new is served
+            }
+        }
+    }
+
+    private static void group(Map<Instance, Map<ContainerId, Placement>> byInstance, ContainerId containerId,
+                              Placement placement) {
+        Map<ContainerId, Placement> onInstance = byInstance.get(placement.getInstance());
+        if (onInstance == null) {
+            onInstance = new LinkedHashMap<ContainerId, Placement>();
+            byInstance.put(placement.getInstance(), onInstance);
+        }
+        onInstance.put(containerId, placement);
+    }
+
+    /**
+     * @return the number of default-sized containers that fit into the unreserved memory, without
+     *         taking the monitor. Only good for estimates, it may be out of date by the time it is
+     *         used.
+     */
+    long getFreeSlots() {
+        return freeSlots;
+    }
+
+    /**
+     * @return the number of default-sized containers that fit into the memory of pending
+     *         instances nobody has claimed yet.
+     */
+    synchronized long getUnclaimedSlots() {
+        long slots = 0;
+        for (PendingInstance p : pendingInstances) {
+            slots += p.getUnclaimedMemoryMB() / containerSizeMB;
+        }
+        return slots;
+    }
+
+    /**
+     * Gets the instances the containers of a locality group are placed on, see
+     * PlacementRequest.setGroup. Groups are not journaled, so containers placed before a restart
+     * belong to no group. This method is thread-safe.
+     *
+     * @param group the locality group.
+     * @return the instances, which is empty if the group has no containers.
+     */
+    public Set<Instance> getInstances(String group) {
+        List<Instance> found = new ArrayList<Instance>();
+        synchronized (this) {
+            if (groups.containsKey(group)) {
+                found.addAll(groups.get(group).keySet());
+            }
+        }
+        Set<Instance> instances = new HashSet<Instance>();
+        for (Instance i : found) {
+            instances.add(i instanceof RecoveredInstance ? ((RecoveredInstance) i).resolve() : i);
+        }
+        return instances;
+    }
+
+    // Must be called while holding this object's monitor.
+    private int groupCount(String group, Instance i) {
+        HashMap<Instance, Integer> counts = group == null ? null : groups.get(group);
+        Integer count = counts == null ? null : counts.get(i);
+        return count == null ? 0 : count;
+    }
+
+    // Must be called while holding this object's monitor.
+    private void countInGroup(String group, Instance i, int delta) {
+        if (group == null) {
+            return;
+        }
+        HashMap<Instance, Integer> counts = groups.get(group);
+        if (counts == null) {
+            counts = new HashMap<Instance, Integer>();
+            groups.put(group, counts);
+        }
+        int count = groupCount(group, i) + delta;
+        if (count == 0) {
+            counts.remove(i);
+            if (counts.isEmpty()) {
+                groups.remove(group);
+            }
         }
         else {
-            throw new IllegalArgumentException("Container " + containerId + " does not exist");
+            counts.put(i, count);
+        }
+    }
+
+    /**
+     * Serves the placements an admission queue lets through.
+     */
+    private class AdmissionServer implements AdmissionQueue.Server<Slot> {
+
+        public CompletableFuture<ContainerId> future(Slot slot) {
+            return slot.future;
+        }
+
+        public long getFreeSlots() {
+            return freeSlots;
+        }
+
+        public long getCapacitySlots() {
+            //the provisioner has a monitor of its own, so ask it before taking ours
+            long startable = Math.max(0, provisioner.getConcurrencyLimit() - provisioner.getOutstandingRequests());
+            long slots = startable * getSlotsPerInstance();
+            synchronized (ResourceManagerImpl.this) {
+                slots += freeSlots;
+                for (PendingInstance p : pendingInstances) {
+                    slots += p.getUnclaimedMemoryMB() / containerSizeMB;
+                }
+            }
+            return slots;
+        }
+
+        public long getSlotsPerInstance() {
+            return instanceSizeMB / containerSizeMB;
+        }
+
+        public boolean serve(List<Slot> slots) {
+            return fill(slots);
+        }
+    }
+
+    /**
+     * Plans how the containers could be moved so that the fleet fits on fewer instances, see
+     * CompactionPlanner. From now on until the next plan, new placements stay off the instances
+     * the plan drains unless nothing else has room, so those empty out as their containers are
+     * unplaced even if nobody moves them. Runs periodically if a compaction interval is
+     * configured. Waits until isReady(). This method is thread-safe.
+     *
+     * @return the plan, whose instances are those returned by the cloud provider.
+     */
+    public CompactionPlan planCompaction() {
+        awaitReady();
+        Map<Instance, Map<ContainerId, Double>> containers = containerInstance.sizesByInstance();
+        Map<Instance, Long> unreserved;
+        double stranded;
+        synchronized (this) {
+            unreserved = new HashMap<Instance, Long>(unreservedMemoryMB);
+            stranded = getStrandedMemoryFraction();
+        }
+        CompactionPlan plan = new CompactionPlanner(instanceSizeMB).plan(unreserved, containers, stranded);
+        synchronized (this) {
+            Set<Instance> drain = new HashSet<Instance>(plan.getDrainedInstances());
+            for (Instance i : drain) {
+                Long memoryMB = unreservedMemoryMB.get(i);
+                if (memoryMB != null && !draining.contains(i)) {
+                    unindex(i, memoryMB);
+                    draining.add(i);
+                    index(i, memoryMB);
+                }
+            }
+            for (Instance i : new ArrayList<Instance>(draining)) {
+                if (!drain.contains(i)) {
+                    long memoryMB = unreservedMemoryMB.get(i);
+                    unindex(i, memoryMB);
+                    draining.remove(i);
+                    index(i, memoryMB);
+                }
+            }
+        }
+
+        List<CompactionPlan.Migration> migrations = new ArrayList<CompactionPlan.Migration>();
+        for (CompactionPlan.Migration m : plan.getMigrations()) {
+            migrations.add(new CompactionPlan.Migration(m.getContainerId(), RecoveredInstance.unwrap(m.getFrom()),
+                RecoveredInstance.unwrap(m.getTo()), m.getSizeGB()));
+        }
+        List<Instance> drained = new ArrayList<Instance>();
+        for (Instance i : plan.getDrainedInstances()) {
+            drained.add(RecoveredInstance.unwrap(i));
+        }
+        plan = new CompactionPlan(migrations, drained, stranded);
+        compactionPlan = plan;
+        return plan;
+    }
+
+    /**
+     * @return the last plan made by planCompaction, or null if there is none yet.
+     */
+    public CompactionPlan getCompactionPlan() {
+        return compactionPlan;
+    }
+
+    /**
+     * @return the fraction of fleet memory that is free but stranded on instances that also host
+     *         containers, so that it costs as much as used memory but only fits what is small
+     *         enough. Empty instances do not count. This method is thread-safe and takes
+     *         constant time.
+     */
+    public synchronized double getStrandedMemoryFraction() {
+        long fleetMB = unreservedMemoryMB.size() * instanceSizeMB;
+        return fleetMB == 0 ? 0 : (double) strandedMB / fleetMB;
+    }
+
+    /**
+     * @return how long calls to CloudProvider.requestInstance took.
+     */
+    public LatencyHistogram getInstanceRequestLatency() {
+        return provisioner.getLatencyHistogram();
+    }
+
+    /**
+     * @return the number of calls to CloudProvider.requestInstance currently allowed to run at
+     *         once, which adapts to how the cloud provider copes, see InstanceProvisioner.
+     */
+    public int getInstanceRequestConcurrency() {
+        return provisioner.getConcurrencyLimit();
+    }
+
+    /**
+     * @return how often placements were served from free capacity and what the warm pool is
+     *         doing, see ResourceManagerConfig.setWarmPoolSlots. Placements are counted whether
+     *         or not the warm pool is enabled.
+     */
+    public WarmPoolStats getWarmPoolStats() {
+        return warmPool.getStats();
+    }
+
+    /**
+     * @return the counters, gauges and latencies of this resource manager as of now. Counting the
+     *         instances and their memory holds the monitor for time linear in the number of
+     *         instances, so this is meant to be scraped every few seconds, not called per
+     *         placement. This method is thread-safe.
+     */
+    public ResourceManagerMetrics getMetrics() {
+        long instances;
+        long pending;
+        long waiting = 0;
+        long unreservedMB = 0;
+        synchronized (this) {
+            instances = unreservedMemoryMB.size();
+            pending = pendingInstances.size();
+            for (PendingInstance p : pendingInstances) {
+                waiting += p.getNumClaims();
+            }
+            for (long memoryMB : unreservedMemoryMB.values()) {
+                unreservedMB += Math.min(memoryMB, instanceSizeMB);
+            }
+        }
+        double utilization = instances == 0 ? 0 : 1 - (double) unreservedMB / (instances * instanceSizeMB);
+        return new ResourceManagerMetrics(metrics, provisioner, containerInstance, instances, pending, freeSlots, utilization, waiting);
+    }
+
+    /**
+     * @return true once every instance that existed when this resource manager started is known.
+     *         Until then, lookups and unplacements of containers on other instances and
+     *         placements that need new instances wait for it.
+     */
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    /**
+     * @return a future that completes once isReady() is true.
+     */
+    public CompletableFuture<Void> whenReady() {
+        return ready.thenApply(new Function<Void, Void>() {
+            public Void apply(Void ignored) {
+                return null;
+            }
+        });
+    }
+
+    // Waits until isReady, helping to find the instances recovered from the journal.
+    private void awaitReady() {
+        if (recoveredFleet != null) {
+            recoveredFleet.finish();
+        }
+        ready.join();
+    }
+
+    /**
+     * Checks every instance against the bookkeeping and repairs differences: containers the
+     * bookkeeping is missing are added, containers that are gone from their instance are removed
+     * and free memory that differs from what the instance reports is corrected. Containers on
+     * their way onto or off an instance look like differences for a moment, so only differences
+     * that were also found by the previous call are repaired.
+     * Likewise, instances the cloud provider has that we do not know about are adopted once they
+     * have been seen twice. Runs periodically unless the reconciliation interval is 0, and does
+     * nothing until isReady(). This method is thread-safe.
+     *
+     * @return the number of containers and instances that were repaired.
+     */
+    public int reconcile() {
+        if (!ready.isDone()) {
+            return 0;
+        }
+        synchronized (reconcileLock) {
+            final Map<Instance, Set<ContainerId>> indexed = containerInstance.byInstance();
+            Set<Instance> known;
+            synchronized (this) {
+                known = new HashSet<Instance>(unreservedMemoryMB.keySet());
+            }
+            Set<Instance> hosts = new HashSet<Instance>();
+            for (Instance i : known) {
+                hosts.add(RecoveredInstance.unwrap(i));
+            }
+            Set<Instance> unknown = new HashSet<Instance>(provider.getAllInstances());
+            unknown.removeAll(hosts);
+
+            final Map<ContainerId, Instance> extra = new ConcurrentHashMap<ContainerId, Instance>();
+            final Map<ContainerId, Instance> missing = new ConcurrentHashMap<ContainerId, Instance>();
+            final Map<Instance, Long> remainingMB = new ConcurrentHashMap<Instance, Long>();
+            reconciler.scan(known, new Consumer<Instance>() {
+                public void accept(Instance i) {
+                    Instance host = RecoveredInstance.unwrap(i);
+                    if (host == null) {
+                        return;
+                    }
+                    Set<ContainerId> actual = new HashSet<ContainerId>(host.getAllContainers());
+                    remainingMB.put(i, MemoryMB.ofFree(host.getRemainingMemoryGB()));
+                    Set<ContainerId> expected = indexed.get(i);
+                    if (expected == null) {
+                        expected = Collections.emptySet();
+                    }
+                    for (ContainerId containerId : actual) {
+                        if (!expected.contains(containerId)) {
+                            extra.put(containerId, i);
+                        }
+                    }
+                    for (ContainerId containerId : expected) {
+                        if (!actual.contains(containerId)) {
+                            missing.put(containerId, i);
+                        }
+                    }
+                }
+            }).join();
+
+            Set<Instance> adoptees = new HashSet<Instance>(unknown);
+            adoptees.retainAll(unknownSuspects);
+            unknown.removeAll(adoptees);
+            unknownSuspects = unknown;
+            Map<ContainerId, Instance> confirmedExtra = confirmed(extraSuspects, extra);
+            Map<ContainerId, Instance> confirmedMissing = confirmed(missingSuspects, missing);
+            List<ContainerId> gone = new ArrayList<ContainerId>();
+            final AtomicInteger repaired = new AtomicInteger(repair(confirmedExtra, confirmedMissing, gone));
+            unplaced(gone);
+            extraSuspects = extra;
+            missingSuspects = missing;
+            //memory read before those repairs no longer matches the model, look again next time
+            for (Instance i : confirmedExtra.values()) {
+                remainingMB.remove(i);
+            }
+            for (Instance i : confirmedMissing.values()) {
+                remainingMB.remove(i);
+            }
+            repaired.addAndGet(repairMemory(remainingMB, indexed));
+            reconciler.scan(adoptees, new Consumer<Instance>() {
+                public void accept(Instance i) {
+                    restoreState(i);
+                    repaired.incrementAndGet();
+                }
+            }).join();
+
+            metrics.driftRepaired.add(repaired.get());
+            return repaired.get();
+        }
+    }
+
+    /**
+     * Corrects the unreserved memory of instances that differ from the memory they report by the
+     * same amount as last time. Each container may account for up to a megabyte of rounding, which
+     * is not counted as a difference. Must be called while holding reconcileLock.
+     */
+    private synchronized int repairMemory(Map<Instance, Long> remainingMB, Map<Instance, Set<ContainerId>> indexed) {
+        Map<Instance, Long> drift = new HashMap<Instance, Long>();
+        int repaired = 0;
+        for (Map.Entry<Instance, Long> i : remainingMB.entrySet()) {
+            Long unreserved = unreservedMemoryMB.get(i.getKey());
+            Set<ContainerId> containers = indexed.get(i.getKey());
+            int rounding = containers == null ? 0 : containers.size();
+            if (unreserved == null || Math.abs(i.getValue() - unreserved) <= rounding) {
+                continue;
+            }
+            long difference = i.getValue() - unreserved;
+            if (memorySuspects.containsKey(i.getKey()) && memorySuspects.get(i.getKey()) == difference) {
+                setUnreservedMemory(i.getKey(), i.getValue());
+                repaired++;
+            }
+            else {
+                drift.put(i.getKey(), difference);
+            }
+        }
+        memorySuspects = drift;
+        return repaired;
+    }
+
+    // Differences found now that were also found last time.
+    private static Map<ContainerId, Instance> confirmed(Map<ContainerId, Instance> previous,
+                                                        Map<ContainerId, Instance> current) {
+        Map<ContainerId, Instance> confirmed = new HashMap<ContainerId, Instance>();
+        for (Map.Entry<ContainerId, Instance> c : current.entrySet()) {
+            if (previous.get(c.getKey()) == c.getValue()) {
+                confirmed.put(c.getKey(), c.getValue());
+            }
+        }
+        return confirmed;
+    }
+
+    // Adds the containers it removes to gone.
+    private synchronized int repair(Map<ContainerId, Instance> extra, Map<ContainerId, Instance> missing,
+                                    List<ContainerId> gone) {
+        int repaired = 0;
+        for (Map.Entry<ContainerId, Instance> c : extra.entrySet()) {
+            Instance i = c.getValue();
+            if (containerInstance.get(c.getKey()) == null && unreservedMemoryMB.containsKey(i)) {
+                //its memory is unaccounted for, the instance refuses placements that do not fit
+                containerInstance.put(c.getKey(), new Placement(i, Placement.UNKNOWN_SIZE));
+                if (journal != null) {
+                    journal.placed(c.getKey(), instanceKeys.get(i), Placement.UNKNOWN_SIZE);
+                }
+                repaired++;
+            }
+        }
+        for (Map.Entry<ContainerId, Instance> c : missing.entrySet()) {
+            Instance i = c.getValue();
+            Placement placement = containerInstance.getPlacement(c.getKey());
+            if (placement != null && placement.getInstance() == i && containerInstance.remove(c.getKey(), placement)) {
+                countInGroup(placement.getGroup(), i, -1);
+                double sizeGB = placement.getSizeGB();
+                if (!Double.isNaN(sizeGB)) {
+                    setUnreservedMemory(i, unreservedMemoryMB.get(i) + MemoryMB.ofContainer(sizeGB));
+                }
+                if (journal != null) {
+                    journal.unplaced(c.getKey(), Double.isNaN(sizeGB) ? 0 : sizeGB);
+                }
+                gone.add(c.getKey());
+                repaired++;
+            }
+        }
+        return repaired;
+    }
+
+    /**
+     * Stops requesting new instances. Instance requests that are already in flight still complete
+     * and their containers are placed, but placements that need more instances fail from now on.
+     */
+    public void shutdown() {
+        provisioner.shutdown();
+        reconciler.shutdown();
+        warmPool.shutdown();
+        //deadlines that are already set still pass
+        deadlines.shutdown();
+        if (jmxName != null) {
+            ManagerMetrics.unregister(jmxName);
+        }
+    }
+
+    /**
+     * Blocks until all instance requests have completed after a shutdown, or the timeout elapses.
+     * Once they have, the journal is flushed and closed.
+     *
+     * @return true if all instance requests completed.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!provisioner.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
+        return true;
     }
 }
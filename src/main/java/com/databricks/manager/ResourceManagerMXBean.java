@@ -0,0 +1,116 @@
+package com.databricks.manager;
+
+/**
+ * What a resource manager reports over JMX, see ResourceManagerConfig.setJmxName. Attributes are
+ * read from a ResourceManagerMetrics snapshot that is at most a second old, so the attributes
+ * read by one scrape agree with each other. Counters count from when the resource manager was
+ * created, latencies are over the same span of time.
+ */
+public interface ResourceManagerMXBean {
+
+    /**
+     * @return the number of calls that placed containers, however many containers each asked for.
+     */
+    long getPlacements();
+
+    long getContainersPlaced();
+
+    /**
+     * @return the number of containers that could not be placed, including cancelled ones.
+     */
+    long getContainersFailed();
+
+    long getContainersUnplaced();
+
+    /**
+     * @return the number of instances requested from the cloud provider, for placements and for
+     *         the warm pool.
+     */
+    long getInstancesRequested();
+
+    long getInstanceRequestsFailed();
+
+    /**
+     * @return the number of containers and instances that reconciliation found to differ from
+     *         the bookkeeping and repaired, see ResourceManagerImpl.reconcile.
+     */
+    long getDriftRepaired();
+
+    /**
+     * @return the number of instances that are kept track of.
+     */
+    long getInstances();
+
+    /**
+     * @return the number of instances requested from the cloud provider that have not been
+     *         returned yet.
+     */
+    long getPendingInstances();
+
+    /**
+     * @return the number of default-sized containers that fit into the memory no placement holds.
+     */
+    long getFreeSlots();
+
+    /**
+     * @return the fraction of the memory of the instances kept track of that placements hold.
+     */
+    double getUtilization();
+
+    /**
+     * @return the number of containers waiting for a pending instance.
+     */
+    long getWaitingContainers();
+
+    /**
+     * @return the number of placed containers the resource manager keeps track of. Stripes of a
+     *         StripedResourceManager share their index, so each of them reports all of it.
+     */
+    long getContainers();
+
+    /**
+     * @return an estimate of the heap the index of placed containers takes up, per container,
+     *         see ResourceManagerConfig.setOffHeapContainerIndex.
+     */
+    double getIndexHeapBytesPerContainer();
+
+    /**
+     * @return the number of instance requests waiting for the concurrency limit to let them run.
+     */
+    long getQueuedInstanceRequests();
+
+    int getInstanceRequestConcurrency();
+
+    /**
+     * @return the median time from a placement call until all of its containers were placed or
+     *         had failed.
+     */
+    long getPlacementLatencyP50Millis();
+
+    long getPlacementLatencyP99Millis();
+
+    long getPlacementLatencyMaxMillis();
+
+    /**
+     * @return the median time a call to CloudProvider.requestInstance took.
+     */
+    long getInstanceRequestLatencyP50Millis();
+
+    long getInstanceRequestLatencyP99Millis();
+
+    long getInstanceRequestLatencyMaxMillis();
+
+    /**
+     * @return the 99th percentile of how long placements and unplacements waited for the
+     *         resource manager's monitor.
+     */
+    long getLockWaitP99Micros();
+
+    /**
+     * @return the 99th percentile of how long placements and unplacements held the resource
+     *         manager's monitor.
+     */
+    long getLockHoldP99Micros();
+
+    long getLockHoldMaxMicros();
+}
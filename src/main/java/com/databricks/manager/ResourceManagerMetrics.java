@@ -0,0 +1,175 @@
+package com.databricks.manager;
+
+/**
+ * The counters, gauges and latencies of a resource manager, as of the moment they were taken, see
+ * ResourceManagerImpl.getMetrics.
+ */
+public class ResourceManagerMetrics implements ResourceManagerMXBean {
+
+    private final long placements;
+    private final long containersPlaced;
+    private final long containersFailed;
+    private final long containersUnplaced;
+    private final long instancesRequested;
+    private final long instanceRequestsFailed;
+    private final long driftRepaired;
+    private final long instances;
+    private final long pendingInstances;
+    private final long freeSlots;
+    private final double utilization;
+    private final long waitingContainers;
+    private final long containers;
+    private final double indexHeapBytesPerContainer;
+    private final long queuedInstanceRequests;
+    private final int instanceRequestConcurrency;
+    private final long placementLatencyP50Millis;
+    private final long placementLatencyP99Millis;
+    private final long placementLatencyMaxMillis;
+    private final long instanceRequestLatencyP50Millis;
+    private final long instanceRequestLatencyP99Millis;
+    private final long instanceRequestLatencyMaxMillis;
+    private final long lockWaitP99Micros;
+    private final long lockHoldP99Micros;
+    private final long lockHoldMaxMicros;
+
+    ResourceManagerMetrics(ManagerMetrics metrics, InstanceProvisioner provisioner, ContainerIndex index,
+                           long instances, long pendingInstances, long freeSlots, double utilization,
+                           long waitingContainers) {
+        this.placements = metrics.placements.sum();
+        this.containersPlaced = metrics.containersPlaced.sum();
+        this.containersFailed = metrics.containersFailed.sum();
+        this.containersUnplaced = metrics.containersUnplaced.sum();
+        this.instancesRequested = metrics.instancesRequested.sum();
+        this.instanceRequestsFailed = metrics.instanceRequestsFailed.sum();
+        this.driftRepaired = metrics.driftRepaired.sum();
+        this.instances = instances;
+        this.pendingInstances = pendingInstances;
+        this.freeSlots = freeSlots;
+        this.utilization = utilization;
+        this.waitingContainers = waitingContainers;
+        this.containers = index.size();
+        this.indexHeapBytesPerContainer = (double) index.getHeapBytes() / Math.max(1, containers);
+        this.queuedInstanceRequests = provisioner.getQueuedRequests();
+        this.instanceRequestConcurrency = provisioner.getConcurrencyLimit();
+        this.placementLatencyP50Millis = metrics.placementMillis.getPercentileMillis(50);
+        this.placementLatencyP99Millis = metrics.placementMillis.getPercentileMillis(99);
+        this.placementLatencyMaxMillis = metrics.placementMillis.getMaxMillis();
+        LatencyHistogram instanceRequests = provisioner.getLatencyHistogram();
+        this.instanceRequestLatencyP50Millis = instanceRequests.getPercentileMillis(50);
+        this.instanceRequestLatencyP99Millis = instanceRequests.getPercentileMillis(99);
+        this.instanceRequestLatencyMaxMillis = instanceRequests.getMaxMillis();
+        //these histograms count microseconds
+        this.lockWaitP99Micros = metrics.lockWaitMicros.getPercentileMillis(99);
+        this.lockHoldP99Micros = metrics.lockHoldMicros.getPercentileMillis(99);
+        this.lockHoldMaxMicros = metrics.lockHoldMicros.getMaxMillis();
+    }
+
+    public long getPlacements() {
+        return placements;
+    }
+
+    public long getContainersPlaced() {
+        return containersPlaced;
+    }
+
+    public long getContainersFailed() {
+        return containersFailed;
+    }
+
+    public long getContainersUnplaced() {
+        return containersUnplaced;
+    }
+
+    public long getInstancesRequested() {
+        return instancesRequested;
+    }
+
+    public long getInstanceRequestsFailed() {
+        return instanceRequestsFailed;
+    }
+
+    public long getDriftRepaired() {
+        return driftRepaired;
+    }
+
+    public long getInstances() {
+        return instances;
+    }
+
+    public long getPendingInstances() {
+        return pendingInstances;
+    }
+
+    public long getFreeSlots() {
+        return freeSlots;
+    }
+
+    public double getUtilization() {
+        return utilization;
+    }
+
+    public long getWaitingContainers() {
+        return waitingContainers;
+    }
+
+    public long getContainers() {
+        return containers;
+    }
+
+    public double getIndexHeapBytesPerContainer() {
+        return indexHeapBytesPerContainer;
+    }
+
+    public long getQueuedInstanceRequests() {
+        return queuedInstanceRequests;
+    }
+
+    public int getInstanceRequestConcurrency() {
+        return instanceRequestConcurrency;
+    }
+
+    public long getPlacementLatencyP50Millis() {
+        return placementLatencyP50Millis;
+    }
+
+    public long getPlacementLatencyP99Millis() {
+        return placementLatencyP99Millis;
+    }
+
+    public long getPlacementLatencyMaxMillis() {
+        return placementLatencyMaxMillis;
+    }
+
+    public long getInstanceRequestLatencyP50Millis() {
+        return instanceRequestLatencyP50Millis;
+    }
+
+    public long getInstanceRequestLatencyP99Millis() {
+        return instanceRequestLatencyP99Millis;
+    }
+
+    public long getInstanceRequestLatencyMaxMillis() {
+        return instanceRequestLatencyMaxMillis;
+    }
+
+    public long getLockWaitP99Micros() {
+        return lockWaitP99Micros;
+    }
+
+    public long getLockHoldP99Micros() {
+        return lockHoldP99Micros;
+    }
+
+    public long getLockHoldMaxMicros() {
+        return lockHoldMaxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceManagerMetrics{placements=" + placements + ", containersPlaced=" + containersPlaced +
+            ", instances=" + instances + ", pendingInstances=" + pendingInstances + ", freeSlots=" + freeSlots +
+            ", utilization=" + utilization + ", waitingContainers=" + waitingContainers +
+            ", containers=" + containers + ", indexHeapBytesPerContainer=" + indexHeapBytesPerContainer +
+            ", placementP99=" + placementLatencyP99Millis + "ms, lockHoldP99=" + lockHoldP99Micros + "us}";
+    }
+}
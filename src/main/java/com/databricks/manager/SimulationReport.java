@@ -0,0 +1,138 @@
+package com.databricks.manager;
+
+/**
+ * What a simulated run of a workload cost and how placements fared, see Simulator. Times are in
+ * simulated milliseconds unless they say otherwise.
+ */
+public class SimulationReport {
+
+    private final long simulatedMillis;
+    private final long wallClockMillis;
+    private final long placements;
+    private final long containersPlaced;
+    private final long containersFailed;
+    private final long containersCancelled;
+    private final long instances;
+    private final double instanceHours;
+    private final double cost;
+    private final LatencyHistogram placementLatency;
+    private final double meanUtilization;
+    private final double meanStrandedMemoryFraction;
+    private final WarmPoolStats warmPoolStats;
+
+    SimulationReport(long simulatedMillis, long wallClockMillis, long placements, long containersPlaced,
+                     long containersFailed, long containersCancelled, long instances, double instanceHours,
+                     double cost, LatencyHistogram placementLatency, double meanUtilization,
+                     double meanStrandedMemoryFraction, WarmPoolStats warmPoolStats) {
+        this.simulatedMillis = simulatedMillis;
+        this.wallClockMillis = wallClockMillis;
+        this.placements = placements;
+        this.containersPlaced = containersPlaced;
+        this.containersFailed = containersFailed;
+        this.containersCancelled = containersCancelled;
+        this.instances = instances;
+        this.instanceHours = instanceHours;
+        this.cost = cost;
+        this.placementLatency = placementLatency;
+        this.meanUtilization = meanUtilization;
+        this.meanStrandedMemoryFraction = meanStrandedMemoryFraction;
+        this.warmPoolStats = warmPoolStats;
+    }
+
+    /**
+     * @return how much time the run simulated, until the last placement was settled.
+     */
+    public long getSimulatedMillis() {
+        return simulatedMillis;
+    }
+
+    /**
+     * @return how long the run took on the wall clock.
+     */
+    public long getWallClockMillis() {
+        return wallClockMillis;
+    }
+
+    public long getPlacements() {
+        return placements;
+    }
+
+    public long getContainersPlaced() {
+        return containersPlaced;
+    }
+
+    /**
+     * @return the number of containers that could not be placed, such as when too many instance
+     *         requests were waiting already.
+     */
+    public long getContainersFailed() {
+        return containersFailed;
+    }
+
+    /**
+     * @return the number of containers whose job ended before their instance came up.
+     */
+    public long getContainersCancelled() {
+        return containersCancelled;
+    }
+
+    /**
+     * @return the number of instances at the end of the run. Instances are kept forever, so this
+     *         is also the most there were.
+     */
+    public long getInstances() {
+        return instances;
+    }
+
+    /**
+     * @return the instance hours used, counting each instance from when it was requested.
+     */
+    public double getInstanceHours() {
+        return instanceHours;
+    }
+
+    /**
+     * @return the instance hours times the cost of an instance hour.
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    /**
+     * @return the time from each placement until all of its containers were placed, had failed
+     *         or were cancelled.
+     */
+    public LatencyHistogram getPlacementLatency() {
+        return placementLatency;
+    }
+
+    /**
+     * @return the fraction of fleet memory held by containers, averaged over the run.
+     */
+    public double getMeanUtilization() {
+        return meanUtilization;
+    }
+
+    /**
+     * @return the fraction of fleet memory that is free but stranded next to containers,
+     *         averaged over the run, see ResourceManagerImpl.getStrandedMemoryFraction.
+     */
+    public double getMeanStrandedMemoryFraction() {
+        return meanStrandedMemoryFraction;
+    }
+
+    public WarmPoolStats getWarmPoolStats() {
+        return warmPoolStats;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulationReport{simulated=" + simulatedMillis + "ms, wallClock=" + wallClockMillis +
+            "ms, placements=" + placements + ", containersPlaced=" + containersPlaced + ", containersFailed=" +
+            containersFailed + ", containersCancelled=" + containersCancelled + ", instances=" + instances +
+            ", instanceHours=" + instanceHours + ", cost=" + cost + ", placementP50=" +
+            placementLatency.getPercentileMillis(50) + "ms, placementP99=" + placementLatency.getPercentileMillis(99) +
+            "ms, placementMax=" + placementLatency.getMaxMillis() + "ms, meanUtilization=" + meanUtilization +
+            ", meanStrandedMemoryFraction=" + meanStrandedMemoryFraction + "}";
+    }
+}
@@ -0,0 +1,335 @@
+package com.databricks.manager;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Replays a recorded workload against a ResourceManagerImpl in simulated time, so that settings
+ * can be tried out against boot times of minutes without waiting for them. Instance requests take
+ * as long as a boot time distribution says, everything else takes no time, and a day of traffic
+ * runs in seconds. Runs with the same seed give the same results.
+ *
+ * The resource manager runs as it would in production, except that it does not reconcile,
+ * compact, journal or register with JMX, and its warm pool is driven by the simulated clock. Its
+ * own latency metrics are in wall clock time and mean little here, the report has the simulated
+ * ones. A simulator can run many workloads, one at a time.
+ */
+public class Simulator {
+
+    private final double instanceSizeGB;
+    private final double containerSizeGB;
+    private final BootTimeDistribution bootTime;
+    private final ResourceManagerConfig config;
+    private double instanceCostPerHour = 1;
+    private long seed = 0;
+    private long sampleIntervalMillis = 60000;
+
+    /**
+     * @param instanceSizeGB the size of all instances.
+     * @param containerSizeGB the size of containers the workload does not give a size for.
+     * @param bootTime how long instances take to boot.
+     * @param config the settings to try out.
+     */
+    public Simulator(double instanceSizeGB, double containerSizeGB, BootTimeDistribution bootTime,
+                     ResourceManagerConfig config) {
+        this.instanceSizeGB = instanceSizeGB;
+        this.containerSizeGB = containerSizeGB;
+        this.bootTime = bootTime;
+        this.config = config;
+    }
+
+    /**
+     * @param instanceCostPerHour what an instance costs per hour, 1 by default so that the cost
+     *                            is in instance hours.
+     */
+    public Simulator setInstanceCostPerHour(double instanceCostPerHour) {
+        this.instanceCostPerHour = instanceCostPerHour;
+        return this;
+    }
+
+    /**
+     * @param seed seeds the boot times.
+     */
+    public Simulator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param sampleIntervalMillis how often utilization and stranded memory are sampled for
+     *                             their averages, in simulated time.
+     */
+    public Simulator setSampleIntervalMillis(long sampleIntervalMillis) {
+        if (sampleIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Sample interval must be positive: " + sampleIntervalMillis);
+        }
+        this.sampleIntervalMillis = sampleIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Reads a trace, one TraceEvent per line. Blank lines are skipped.
+     *
+     * @throws IllegalArgumentException if a line is not a trace event.
+     */
+    public static List<TraceEvent> readTrace(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<TraceEvent> trace = new ArrayList<TraceEvent>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (!line.trim().isEmpty()) {
+                trace.add(TraceEvent.parse(line));
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * The cloud provider of a simulation. Instances come up the moment they are requested, the
+     * boot time is spent before the request, see BootingExecutor.
+     */
+    private static class SimulatedCloudProvider implements CloudProvider {
+        private final double instanceSizeGB;
+        private final Set<Instance> instances = new HashSet<Instance>();
+        // When the request that is being handed out was made, set by BootingExecutor.
+        long requestedMillis;
+        // Sum of the times the instances were requested at.
+        long totalRequestedMillis;
+
+        SimulatedCloudProvider(double instanceSizeGB) {
+            this.instanceSizeGB = instanceSizeGB;
+        }
+
+        public synchronized Instance requestInstance() {
+            Instance i = new InstanceImpl(instanceSizeGB);
+            instances.add(i);
+            totalRequestedMillis += requestedMillis;
+            return i;
+        }
+
+        public synchronized Set<Instance> getAllInstances() {
+            return new HashSet<Instance>(instances);
+        }
+
+        synchronized double getInstanceHours(long nowMillis) {
+            return (instances.size() * nowMillis - totalRequestedMillis) / 3600000.0;
+        }
+    }
+
+    /**
+     * Runs each call to the cloud provider once a boot time has passed on the simulated clock.
+     */
+    private static class BootingExecutor extends AbstractExecutorService {
+        private final VirtualClock clock;
+        private final BootTimeDistribution bootTime;
+        private final Random random;
+        private final SimulatedCloudProvider provider;
+
+        BootingExecutor(VirtualClock clock, BootTimeDistribution bootTime, Random random,
+                        SimulatedCloudProvider provider) {
+            this.clock = clock;
+            this.bootTime = bootTime;
+            this.random = random;
+            this.provider = provider;
+        }
+
+        public void execute(final Runnable command) {
+            final long requestedMillis = clock.now();
+            clock.schedule(new Runnable() {
+                public void run() {
+                    provider.requestedMillis = requestedMillis;
+                    command.run();
+                }
+            }, Math.max(0, bootTime.sampleMillis(random)), TimeUnit.MILLISECONDS);
+        }
+
+        public void shutdown() {
+        }
+
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown() {
+            return false;
+        }
+
+        public boolean isTerminated() {
+            return false;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    /**
+     * What happened so far in a run. Only touched on the thread running the simulation.
+     */
+    private static class Run {
+        final Map<String, List<CompletableFuture<ContainerId>>> jobs =
+            new HashMap<String, List<CompletableFuture<ContainerId>>>();
+        final LatencyHistogram placementLatency = new LatencyHistogram();
+        long placements;
+        long containersPlaced;
+        long containersFailed;
+        long containersCancelled;
+        // Placements that are not settled yet.
+        int outstanding;
+        long samples;
+        double totalUtilization;
+        double totalStrandedFraction;
+    }
+
+    /**
+     * Replays a trace from its first event until every placement is settled. Events at the same
+     * time run in the order they appear in the trace.
+     */
+    public SimulationReport run(List<TraceEvent> trace) {
+        long wallClockStart = System.nanoTime();
+        final VirtualClock clock = new VirtualClock();
+        final SimulatedCloudProvider provider = new SimulatedCloudProvider(instanceSizeGB);
+        ResourceManagerConfig simulated = config.copy()
+            .setProvisioningExecutor(new BootingExecutor(clock, bootTime, new Random(seed), provider))
+            .setTimer(clock)
+            .setReconciliationIntervalMillis(0)
+            .setCompactionIntervalMillis(0)
+            .setJournalDirectory(null)
+            .setJmxName(null);
+        final ResourceManagerImpl manager = new ResourceManagerImpl(provider, instanceSizeGB, containerSizeGB, simulated);
+        manager.whenReady().join();
+
+        final Run run = new Run();
+        List<TraceEvent> sorted = new ArrayList<TraceEvent>(trace);
+        //stable, so events at the same time keep their order
+        Collections.sort(sorted, new Comparator<TraceEvent>() {
+            public int compare(TraceEvent a, TraceEvent b) {
+                return Long.compare(a.getTimeMillis(), b.getTimeMillis());
+            }
+        });
+        long startMillis = sorted.isEmpty() ? 0 : sorted.get(0).getTimeMillis();
+        for (final TraceEvent event : sorted) {
+            clock.schedule(new Runnable() {
+                public void run() {
+                    replay(event, manager, clock, run);
+                }
+            }, event.getTimeMillis() - startMillis, TimeUnit.MILLISECONDS);
+        }
+        clock.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                run.samples++;
+                run.totalUtilization += manager.getMetrics().getUtilization();
+                run.totalStrandedFraction += manager.getStrandedMemoryFraction();
+            }
+        }, 0, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+
+        long lastMillis = sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1).getTimeMillis() - startMillis;
+        clock.runUntil(lastMillis);
+        while (run.outstanding > 0 && clock.runNext()) {
+        }
+        manager.shutdown();
+
+        long endMillis = clock.now();
+        double instanceHours = provider.getInstanceHours(endMillis);
+        return new SimulationReport(endMillis, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - wallClockStart),
+            run.placements, run.containersPlaced, run.containersFailed, run.containersCancelled,
+            provider.getAllInstances().size(), instanceHours, instanceHours * instanceCostPerHour,
+            run.placementLatency, run.samples == 0 ? 0 : run.totalUtilization / run.samples,
+            run.samples == 0 ? 0 : run.totalStrandedFraction / run.samples, manager.getWarmPoolStats());
+    }
+
+    private void replay(TraceEvent event, ResourceManagerImpl manager, final VirtualClock clock, final Run run) {
+        if (!event.isPlace()) {
+            List<CompletableFuture<ContainerId>> slots = run.jobs.remove(event.getJob());
+            if (slots == null) {
+                return;
+            }
+            List<ContainerId> placed = new ArrayList<ContainerId>();
+            for (CompletableFuture<ContainerId> slot : slots) {
+                if (!slot.cancel(false) && !slot.isCompletedExceptionally()) {
+                    placed.add(slot.join());
+                }
+            }
+            manager.unplaceContainers(placed);
+            return;
+        }
+
+        double sizeGB = Double.isNaN(event.getContainerSizeGB()) ? containerSizeGB : event.getContainerSizeGB();
+        final List<CompletableFuture<ContainerId>> slots;
+        try {
+            slots = manager.placeContainersIncrementally(new PlacementRequest().addContainers(event.getNumContainers(), sizeGB));
+        }
+        catch (IllegalArgumentException e) {
+            run.containersFailed += event.getNumContainers();
+            return;
+        }
+        List<CompletableFuture<ContainerId>> job = run.jobs.get(event.getJob());
+        if (job == null) {
+            job = new ArrayList<CompletableFuture<ContainerId>>();
+            run.jobs.put(event.getJob(), job);
+        }
+        job.addAll(slots);
+        run.placements++;
+        run.outstanding++;
+        final long startMillis = clock.now();
+        CompletableFuture.allOf(slots.toArray(new CompletableFuture<?>[slots.size()]))
+            .whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(Void ignored, Throwable failure) {
+                    run.outstanding--;
+                    run.placementLatency.record(clock.now() - startMillis);
+                    for (CompletableFuture<ContainerId> slot : slots) {
+                        if (slot.isCancelled()) {
+                            run.containersCancelled++;
+                        }
+                        else if (slot.isCompletedExceptionally()) {
+                            run.containersFailed++;
+                        }
+                        else {
+                            run.containersPlaced++;
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Runs a trace file and prints the report. Arguments are the trace file, the instance size
+     * and default container size in GB, the median boot time in seconds and optionally the cost
+     * of an instance hour. Boot times are log-normal with a sigma of 0.3.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: Simulator <trace> <instanceSizeGB> <containerSizeGB> <medianBootSeconds> [instanceCostPerHour]");
+            System.exit(1);
+        }
+        List<TraceEvent> trace;
+        FileReader reader = new FileReader(args[0]);
+        try {
+            trace = readTrace(reader);
+        }
+        finally {
+            reader.close();
+        }
+        Simulator simulator = new Simulator(Double.parseDouble(args[1]), Double.parseDouble(args[2]),
+            BootTimeDistribution.logNormal(Long.parseLong(args[3]) * 1000, 0.3), new ResourceManagerConfig());
+        if (args.length > 4) {
+            simulator.setInstanceCostPerHour(Double.parseDouble(args[4]));
+        }
+        System.out.println(simulator.run(trace));
+    }
+}
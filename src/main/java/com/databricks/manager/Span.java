@@ -0,0 +1,20 @@
+package com.databricks.manager;
+
+/**
+ * One unit of work traced by a Tracer, such as a placement or an instance request. A span is
+ * started by Tracer.startSpan and ended exactly once, possibly on another thread.
+ */
+public interface Span {
+
+    /**
+     * Attaches a number to the span, such as how many containers a placement asked for.
+     */
+    void setAttribute(String key, long value);
+
+    /**
+     * Ends the span.
+     *
+     * @param failure why the work failed, or null if it succeeded.
+     */
+    void end(Throwable failure);
+}
@@ -0,0 +1,473 @@
+package com.databricks.manager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of everything the resource manager does, so that it can restart without
+ * asking every instance for its containers. Records are buffered and written and fsynced in
+ * batches every flush interval, so a crash loses at most the last interval; whatever is lost is
+ * picked up again when recovered instances are reconciled with the cloud provider. After every
+ * snapshotInterval records the journal starts a new file and writes a compact snapshot of the
+ * state so far, so recovery reads one snapshot and a short journal tail. The state a snapshot is
+ * written from is kept up to date by whoever flushes, as records are written, so appending a
+ * record stays cheap and a snapshot never holds up appends.
+ *
+ * Instances are identified by keys the resource manager assigns, since Instance has no ID of its
+ * own. Files are plain text with one record per line:
+ *
+ *   I key freeGB          an instance with freeGB of memory not used by containers
+ *   D key                 an instance that no longer exists
+ *   R key                 an instance request was sent
+ *   A key freeGB          an instance request returned the instance with that key
+ *   X key                 an instance request failed
+ *   P key sizeGB id       a container was placed on an instance
+ *   U sizeGB id           a container was unplaced, freeing sizeGB on its instance
+ *   C key sizeGB id       a container on an instance, only used in snapshots
+ *
+ * All methods are thread-safe.
+ */
+class StateJournal {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SNAPSHOT = "snapshot";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+
+    /**
+     * The state described by a snapshot and the journal records after it.
+     */
+    static class State {
+        // Memory not used by containers, by instance key. Sizes of containers placed before the
+        // journal knew about their instance are unknown, they are included here instead.
+        final Map<Long, Double> freeMemoryGB = new HashMap<Long, Double>();
+        final Map<ContainerId, ContainerRecord> containers = new HashMap<ContainerId, ContainerRecord>();
+        final Set<Long> outstandingRequests = new LinkedHashSet<Long>();
+        long nextKey = 1;
+
+        boolean isEmpty() {
+            return freeMemoryGB.isEmpty() && outstandingRequests.isEmpty();
+        }
+
+        State copy() {
+            State copy = new State();
+            copy.freeMemoryGB.putAll(freeMemoryGB);
+            copy.containers.putAll(containers);
+            copy.outstandingRequests.addAll(outstandingRequests);
+            copy.nextKey = nextKey;
+            return copy;
+        }
+
+        private void seenKey(long key) {
+            nextKey = Math.max(nextKey, key + 1);
+        }
+
+        // Applies a single record. Returns false if the record cannot be parsed.
+        boolean apply(String record) {
+            String[] fields = record.split(" ", 4);
+            try {
+                char type = fields[0].length() == 1 ? fields[0].charAt(0) : '?';
+                switch (type) {
+                    case 'I':
+                    case 'A': {
+                        long key = Long.parseLong(fields[1]);
+                        freeMemoryGB.put(key, Double.parseDouble(fields[2]));
+                        outstandingRequests.remove(key);
+                        seenKey(key);
+                        return true;
+                    }
+                    case 'D': {
+                        long key = Long.parseLong(fields[1]);
+                        freeMemoryGB.remove(key);
+                        List<ContainerId> gone = new ArrayList<ContainerId>();
+                        for (Map.Entry<ContainerId, ContainerRecord> c : containers.entrySet()) {
+                            if (c.getValue().instanceKey == key) {
+                                gone.add(c.getKey());
+                            }
+                        }
+                        containers.keySet().removeAll(gone);
+                        return true;
+                    }
+                    case 'R': {
+                        long key = Long.parseLong(fields[1]);
+                        outstandingRequests.add(key);
+                        seenKey(key);
+                        return true;
+                    }
+                    case 'X':
+                        outstandingRequests.remove(Long.parseLong(fields[1]));
+                        return true;
+                    case 'P':
+                    case 'C': {
+                        long key = Long.parseLong(fields[1]);
+                        double sizeGB = Double.parseDouble(fields[2]);
+                        String id = record.substring(fields[0].length() + fields[1].length() + fields[2].length() + 3);
+                        containers.put(new ContainerId(id), new ContainerRecord(key, sizeGB));
+                        Double free = freeMemoryGB.get(key);
+                        if (type == 'P' && free != null && !Double.isNaN(sizeGB)) {
+                            freeMemoryGB.put(key, free - sizeGB);
+                        }
+                        return true;
+                    }
+                    case 'U': {
+                        double sizeGB = Double.parseDouble(fields[1]);
+                        String id = record.substring(fields[0].length() + fields[1].length() + 2);
+                        ContainerRecord c = containers.remove(new ContainerId(id));
+                        Double free = c == null ? null : freeMemoryGB.get(c.instanceKey);
+                        if (free != null) {
+                            freeMemoryGB.put(c.instanceKey, free + sizeGB);
+                        }
+                        return true;
+                    }
+                    default:
+                        return false;
+                }
+            }
+            catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        void writeTo(Writer out) throws IOException {
+            for (Map.Entry<Long, Double> i : freeMemoryGB.entrySet()) {
+                out.write("I " + i.getKey() + " " + i.getValue() + "\n");
+            }
+            for (Long key : outstandingRequests) {
+                out.write("R " + key + "\n");
+            }
+            for (Map.Entry<ContainerId, ContainerRecord> c : containers.entrySet()) {
+                out.write("C " + c.getValue().instanceKey + " " + c.getValue().sizeGB + " " + c.getKey().getId() + "\n");
+            }
+        }
+    }
+
+    static class ContainerRecord {
+        final long instanceKey;
+        final double sizeGB;
+
+        ContainerRecord(long instanceKey, double sizeGB) {
+            this.instanceKey = instanceKey;
+            this.sizeGB = sizeGB;
+        }
+    }
+
+    private final File directory;
+    private final int snapshotInterval;
+    private final State recovered;
+    private final ScheduledExecutorService flusher;
+
+    // Guarded by this.
+    private long nextKey;
+    private StringBuilder buffer;
+    private long journalSeq;
+    private FileChannel journal;
+    private int recordsSinceSnapshot;
+    private boolean closed;
+
+    // Guarded by flushLock, which is taken before this object's monitor and never while holding it.
+    private final Object flushLock = new Object();
+    // The state described by all records written so far, guarded by flushLock.
+    private final State state;
+
+    /**
+     * Opens the journal in directory, recovering the state it describes and compacting it into a
+     * fresh snapshot.
+     *
+     * @param flushIntervalMillis how often buffered records are written and fsynced.
+     * @param snapshotInterval number of records after which a new snapshot is written.
+     */
+    StateJournal(File directory, long flushIntervalMillis, int snapshotInterval) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        this.state = new State();
+        long seq = readSnapshot();
+        for (long s : journalSeqs()) {
+            if (s >= seq) {
+                replay(journalFile(s));
+            }
+            seq = Math.max(seq, s + 1);
+        }
+        this.recovered = state.copy();
+        this.nextKey = state.nextKey;
+        this.buffer = new StringBuilder();
+        this.journalSeq = seq;
+        this.journal = openJournal(seq);
+        writeSnapshot(state, seq);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "state-journal-flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                }
+                catch (IOException e) {
+                    // Do some logging
+                    System.err.println("ERROR WRITING STATE JOURNAL: " + e);
+                }
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the state recovered when the journal was opened.
+     */
+    State getRecoveredState() {
+        return recovered;
+    }
+
+    /**
+     * @return a key that no instance or instance request in this journal has used yet.
+     */
+    synchronized long nextKey() {
+        return nextKey++;
+    }
+
+    void instanceAdded(long key, double freeMemoryGB) {
+        append("I " + key + " " + freeMemoryGB);
+    }
+
+    void instanceLost(long key) {
+        append("D " + key);
+    }
+
+    void requested(long key) {
+        append("R " + key);
+    }
+
+    void requestCompleted(long key, double freeMemoryGB) {
+        append("A " + key + " " + freeMemoryGB);
+    }
+
+    void requestFailed(long key) {
+        append("X " + key);
+    }
+
+    void placed(ContainerId containerId, long instanceKey, double sizeGB) {
+        append("P " + instanceKey + " " + sizeGB + " " + containerId.getId());
+    }
+
+    void unplaced(ContainerId containerId, double sizeGB) {
+        append("U " + sizeGB + " " + containerId.getId());
+    }
+
+    private synchronized void append(String record) {
+        if (closed) {
+            return;
+        }
+        buffer.append(record).append('\n');
+        recordsSinceSnapshot++;
+    }
+
+    /**
+     * Writes and fsyncs all buffered records, and writes a new snapshot if enough records have
+     * accumulated since the last one.
+     */
+    void flush() throws IOException {
+        synchronized (flushLock) {
+            FileChannel target;
+            String records;
+            boolean snapshot = false;
+            long snapshotSeq = 0;
+            long keys;
+            synchronized (this) {
+                if (journal == null) {
+                    return;
+                }
+                target = journal;
+                records = buffer.toString();
+                buffer.setLength(0);
+                if (!closed && recordsSinceSnapshot >= snapshotInterval) {
+                    //later records go to a new journal file, which the snapshot is the base of
+                    snapshot = true;
+                    snapshotSeq = ++journalSeq;
+                    journal = openJournal(snapshotSeq);
+                    recordsSinceSnapshot = 0;
+                }
+                keys = nextKey;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(records.getBytes(UTF_8));
+            while (bytes.hasRemaining()) {
+                target.write(bytes);
+            }
+            target.force(false);
+            for (String record : records.split("\n")) {
+                if (!record.isEmpty()) {
+                    state.apply(record);
+                }
+            }
+            if (snapshot) {
+                target.close();
+                //keys handed out for records that are not written yet must not be handed out again
+                state.nextKey = Math.max(state.nextKey, keys);
+                writeSnapshot(state, snapshotSeq);
+            }
+        }
+    }
+
+    /**
+     * Flushes all buffered records and closes the journal. Records appended afterwards are
+     * dropped.
+     */
+    void close() throws IOException {
+        flusher.shutdown();
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (journal != null) {
+                    journal.close();
+                    journal = null;
+                }
+            }
+        }
+    }
+
+    private File journalFile(long seq) {
+        return new File(directory, JOURNAL_PREFIX + seq + JOURNAL_SUFFIX);
+    }
+
+    private List<Long> journalSeqs() {
+        List<Long> seqs = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX)) {
+                    try {
+                        seqs.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length(),
+                            name.length() - JOURNAL_SUFFIX.length())));
+                    }
+                    catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    // Fsyncs the directory, which makes renames and new files in it durable. Platforms that cannot
+    // open a directory do not need this.
+    private void syncDirectory() throws IOException {
+        FileChannel dir;
+        try {
+            dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        }
+        catch (IOException e) {
+            return;
+        }
+        try {
+            dir.force(true);
+        }
+        finally {
+            dir.close();
+        }
+    }
+
+    private FileChannel openJournal(long seq) throws IOException {
+        return new FileOutputStream(journalFile(seq), true).getChannel();
+    }
+
+    // Returns the sequence number of the first journal file that is not part of the snapshot.
+    private long readSnapshot() throws IOException {
+        File file = new File(directory, SNAPSHOT);
+        if (!file.exists()) {
+            return 0;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String[] header = in.readLine().split(" ");
+            long seq = Long.parseLong(header[1]);
+            state.nextKey = Long.parseLong(header[2]);
+            String record;
+            while ((record = in.readLine()) != null) {
+                if (!state.apply(record)) {
+                    throw new IOException("Corrupt snapshot record: " + record);
+                }
+            }
+            return seq;
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Corrupt snapshot " + file, e);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void replay(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String record;
+            while ((record = in.readLine()) != null) {
+                //only the tail can be torn by a crash, and it was never acknowledged as durable
+                if (!state.apply(record)) {
+                    break;
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a snapshot covering all journal files before seq, then deletes those files.
+     */
+    private void writeSnapshot(State snapshot, long seq) throws IOException {
+        File tmp = new File(directory, SNAPSHOT + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+            writer.write("S " + seq + " " + snapshot.nextKey + "\n");
+            snapshot.writeTo(writer);
+            writer.flush();
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(directory, SNAPSHOT))) {
+            throw new IOException("Cannot replace snapshot in " + directory);
+        }
+        //the old journal files must not be gone before the rename is durable
+        syncDirectory();
+        for (long s : journalSeqs()) {
+            if (s < seq) {
+                journalFile(s).delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package com.databricks.manager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * A resource manager that splits the fleet into stripes, each a ResourceManagerImpl with a
+ * monitor and free capacity index of its own, so that placements and unplacements on different
+ * stripes never contend. Each thread places onto a stripe of its own. When that stripe does not
+ * have the room, the placement takes what the other stripes have free, most free first, then
+ * what is still unclaimed on instances other stripes are waiting for, before its own stripe
+ * requests new instances. Lookups and unplacements go straight to the stripe that
+ * keeps track of the container's instance.
+ *
+ * All stripes share a single instance provisioner, so the cloud provider sees one adaptive
+ * concurrency limit, as well as the reconciler and the container index. Instances that existed
+ * before the resource manager started are spread over the stripes by hash. Journaling is not
+ * supported, a restart finds its state by asking the instances as ResourceManagerImpl does
+ * without a journal. All methods are thread-safe.
+ */
+public class StripedResourceManager implements AsyncResourceManager {
+
+    private final ResourceManagerImpl[] stripes;
+    private final CloudProvider provider;
+    private final double instanceSizeGB;
+    private final double containerSizeGB;
+    private final long containerSizeMB;
+    // Shared by all stripes.
+    private final ContainerIndex containerInstance;
+    private final InstanceProvisioner provisioner;
+    private final Reconciler reconciler;
+    // The stripe keeping track of each instance.
+    private final ConcurrentMap<Instance, ResourceManagerImpl> owners;
+    private final ScheduledThreadPoolExecutor deadlines;
+    private final CompletableFuture<Void> ready;
+
+    /**
+     * Constructor for the resource manager.
+     *
+     * @param provider the cloud provider that we request instances from.
+     * @param instanceSizeGB the size of all instances that is provided by the cloud provider.
+     * @param containerSizeGB the size of containers placed by placeContainers(int).
+     * @param numStripes the number of stripes, about the number of threads placing at once.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    public StripedResourceManager(CloudProvider provider, double instanceSizeGB, double containerSizeGB,
+                                  int numStripes) {
+        this(provider, instanceSizeGB, containerSizeGB, numStripes, new ResourceManagerConfig());
+    }
+
+    /**
+     * Constructor for the resource manager.
+     *
+     * @param provider the cloud provider that we request instances from.
+     * @param instanceSizeGB the size of all instances that is provided by the cloud provider.
+     * @param containerSizeGB the size of containers placed by placeContainers(int).
+     * @param numStripes the number of stripes, about the number of threads placing at once.
+     * @param config optional settings. The warm pool is split evenly over the stripes, and each
+     *               stripe registers its metrics with JMX under the configured name followed by
+     *               -stripe- and its number.
+     * @throws IllegalArgumentException if a container does not fit on an instance, numStripes is
+     *                                  not positive or a journal directory or an admission policy
+     *                                  is configured.
+     */
+    public StripedResourceManager(CloudProvider provider, double instanceSizeGB, double containerSizeGB,
+                                  int numStripes, ResourceManagerConfig config) {
+        if (numStripes <= 0) {
+            throw new IllegalArgumentException("Cannot have " + numStripes + " stripes");
+        }
+        if (config.getJournalDirectory() != null) {
+            throw new IllegalArgumentException("Striped resource managers do not journal their state");
+        }
+        if (config.getAdmissionPolicy() != null) {
+            //each stripe would only see its own share of the tenants' requests
+            throw new IllegalArgumentException("Striped resource managers do not admit by tenant");
+        }
+        this.provider = provider;
+        this.instanceSizeGB = instanceSizeGB;
+        this.containerSizeGB = containerSizeGB;
+        this.containerSizeMB = MemoryMB.ofContainer(containerSizeGB);
+        this.containerInstance = new ContainerIndex(config.isOffHeapContainerIndex());
+        this.provisioner = InstanceProvisioner.create(provider, config);
+        this.reconciler = new Reconciler(config.getReconciliationParallelism());
+        this.owners = new ConcurrentHashMap<Instance, ResourceManagerImpl>();
+        this.deadlines = PlacementFutures.deadlineTimer();
+        this.stripes = new ResourceManagerImpl[numStripes];
+        ResourceManagerConfig stripeConfig = config.copy()
+            .setWarmPoolSlots((config.getWarmPoolSlots() + numStripes - 1) / numStripes);
+        CompletableFuture<?>[] stripesReady = new CompletableFuture<?>[numStripes];
+        for (int x = 0; x < numStripes; x++) {
+            ResourceManagerConfig c = stripeConfig;
+            if (config.getJmxName() != null) {
+                //one bean per stripe
+                c = stripeConfig.copy().setJmxName(config.getJmxName() + "-stripe-" + x);
+            }
+            stripes[x] = new ResourceManagerImpl(new Stripe(x), instanceSizeGB, containerSizeGB, c,
+                provisioner, reconciler, containerInstance, owners);
+            stripesReady[x] = stripes[x].whenReady();
+        }
+        this.ready = CompletableFuture.allOf(stripesReady);
+    }
+
+    /**
+     * The cloud provider as a single stripe sees it: only the instances it keeps track of, and
+     * the instances nobody keeps track of yet that hash to it.
+     */
+    private class Stripe implements CloudProvider {
+        private final int index;
+
+        Stripe(int index) {
+            this.index = index;
+        }
+
+        public Instance requestInstance() {
+            return provider.requestInstance();
+        }
+
+        public Set<Instance> getAllInstances() {
+            Set<Instance> instances = new HashSet<Instance>();
+            for (Instance i : provider.getAllInstances()) {
+                ResourceManagerImpl owner = owners.get(i);
+                if (owner != null ? owner == stripes[index] : home(i.hashCode()) == index) {
+                    instances.add(i);
+                }
+            }
+            return instances;
+        }
+    }
+
+    private int home(int hash) {
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash * 0x9E3779B9, stripes.length);
+    }
+
+    // The stripe the calling thread places onto.
+    private ResourceManagerImpl homeStripe() {
+        return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+    }
+
+    // The stripe that places every container of a locality group.
+    private ResourceManagerImpl groupStripe(String group) {
+        return stripes[(group.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    public int getNumStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Places numContainers containers onto instances. If there are not enough resources with the
+     * instances we currently have or are already waiting for, request from the cloud provider for
+     * more instances. This method should only return once all containers have been successfully
+     * placed. This method is thread-safe.
+     *
+     * @param numContainers number of containers to place.
+     * @return a list of containerIds which are IDs that are globally unique across all instances.
+     */
+    public List<ContainerId> placeContainers(int numContainers) {
+        return placeContainers(defaultRequest(numContainers));
+    }
+
+    /**
+     * Same as ResourceManagerImpl.placeContainers(PlacementRequest).
+     */
+    public List<ContainerId> placeContainers(PlacementRequest request) {
+        return PlacementFutures.join(placeContainersIncrementally(request), this);
+    }
+
+    public CompletableFuture<List<ContainerId>> placeContainersAsync(int numContainers) {
+        return placeContainersAsync(defaultRequest(numContainers));
+    }
+
+    public CompletableFuture<List<ContainerId>> placeContainersAsync(PlacementRequest request) {
+        return PlacementFutures.all(placeContainersIncrementally(request), this);
+    }
+
+    /**
+     * Same as ResourceManagerImpl.placeContainersPartially.
+     */
+    public PlacementResult placeContainersPartially(PlacementRequest request)
+        throws TimeoutException, InterruptedException {
+        return PlacementFutures.await(placeContainersPartiallyAsync(request));
+    }
+
+    public CompletableFuture<PlacementResult> placeContainersPartiallyAsync(PlacementRequest request) {
+        return PlacementFutures.partial(placeContainersIncrementally(request), request, deadlines, this);
+    }
+
+    public List<CompletableFuture<ContainerId>> placeContainersIncrementally(int numContainers) {
+        return placeContainersIncrementally(defaultRequest(numContainers));
+    }
+
+    /**
+     * Places the containers of a request onto instances, one future per container. The calling
+     * thread's stripe takes the request if it has the room. Otherwise containers go to the first
+     * stripe with room left, starting with the calling thread's and then the others by most free
+     * memory, then to the first stripe with unclaimed room on its pending instances, and the
+     * calling thread's stripe requests instances for the rest. All containers of
+     * a locality group go to the same stripe, so that they can share instances. This method is
+     * thread-safe and never waits for the cloud provider.
+     *
+     * @param request the containers to place.
+     * @return one future per container, in the order the containers were added to the request.
+     * @throws IllegalArgumentException if a container does not fit on an instance.
+     */
+    public List<CompletableFuture<ContainerId>> placeContainersIncrementally(PlacementRequest request) {
+        final List<Double> sizesGB = request.getContainerSizesGB();
+        long needed = 0;
+        for (double sizeGB : sizesGB) {
+            if (sizeGB > instanceSizeGB) {
+                throw new IllegalArgumentException("Container size " + sizeGB +
+                    " GB does not fit on instances of size " + instanceSizeGB + " GB");
+            }
+            needed += slots(sizeGB);
+        }
+        if (request.getGroup() != null) {
+            return groupStripe(request.getGroup()).placeContainersIncrementally(request);
+        }
+        ResourceManagerImpl home = homeStripe();
+        if (stripes.length == 1 || home.getFreeSlots() >= needed) {
+            return home.placeContainersIncrementally(request);
+        }
+
+        //steal from the stripes with the most room, first fit over the containers largest first
+        List<ResourceManagerImpl> order = new ArrayList<ResourceManagerImpl>(stripes.length);
+        final Map<ResourceManagerImpl, Long> free = new LinkedHashMap<ResourceManagerImpl, Long>();
+        Map<ResourceManagerImpl, Long> unclaimed = new LinkedHashMap<ResourceManagerImpl, Long>();
+        for (ResourceManagerImpl stripe : stripes) {
+            free.put(stripe, stripe.getFreeSlots());
+            unclaimed.put(stripe, stripe.getUnclaimedSlots());
+            if (stripe != home) {
+                order.add(stripe);
+            }
+        }
+        Collections.sort(order, new Comparator<ResourceManagerImpl>() {
+            public int compare(ResourceManagerImpl a, ResourceManagerImpl b) {
+                return Long.compare(free.get(b), free.get(a));
+            }
+        });
+        order.add(0, home);
+        List<Integer> largestFirst = new ArrayList<Integer>(sizesGB.size());
+        for (int x = 0; x < sizesGB.size(); x++) {
+            largestFirst.add(x);
+        }
+        Collections.sort(largestFirst, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(sizesGB.get(b), sizesGB.get(a));
+            }
+        });
+        Map<ResourceManagerImpl, List<Integer>> assigned = new LinkedHashMap<ResourceManagerImpl, List<Integer>>();
+        for (int x : largestFirst) {
+            long slots = slots(sizesGB.get(x));
+            ResourceManagerImpl target = take(order, free, slots);
+            if (target == null) {
+                //instances that are still being requested, rather than requesting another
+                target = take(order, unclaimed, slots);
+            }
+            if (target == null) {
+                target = home;
+            }
+            List<Integer> containers = assigned.get(target);
+            if (containers == null) {
+                containers = new ArrayList<Integer>();
+                assigned.put(target, containers);
+            }
+            containers.add(x);
+        }
+
+        List<CompletableFuture<ContainerId>> futures = new ArrayList<CompletableFuture<ContainerId>>(
+            Collections.<CompletableFuture<ContainerId>>nCopies(sizesGB.size(), null));
+        for (Map.Entry<ResourceManagerImpl, List<Integer>> a : assigned.entrySet()) {
+            PlacementRequest part = new PlacementRequest();
+            for (int x : a.getValue()) {
+                part.addContainers(1, sizesGB.get(x));
+            }
+            List<CompletableFuture<ContainerId>> placed = a.getKey().placeContainersIncrementally(part);
+            for (int y = 0; y < placed.size(); y++) {
+                futures.set(a.getValue().get(y), placed.get(y));
+            }
+        }
+        return Collections.unmodifiableList(futures);
+    }
+
+    // The first stripe with the slots left in room, which are taken from it, or null.
+    private static ResourceManagerImpl take(List<ResourceManagerImpl> order, Map<ResourceManagerImpl, Long> room,
+                                            long slots) {
+        for (ResourceManagerImpl stripe : order) {
+            if (room.get(stripe) >= slots) {
+                room.put(stripe, room.get(stripe) - slots);
+                return stripe;
+            }
+        }
+        return null;
+    }
+
+    // Default-sized slots a container of sizeGB takes up.
+    private long slots(double sizeGB) {
+        return (MemoryMB.ofContainer(sizeGB) + containerSizeMB - 1) / containerSizeMB;
+    }
+
+    private PlacementRequest defaultRequest(int numContainers) {
+        return new PlacementRequest().addContainers(numContainers, containerSizeGB);
+    }
+
+    /**
+     * @return the stripe keeping track of the container's instance, or null if it is not placed.
+     *         Waits until isReady() if it is not found before.
+     */
+    private ResourceManagerImpl ownerOf(ContainerId containerId) {
+        ResourceManagerImpl owner = lookUpOwner(containerId);
+        if (owner == null && !ready.isDone()) {
+            //it may be on an instance a stripe has not looked at yet
+            ready.join();
+            owner = lookUpOwner(containerId);
+        }
+        return owner;
+    }
+
+    private ResourceManagerImpl lookUpOwner(ContainerId containerId) {
+        Placement placement = containerInstance.getPlacement(containerId);
+        return placement == null ? null : owners.get(placement.getInstance());
+    }
+
+    /**
+     * Same as ResourceManagerImpl.getInstance.
+     */
+    public Instance getInstance(ContainerId containerId) {
+        ResourceManagerImpl owner = ownerOf(containerId);
+        if (owner == null) {
+            throw new IllegalArgumentException("Container " + containerId + " does not exist");
+        }
+        return owner.getInstance(containerId);
+    }
+
+    /**
+     * Same as ResourceManagerImpl.getInstances.
+     */
+    public Set<Instance> getInstances(String group) {
+        return groupStripe(group).getInstances(group);
+    }
+
+    /**
+     * Same as ResourceManagerImpl.unplaceContainer.
+     */
+    public void unplaceContainer(ContainerId containerId) {
+        try {
+            unplaceContainerAsync(containerId).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Same as ResourceManagerImpl.unplaceContainerAsync. The calling thread is never blocked.
+     */
+    public CompletableFuture<Void> unplaceContainerAsync(final ContainerId containerId) {
+        ResourceManagerImpl owner = lookUpOwner(containerId);
+        if (owner == null && !ready.isDone()) {
+            //it may be on an instance a stripe has not looked at yet
+            return ready.thenCompose(new Function<Void, CompletableFuture<Void>>() {
+                public CompletableFuture<Void> apply(Void ignored) {
+                    return unplaceOn(lookUpOwner(containerId), containerId);
+                }
+            });
+        }
+        return unplaceOn(owner, containerId);
+    }
+
+    private static CompletableFuture<Void> unplaceOn(ResourceManagerImpl owner, ContainerId containerId) {
+        if (owner == null) {
+            CompletableFuture<Void> result = new CompletableFuture<Void>();
+            result.completeExceptionally(new IllegalArgumentException("Container " + containerId + " does not exist"));
+            return result;
+        }
+        return owner.unplaceContainerAsync(containerId);
+    }
+
+    /**
+     * Same as ResourceManagerImpl.unplaceContainers, with each stripe unplacing its own
+     * containers.
+     */
+    public Map<ContainerId, UnplaceResult> unplaceContainers(Collection<ContainerId> containerIds) {
+        Map<ContainerId, UnplaceResult> results = new LinkedHashMap<ContainerId, UnplaceResult>();
+        Map<ResourceManagerImpl, List<ContainerId>> byStripe = new LinkedHashMap<ResourceManagerImpl, List<ContainerId>>();
+        for (ContainerId containerId : containerIds) {
+            if (results.containsKey(containerId)) {
+                continue;
+            }
+            results.put(containerId, UnplaceResult.NOT_PLACED);
+            ResourceManagerImpl owner = ownerOf(containerId);
+            if (owner != null) {
+                List<ContainerId> onStripe = byStripe.get(owner);
+                if (onStripe == null) {
+                    onStripe = new ArrayList<ContainerId>();
+                    byStripe.put(owner, onStripe);
+                }
+                onStripe.add(containerId);
+            }
+        }
+        for (Map.Entry<ResourceManagerImpl, List<ContainerId>> s : byStripe.entrySet()) {
+            results.putAll(s.getKey().unplaceContainers(s.getValue()));
+        }
+        return results;
+    }
+
+    /**
+     * Reconciles every stripe, see ResourceManagerImpl.reconcile.
+     *
+     * @return the number of containers and instances that were repaired.
+     */
+    public int reconcile() {
+        int repaired = 0;
+        for (ResourceManagerImpl stripe : stripes) {
+            repaired += stripe.reconcile();
+        }
+        return repaired;
+    }
+
+    /**
+     * @return true once every stripe isReady().
+     */
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    /**
+     * @return a future that completes once isReady() is true.
+     */
+    public CompletableFuture<Void> whenReady() {
+        return ready.thenApply(new Function<Void, Void>() {
+            public Void apply(Void ignored) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Same as ResourceManagerImpl.shutdown.
+     */
+    public void shutdown() {
+        for (ResourceManagerImpl stripe : stripes) {
+            stripe.shutdown();
+        }
+        deadlines.shutdown();
+    }
+
+    /**
+     * Same as ResourceManagerImpl.awaitTermination.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ResourceManagerImpl stripe : stripes) {
+            if (!stripe.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,180 @@
+package com.databricks.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One entry of a recorded workload for Simulator: either a job asking for containers, or a job
+ * giving back all of its containers. A trace is written one JSON object per line, such as
+ *
+ *     {"timeMillis": 0, "op": "place", "job": "etl-7", "containers": 40, "containerSizeGB": 8}
+ *     {"timeMillis": 5400000, "op": "unplace", "job": "etl-7"}
+ *
+ * where containerSizeGB is optional and defaults to the resource manager's container size.
+ */
+public class TraceEvent {
+
+    private final long timeMillis;
+    private final boolean place;
+    private final String job;
+    private final int numContainers;
+    private final double containerSizeGB;
+
+    private TraceEvent(long timeMillis, boolean place, String job, int numContainers, double containerSizeGB) {
+        this.timeMillis = timeMillis;
+        this.place = place;
+        this.job = job;
+        this.numContainers = numContainers;
+        this.containerSizeGB = containerSizeGB;
+    }
+
+    /**
+     * @param containerSizeGB the size of each container, NaN for the resource manager's default.
+     */
+    public static TraceEvent place(long timeMillis, String job, int numContainers, double containerSizeGB) {
+        return new TraceEvent(timeMillis, true, job, numContainers, containerSizeGB);
+    }
+
+    public static TraceEvent unplace(long timeMillis, String job) {
+        return new TraceEvent(timeMillis, false, job, 0, Double.NaN);
+    }
+
+    /**
+     * @param line one line of a trace.
+     * @throws IllegalArgumentException if the line is not a trace event.
+     */
+    public static TraceEvent parse(String line) {
+        Map<String, String> fields = parseObject(line);
+        String op = fields.get("op");
+        String time = fields.get("timeMillis");
+        String job = fields.get("job");
+        if (time == null || job == null) {
+            throw new IllegalArgumentException("Trace event needs a timeMillis and a job: " + line);
+        }
+        try {
+            if ("place".equals(op)) {
+                String size = fields.get("containerSizeGB");
+                return place(Long.parseLong(time), job, Integer.parseInt(fields.get("containers")),
+                    size == null ? Double.NaN : Double.parseDouble(size));
+            }
+            if ("unplace".equals(op)) {
+                return unplace(Long.parseLong(time), job);
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number in trace event: " + line, e);
+        }
+        throw new IllegalArgumentException("Unknown op " + op + " in trace event: " + line);
+    }
+
+    // Reads a JSON object whose values are strings, numbers, booleans or null, which is all a
+    // trace event has. Values are returned as their text.
+    private static Map<String, String> parseObject(String line) {
+        Map<String, String> fields = new HashMap<String, String>();
+        int[] pos = {skip(line, 0)};
+        expect(line, pos, '{');
+        if (peek(line, pos) == '}') {
+            return fields;
+        }
+        while (true) {
+            String key = parseString(line, pos);
+            expect(line, pos, ':');
+            String value;
+            if (peek(line, pos) == '"') {
+                value = parseString(line, pos);
+            }
+            else {
+                int start = pos[0];
+                while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = line.substring(start, pos[0]);
+                pos[0] = skip(line, pos[0]);
+            }
+            fields.put(key, value.equals("null") ? null : value);
+            if (peek(line, pos) == '}') {
+                return fields;
+            }
+            expect(line, pos, ',');
+        }
+    }
+
+    private static String parseString(String line, int[] pos) {
+        expect(line, pos, '"');
+        StringBuilder s = new StringBuilder();
+        while (pos[0] < line.length()) {
+            char c = line.charAt(pos[0]++);
+            if (c == '"') {
+                pos[0] = skip(line, pos[0]);
+                return s.toString();
+            }
+            if (c == '\\' && pos[0] < line.length()) {
+                c = line.charAt(pos[0]++);
+                if (c == 'u' && pos[0] + 4 <= line.length()) {
+                    c = (char) Integer.parseInt(line.substring(pos[0], pos[0] + 4), 16);
+                    pos[0] += 4;
+                }
+                else if (c == 'n') {
+                    c = '\n';
+                }
+                else if (c == 't') {
+                    c = '\t';
+                }
+            }
+            s.append(c);
+        }
+        throw new IllegalArgumentException("Unterminated string in trace event: " + line);
+    }
+
+    private static char peek(String line, int[] pos) {
+        if (pos[0] >= line.length()) {
+            throw new IllegalArgumentException("Trace event ends too early: " + line);
+        }
+        return line.charAt(pos[0]);
+    }
+
+    private static void expect(String line, int[] pos, char c) {
+        if (peek(line, pos) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at " + pos[0] + " in trace event: " + line);
+        }
+        pos[0] = skip(line, pos[0] + 1);
+    }
+
+    private static int skip(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * @return true if the job asks for containers, false if it gives back all of its containers.
+     */
+    public boolean isPlace() {
+        return place;
+    }
+
+    public String getJob() {
+        return job;
+    }
+
+    public int getNumContainers() {
+        return numContainers;
+    }
+
+    /**
+     * @return the size of each container, NaN for the resource manager's default.
+     */
+    public double getContainerSizeGB() {
+        return containerSizeGB;
+    }
+
+    @Override
+    public String toString() {
+        return "TraceEvent{" + timeMillis + "ms " + (place ? "place " + numContainers + " for " : "unplace ") + job + "}";
+    }
+}
@@ -0,0 +1,34 @@
+package com.databricks.manager;
+
+/**
+ * Receives a span for every placement, instance request and recovery of a resource manager, see
+ * ResourceManagerConfig.setTracer. Implementations adapt these to whatever tracing system is in
+ * use. They must be thread-safe and should return quickly, since spans are started and ended on
+ * the threads doing the work.
+ *
+ * Spans are named "placement", with attributes "containers" and "warm" (1 if no container waited
+ * for a new instance), "provisioning" for a single call to CloudProvider.requestInstance, and
+ * "recovery", with attributes "instances" and "journal" (1 if recovered from a journal), which
+ * ends once the resource manager is ready.
+ */
+public interface Tracer {
+
+    Span startSpan(String name);
+
+    /**
+     * Traces nothing, and allocates nothing doing so.
+     */
+    Tracer NOOP = new Tracer() {
+        private final Span span = new Span() {
+            public void setAttribute(String key, long value) {
+            }
+
+            public void end(Throwable failure) {
+            }
+        };
+
+        public Span startSpan(String name) {
+            return span;
+        }
+    };
+}
@@ -0,0 +1,22 @@
+package com.databricks.manager;
+
+/**
+ * What happened to a single container of AsyncResourceManager.unplaceContainers.
+ */
+public enum UnplaceResult {
+
+    /**
+     * The container was unplaced from its instance.
+     */
+    UNPLACED,
+
+    /**
+     * The container does not exist (i.e., is not placed on an instance).
+     */
+    NOT_PLACED,
+
+    /**
+     * The instance failed to unplace the container, which is still placed on it.
+     */
+    FAILED
+}
@@ -0,0 +1,173 @@
+package com.databricks.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A scheduler whose clock only moves when a task is run, for running a resource manager in
+ * simulated time, see Simulator. Tasks run on the thread that calls runNext, in the order of
+ * their due time and, for the same due time, in the order they were scheduled, so a simulation
+ * is deterministic. Running a task takes no simulated time. Tasks may be scheduled from any
+ * thread.
+ */
+class VirtualClock extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final PriorityQueue<Task<?>> tasks = new PriorityQueue<Task<?>>();
+    private long nowMillis;
+    // Breaks ties between tasks that are due at the same time.
+    private long sequence;
+    private boolean shutdown;
+
+    /**
+     * A task that is due at a point in simulated time, and again every periodMillis after it ran
+     * if that is positive.
+     */
+    private class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private long dueMillis;
+        private long order;
+        private final long periodMillis;
+
+        Task(Callable<V> callable, long dueMillis, long periodMillis) {
+            super(callable);
+            this.dueMillis = dueMillis;
+            this.periodMillis = periodMillis;
+        }
+
+        Task(Runnable runnable, long dueMillis, long periodMillis) {
+            super(runnable, null);
+            this.dueMillis = dueMillis;
+            this.periodMillis = periodMillis;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueMillis - now(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Task<?> task = (Task<?>) other;
+            if (dueMillis != task.dueMillis) {
+                return Long.compare(dueMillis, task.dueMillis);
+            }
+            return Long.compare(order, task.order);
+        }
+
+        @Override
+        public void run() {
+            if (periodMillis <= 0) {
+                super.run();
+            }
+            else if (runAndReset()) {
+                dueMillis += periodMillis;
+                enqueue(this);
+            }
+        }
+    }
+
+    /**
+     * @return the simulated time in milliseconds since the clock was created.
+     */
+    synchronized long now() {
+        return nowMillis;
+    }
+
+    /**
+     * Moves the clock to the next task that is due and runs it.
+     *
+     * @return false if there is no task left.
+     */
+    boolean runNext() {
+        Task<?> task;
+        synchronized (this) {
+            task = tasks.poll();
+            if (task == null) {
+                return false;
+            }
+            nowMillis = Math.max(nowMillis, task.dueMillis);
+        }
+        task.run();
+        return true;
+    }
+
+    /**
+     * Runs every task that is due until the given time, including the ones they schedule, and
+     * then moves the clock to it.
+     */
+    void runUntil(long millis) {
+        while (true) {
+            synchronized (this) {
+                Task<?> next = tasks.peek();
+                if (next == null || next.dueMillis > millis) {
+                    nowMillis = Math.max(nowMillis, millis);
+                    return;
+                }
+            }
+            runNext();
+        }
+    }
+
+    private synchronized <V> Task<V> enqueue(Task<V> task) {
+        task.order = sequence++;
+        tasks.add(task);
+        return task;
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new Task<Object>(command, now() + Math.max(0, unit.toMillis(delay)), 0));
+    }
+
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new Task<V>(callable, now() + Math.max(0, unit.toMillis(delay)), 0));
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        //tasks take no time, so a fixed rate and a fixed delay are the same
+        return scheduleWithFixedDelay(command, initialDelay, period, unit);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + delay);
+        }
+        return enqueue(new Task<Object>(command, now() + Math.max(0, unit.toMillis(initialDelay)),
+            Math.max(1, unit.toMillis(delay))));
+    }
+
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Only marks the clock as shut down, tasks that are scheduled still run when the clock is
+     * advanced, so that whoever shares it is not cut off.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<Runnable>(tasks);
+        tasks.clear();
+        return pending;
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    public synchronized boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+}
@@ -0,0 +1,120 @@
+package com.databricks.manager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how many free container slots the resource manager keeps ready, so that placements do
+ * not have to wait minutes for the cloud provider. The target is a fixed number of slots plus the
+ * containers expected to be asked for while a new instance boots. Demand is forecast with an
+ * exponentially weighted moving average of the rate at which containers were asked for, updated
+ * once per interval. Also counts how many placements were served from free capacity and how many
+ * had to wait for new instances. All methods are thread-safe.
+ */
+class WarmPool {
+
+    // Weight of the latest interval in the moving average.
+    private static final double SMOOTHING = 0.2;
+
+    private final int minimumSlots;
+    private final long leadTimeMillis;
+    private final long intervalMillis;
+    private final ScheduledExecutorService timer;
+
+    // Containers asked for since the last interval.
+    private final AtomicLong demand = new AtomicLong();
+    // Forecast containers asked for per second, guarded by this object's monitor.
+    private double containersPerSecond;
+    private final AtomicLong warmPlacements = new AtomicLong();
+    private final AtomicLong coldPlacements = new AtomicLong();
+    private final AtomicLong instancesRequested = new AtomicLong();
+
+    /**
+     * @param minimumSlots free container slots to keep ready no matter the demand.
+     * @param leadTimeMillis how far ahead demand is provisioned for, about as long as an instance
+     *                       takes to boot. 0 turns the forecast off.
+     * @param intervalMillis how often the forecast is updated and the pool topped up.
+     * @param timer runs the updates, null for a thread of our own.
+     */
+    WarmPool(int minimumSlots, long leadTimeMillis, long intervalMillis, ScheduledExecutorService timer) {
+        this.minimumSlots = minimumSlots;
+        this.leadTimeMillis = leadTimeMillis;
+        this.intervalMillis = intervalMillis;
+        this.timer = timer != null ? timer : Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "warm-pool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    boolean isEnabled() {
+        return minimumSlots > 0 || leadTimeMillis > 0;
+    }
+
+    /**
+     * Updates the forecast and runs topUp every interval until shutdown, starting one interval
+     * from now.
+     */
+    void schedule(final Runnable topUp) {
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                    topUp.run();
+                }
+                catch (RuntimeException e) {
+                    // Do some logging
+                    System.err.println("ERROR OCCURRED TOPPING UP THE WARM POOL: " + e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        timer.shutdown();
+    }
+
+    /**
+     * Records a placement of numContainers containers.
+     *
+     * @param warm true if every container was placed on an instance we had already.
+     */
+    void placed(int numContainers, boolean warm) {
+        demand.addAndGet(numContainers);
+        if (warm) {
+            warmPlacements.incrementAndGet();
+        }
+        else {
+            coldPlacements.incrementAndGet();
+        }
+    }
+
+    void requested(int numInstances) {
+        instancesRequested.addAndGet(numInstances);
+    }
+
+    /**
+     * Folds the demand since the last call into the forecast.
+     */
+    synchronized void tick() {
+        double rate = demand.getAndSet(0) * 1000.0 / intervalMillis;
+        containersPerSecond = SMOOTHING * rate + (1 - SMOOTHING) * containersPerSecond;
+    }
+
+    /**
+     * @return the number of free container slots to keep ready.
+     */
+    synchronized int getTargetSlots() {
+        return minimumSlots + (int) Math.ceil(containersPerSecond * leadTimeMillis / 1000.0);
+    }
+
+    synchronized WarmPoolStats getStats() {
+        return new WarmPoolStats(warmPlacements.get(), coldPlacements.get(), instancesRequested.get(),
+            containersPerSecond, getTargetSlots());
+    }
+}
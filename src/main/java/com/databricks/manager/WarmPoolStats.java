@@ -0,0 +1,69 @@
+package com.databricks.manager;
+
+/**
+ * How well the warm pool of a resource manager is doing, as of the moment it was taken.
+ */
+public class WarmPoolStats {
+
+    private final long warmPlacements;
+    private final long coldPlacements;
+    private final long instancesRequested;
+    private final double forecastContainersPerSecond;
+    private final int targetSlots;
+
+    WarmPoolStats(long warmPlacements, long coldPlacements, long instancesRequested,
+                  double forecastContainersPerSecond, int targetSlots) {
+        this.warmPlacements = warmPlacements;
+        this.coldPlacements = coldPlacements;
+        this.instancesRequested = instancesRequested;
+        this.forecastContainersPerSecond = forecastContainersPerSecond;
+        this.targetSlots = targetSlots;
+    }
+
+    /**
+     * @return the number of placements whose containers were all placed on existing instances.
+     */
+    public long getWarmPlacements() {
+        return warmPlacements;
+    }
+
+    /**
+     * @return the number of placements that had to wait for at least one new instance.
+     */
+    public long getColdPlacements() {
+        return coldPlacements;
+    }
+
+    /**
+     * @return the fraction of placements that did not wait for a new instance, or 1 if there were
+     *         none yet.
+     */
+    public double getWarmRatio() {
+        long total = warmPlacements + coldPlacements;
+        return total == 0 ? 1 : (double) warmPlacements / total;
+    }
+
+    /**
+     * @return the number of instances the warm pool requested ahead of need.
+     */
+    public long getInstancesRequested() {
+        return instancesRequested;
+    }
+
+    public double getForecastContainersPerSecond() {
+        return forecastContainersPerSecond;
+    }
+
+    /**
+     * @return the number of free container slots the warm pool is keeping ready.
+     */
+    public int getTargetSlots() {
+        return targetSlots;
+    }
+
+    @Override
+    public String toString() {
+        return "WarmPoolStats{warm=" + warmPlacements + ", cold=" + coldPlacements + ", requested=" +
+            instancesRequested + ", forecast=" + forecastContainersPerSecond + "/s, target=" + targetSlots + "}";
+    }
+}
@@ -5,10 +5,26 @@ import org.junit.Before;
 import org.junit.Test;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.*;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 import org.mockito.invocation.InvocationOnMock;
@@ -65,6 +81,30 @@ class placeContainerThread implements Runnable {
         }
 }
 
+/*
+ * Instance that counts the calls asking for its state
+ * Used to test that recovering from the journal leaves instances alone
+ */
+class CountingInstance extends InstanceImpl {
+    static final AtomicInteger stateCalls = new AtomicInteger();
+
+    public CountingInstance(double memoryGB) {
+        super(memoryGB);
+    }
+
+    @Override
+        public double getRemainingMemoryGB() {
+            stateCalls.incrementAndGet();
+            return super.getRemainingMemoryGB();
+        }
+
+    @Override
+        public List<ContainerId> getAllContainers() {
+            stateCalls.incrementAndGet();
+            return super.getAllContainers();
+        }
+}
+
 
 public class ResourceManagerImplTest {
     private static CloudProvider cp;
@@ -188,4 +228,1359 @@ public class ResourceManagerImplTest {
                 ;
             verify(cp, times(1)).requestInstance();
         }
+
+    @Test(timeout = 5000)
+        //Placements that fit existing capacity should not wait behind a caller that is provisioning
+        public void testPlacementNotBlockedByProvisioning() throws Exception {
+            instanceSize = 5;
+            final CountDownLatch booting = new CountDownLatch(1);
+            final CountDownLatch boot = new CountDownLatch(1);
+            when(cp.requestInstance()).thenReturn(new InstanceImpl(instanceSize)).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws Throwable {
+                    booting.countDown();
+                    boot.await();
+                    return new InstanceImpl(instanceSize);
+                }
+            });
+            final ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            List<ContainerId> li = rm.placeContainers(4);
+
+            //takes the last free slot and then waits for a second instance
+            Thread provisioning = new Thread(new placeContainerThread(rm, 3));
+            provisioning.start();
+            booting.await();
+
+            rm.unplaceContainer(li.get(0));
+            List<ContainerId> fast = rm.placeContainers(1);
+            assertTrue(fast.size() == 1);
+            assertTrue(rm.getInstance(fast.get(0)) == rm.getInstance(li.get(1)));
+
+            boot.countDown();
+            provisioning.join();
+            verify(cp, times(2)).requestInstance();
+        }
+
+    @Test(timeout = 5000)
+        //A placement made while an instance is still being requested should land on that instance
+        public void testPlacementJoinsPendingInstance() throws Exception {
+            instanceSize = 5;
+            final CountDownLatch booting = new CountDownLatch(1);
+            final CountDownLatch boot = new CountDownLatch(1);
+            final Instance instance = new InstanceImpl(instanceSize);
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws Throwable {
+                    booting.countDown();
+                    boot.await();
+                    return instance;
+                }
+            });
+            final ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            Thread first = new Thread(new placeContainerThread(rm, 2));
+            first.start();
+            booting.await();
+
+            Thread second = new Thread(new placeContainerThread(rm, 3));
+            second.start();
+            //wait until the second caller is parked on the pending instance
+            while (second.getState() != Thread.State.WAITING)
+                Thread.sleep(1);
+            boot.countDown();
+            first.join();
+            second.join();
+
+            verify(cp, times(1)).requestInstance();
+            assertTrue(instance.getAllContainers().size() == 5);
+        }
+
+    @Test(timeout = 5000)
+        //Containers on existing instances should be available before the rest of the request boots
+        public void testIncrementalPlacementAndCancellation() throws Exception {
+            instanceSize = 2;
+            final CountDownLatch boot = new CountDownLatch(1);
+            final Instance second = new InstanceImpl(instanceSize);
+            when(cp.requestInstance()).thenReturn(new InstanceImpl(instanceSize)).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws Throwable {
+                    boot.await();
+                    return second;
+                }
+            });
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            List<ContainerId> li = rm.placeContainers(1);
+
+            List<CompletableFuture<ContainerId>> slots = rm.placeContainersIncrementally(3);
+            assertTrue(slots.get(0).isDone());
+            assertTrue(rm.getInstance(slots.get(0).get()) == rm.getInstance(li.get(0)));
+            assertTrue(!slots.get(1).isDone() && !slots.get(2).isDone());
+            slots.get(2).cancel(false);
+
+            boot.countDown();
+            assertTrue(rm.getInstance(slots.get(1).get()) == second);
+            //the cancelled container's memory should be free again
+            assertTrue(rm.getInstance(rm.placeContainers(1).get(0)) == second);
+            assertTrue(second.getAllContainers().size() == 2);
+            verify(cp, times(2)).requestInstance();
+        }
+
+    @Test(timeout = 5000)
+        //Cancelling an asynchronous placement should unplace whatever was placed for it
+        public void testAsyncPlacementCancellation() throws Exception {
+            instanceSize = 4;
+            final CountDownLatch boot = new CountDownLatch(1);
+            final Instance first = new InstanceImpl(instanceSize);
+            final Instance second = new InstanceImpl(instanceSize);
+            when(cp.requestInstance()).thenReturn(first).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws Throwable {
+                    boot.await();
+                    return second;
+                }
+            });
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            rm.placeContainers(2);
+
+            CompletableFuture<List<ContainerId>> placement = rm.placeContainersAsync(4);
+            assertTrue(first.getAllContainers().size() == 4);
+            assertTrue(placement.cancel(false));
+            assertTrue(first.getAllContainers().size() == 2);
+
+            boot.countDown();
+            List<ContainerId> li = rm.placeContainersAsync(6).get();
+            assertTrue(li.size() == 6);
+            assertTrue(first.getAllContainers().size() == 4 && second.getAllContainers().size() == 4);
+            verify(cp, times(2)).requestInstance();
+        }
+
+    @Test(timeout = 5000)
+        //No more than the configured number of instance requests should run at once
+        public void testBoundedProvisioning() throws Exception {
+            instanceSize = 1;
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws Throwable {
+                    int now = running.incrementAndGet();
+                    while (true) {
+                        int max = maxRunning.get();
+                        if (now <= max || maxRunning.compareAndSet(max, now))
+                            break;
+                    }
+                    Thread.sleep(20);
+                    running.decrementAndGet();
+                    return new InstanceImpl(instanceSize);
+                }
+            });
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1,
+                new ResourceManagerConfig().setMaxConcurrentInstanceRequests(2));
+            assertTrue(rm.placeContainers(10).size() == 10);
+            verify(cp, times(10)).requestInstance();
+            assertTrue(maxRunning.get() == 2);
+
+            rm.shutdown();
+            assertTrue(rm.awaitTermination(1, TimeUnit.SECONDS));
+            try {
+                rm.placeContainersAsync(1).get();
+                assertTrue(false);
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+
+    @Test
+        //Unplaced containers should disappear from the index and only be unplaced once
+        public void testUnplaceRemovesContainer() {
+            instanceSize = 5;
+            when(cp.requestInstance()).thenReturn(new InstanceImpl(instanceSize));
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            List<ContainerId> li = rm.placeContainers(2);
+            rm.unplaceContainer(li.get(0));
+            try {
+                rm.getInstance(li.get(0));
+                assertTrue(false);
+            }
+            catch (IllegalArgumentException e) {
+            }
+            try {
+                rm.unplaceContainer(li.get(0));
+                assertTrue(false);
+            }
+            catch (IllegalArgumentException e) {
+            }
+            assertTrue(rm.getInstance(li.get(1)).getAllContainers().size() == 1);
+        }
+
+    /*
+     * Restores a manager on two instances of size 4: one with 3 GB free and one with 1 GB free.
+     */
+    private ResourceManagerImpl managerWithTwoInstances(PlacementPolicy.Factory policy, Instance emptier, Instance fuller) {
+        emptier.placeContainer(1);
+        fuller.placeContainer(3);
+        HashSet<Instance> instances = new HashSet<Instance>();
+        instances.add(emptier);
+        instances.add(fuller);
+        when(cp.getAllInstances()).thenReturn(instances);
+        return new ResourceManagerImpl(cp, 4, 1, new ResourceManagerConfig().setPlacementPolicy(policy));
+    }
+
+    @Test
+        //Best fit should fill the fullest instance, unless a tighter instance holds the whole request
+        public void testBestFitPolicy() {
+            for (PlacementPolicy.Factory policy : new PlacementPolicy.Factory[] {PlacementPolicies.BEST_FIT, PlacementPolicies.BUCKETED}) {
+                initObjects();
+                Instance emptier = new InstanceImpl(4);
+                Instance fuller = new InstanceImpl(4);
+                ResourceManagerImpl rm = managerWithTwoInstances(policy, emptier, fuller);
+                assertTrue(rm.getInstance(rm.placeContainers(1).get(0)) == fuller);
+                List<ContainerId> li = rm.placeContainers(2);
+                assertTrue(rm.getInstance(li.get(0)) == emptier && rm.getInstance(li.get(1)) == emptier);
+                verify(cp, never()).requestInstance();
+            }
+        }
+
+    @Test
+        //Containers smaller than the default size should use memory left over from a partly used slot
+        public void testPartialSlots() {
+            for (PlacementPolicy.Factory policy : new PlacementPolicy.Factory[] {PlacementPolicies.BEST_FIT, PlacementPolicies.BUCKETED}) {
+                initObjects();
+                when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                    @Override
+                    public Instance answer(InvocationOnMock invocation) {
+                        return new InstanceImpl(4);
+                    }
+                });
+                ResourceManagerImpl rm = new ResourceManagerImpl(cp, 4, 1, new ResourceManagerConfig().setPlacementPolicy(policy));
+                ContainerId large = rm.placeContainers(new PlacementRequest().addContainers(1, 3.5)).get(0);
+                ContainerId small = rm.placeContainers(new PlacementRequest().addContainers(1, 0.5)).get(0);
+                assertTrue(rm.getInstance(small) == rm.getInstance(large));
+                verify(cp, times(1)).requestInstance();
+            }
+        }
+
+    @Test
+        //Bucketed should find the tightest partly used slot without going over the whole bucket
+        public void testBucketedPartialSlots() {
+            PlacementPolicy policy = PlacementPolicies.BUCKETED.create(4, 1);
+            Instance small = new InstanceImpl(4);
+            Instance large = new InstanceImpl(4);
+            Instance tight = new InstanceImpl(4);
+            Instance full = new InstanceImpl(4);
+            policy.add(small, 0.3);
+            policy.add(large, 0.9);
+            policy.add(tight, 0.6);
+            policy.add(full, 2);
+            assertTrue(policy.select(0.5, 1) == tight);
+            assertTrue(policy.select(0.95, 1) == full);
+            policy.remove(tight, 0.6);
+            assertTrue(policy.select(0.5, 1) == large);
+            policy.remove(large, 0.9);
+            assertTrue(policy.select(0.5, 1) == full);
+            policy.remove(full, 2);
+            assertTrue(policy.select(0.5, 1) == null);
+        }
+
+    @Test
+        //Worst fit should spread containers onto the emptiest instance
+        public void testWorstFitPolicy() {
+            Instance emptier = new InstanceImpl(4);
+            Instance fuller = new InstanceImpl(4);
+            ResourceManagerImpl rm = managerWithTwoInstances(PlacementPolicies.WORST_FIT, emptier, fuller);
+            assertTrue(rm.getInstance(rm.placeContainers(1).get(0)) == emptier);
+            assertTrue(rm.placeContainers(3).size() == 3);
+            assertTrue(emptier.getRemainingMemoryGB() == 0 && fuller.getRemainingMemoryGB() == 0);
+            verify(cp, never()).requestInstance();
+        }
+
+    @Test
+        //First fit should keep using the instance that joined first, however recently others changed
+        public void testFirstFitPolicy() {
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) {
+                    return new InstanceImpl(4);
+                }
+            });
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, 4, 1,
+                new ResourceManagerConfig().setPlacementPolicy(PlacementPolicies.FIRST_FIT_DECREASING));
+            List<ContainerId> first = rm.placeContainers(4);
+            List<ContainerId> second = rm.placeContainers(4);
+            Instance older = rm.getInstance(first.get(0));
+            assertTrue(rm.getInstance(second.get(0)) != older);
+            rm.unplaceContainer(second.get(0));
+            rm.unplaceContainer(first.get(0));
+            assertTrue(rm.getInstance(rm.placeContainers(1).get(0)) == older);
+            verify(cp, times(2)).requestInstance();
+        }
+
+    @Test
+        //Containers of different sizes should be packed together onto as few instances as possible
+        public void testMixedContainerSizes() {
+            instanceSize = 16;
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) {
+                    return new InstanceImpl(instanceSize);
+                }
+            });
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 4);
+            //first-fit decreasing: 10+6 and 6+6+4
+            PlacementRequest request = new PlacementRequest().addContainers(1, 4).addContainers(3, 6).addContainers(1, 10);
+            List<ContainerId> li = rm.placeContainers(request);
+            assertTrue(li.size() == 5);
+            verify(cp, times(2)).requestInstance();
+            assertTrue(rm.getInstance(li.get(4)) == rm.getInstance(li.get(1)));
+
+            //the 10 GB container's memory can be reused by smaller containers
+            rm.unplaceContainer(li.get(4));
+            assertTrue(rm.placeContainers(new PlacementRequest().addContainers(2, 5)).size() == 2);
+            verify(cp, times(2)).requestInstance();
+        }
+
+    @Test
+        //Measuring what a container of unknown size freed should not count a placement that lands meanwhile
+        public void testUnplaceUnknownSizeRace() throws Exception {
+            final InstanceImpl delegate = new InstanceImpl(4);
+            final ContainerId old = delegate.placeContainer(2);
+            final CountDownLatch unplacing = new CountDownLatch(1);
+            final CountDownLatch resume = new CountDownLatch(1);
+            //an instance that does not lock itself
+            Instance host = new Instance() {
+                public double getRemainingMemoryGB() {
+                    return delegate.getRemainingMemoryGB();
+                }
+
+                public List<ContainerId> getAllContainers() {
+                    return delegate.getAllContainers();
+                }
+
+                public ContainerId placeContainer(double memoryGB) {
+                    return delegate.placeContainer(memoryGB);
+                }
+
+                public void unplaceContainer(ContainerId containerId) {
+                    delegate.unplaceContainer(containerId);
+                    unplacing.countDown();
+                    try {
+                        resume.await(5, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            HashSet<Instance> instances = new HashSet<Instance>();
+            instances.add(host);
+            when(cp.getAllInstances()).thenReturn(instances);
+            final ResourceManagerImpl rm = new ResourceManagerImpl(cp, 4, 1);
+            rm.whenReady().get();
+
+            Thread unplace = new Thread(new Runnable() {
+                public void run() {
+                    rm.unplaceContainer(old);
+                }
+            });
+            unplace.start();
+            unplacing.await();
+            Thread place = new Thread(new Runnable() {
+                public void run() {
+                    rm.placeContainers(1);
+                }
+            });
+            place.start();
+            Thread.sleep(200);
+            resume.countDown();
+            unplace.join();
+            place.join();
+            assertTrue(host.getRemainingMemoryGB() == 3);
+            assertTrue(rm.getFreeSlots() == 3);
+            verify(cp, never()).requestInstance();
+        }
+
+    @Test
+        //Unplacing a container placed before a restart should free exactly its memory
+        public void testUnplaceRestoredContainer() {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 1);
+            List<ContainerId> li = rm.placeContainers(new PlacementRequest().addContainers(1, 6).addContainers(1, 4));
+            assertTrue(cp_real.getInstanceCount() == 1);
+
+            ResourceManagerImpl rm_new = new ResourceManagerImpl(cp_real, instanceSize, 1);
+            rm_new.unplaceContainer(li.get(0));
+            assertTrue(rm_new.placeContainers(6).size() == 6);
+            assertTrue(cp_real.getInstanceCount() == 1);
+        }
+
+    private static HashSet<Instance> journaledFleet(final double size) {
+        final HashSet<Instance> instances = new HashSet<Instance>();
+        when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+            @Override
+            public Instance answer(InvocationOnMock invocation) {
+                Instance i = new CountingInstance(size);
+                synchronized (instances) {
+                    instances.add(i);
+                }
+                return i;
+            }
+        });
+        when(cp.getAllInstances()).thenReturn(instances);
+        return instances;
+    }
+
+    @Test
+        //A restart should recover from the journal and its snapshots, asking each instance for its state only once
+        public void testJournalRecovery() throws Exception {
+            instanceSize = 10;
+            File dir = Files.createTempDirectory("journal").toFile();
+            journaledFleet(instanceSize);
+            ResourceManagerConfig config = new ResourceManagerConfig().setJournalDirectory(dir).setJournalSnapshotInterval(5);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1, config);
+            List<ContainerId> li = rm.placeContainers(new PlacementRequest().addContainers(20, 1).addContainers(2, 3));
+            verify(cp, times(3)).requestInstance();
+            rm.unplaceContainer(li.get(0));
+            rm.unplaceContainer(li.get(21));
+            Instance host = rm.getInstance(li.get(1));
+            rm.shutdown();
+            assertTrue(rm.awaitTermination(5, TimeUnit.SECONDS));
+
+            CountingInstance.stateCalls.set(0);
+            ResourceManagerImpl rm_new = new ResourceManagerImpl(cp, instanceSize, 1, config);
+            assertTrue(rm_new.getInstance(li.get(1)) == host);
+            rm_new.whenReady().get();
+            assertTrue(CountingInstance.stateCalls.get() <= 2 * 3);
+            try {
+                rm_new.getInstance(li.get(0));
+                assertTrue(false);
+            }
+            catch (IllegalArgumentException e) {
+            }
+
+            //the 1 and 3 GB that were unplaced are free again
+            assertTrue(rm_new.placeContainers(new PlacementRequest().addContainers(1, 3).addContainers(1, 1)).size() == 2);
+            verify(cp, times(3)).requestInstance();
+            rm_new.shutdown();
+            assertTrue(rm_new.awaitTermination(5, TimeUnit.SECONDS));
+        }
+
+    @Test
+        //A snapshot should hold every record written before it and no instance key handed out since
+        public void testJournalSnapshotKeys() throws Exception {
+            File dir = Files.createTempDirectory("journal").toFile();
+            StateJournal journal = new StateJournal(dir, 100000, 2);
+            long first = journal.nextKey();
+            journal.instanceAdded(first, 4);
+            ContainerId c = new ContainerId("c");
+            journal.placed(c, first, 1);
+            long unused = journal.nextKey();
+            journal.flush();
+            assertTrue(journal.nextKey() > unused);
+            journal.close();
+
+            StateJournal reopened = new StateJournal(dir, 100000, 2);
+            StateJournal.State state = reopened.getRecoveredState();
+            assertTrue(state.freeMemoryGB.get(first) == 3);
+            assertTrue(state.containers.get(c).instanceKey == first);
+            assertTrue(reopened.nextKey() > unused);
+            reopened.close();
+        }
+
+    @Test
+        //Containers the journal missed should be picked up once their instance is used
+        public void testJournalRecoveryDrift() throws IOException, InterruptedException {
+            instanceSize = 10;
+            File dir = Files.createTempDirectory("journal").toFile();
+            HashSet<Instance> instances = journaledFleet(instanceSize);
+            ResourceManagerConfig config = new ResourceManagerConfig().setJournalDirectory(dir);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1, config);
+            List<ContainerId> li = rm.placeContainers(4);
+            rm.shutdown();
+            assertTrue(rm.awaitTermination(5, TimeUnit.SECONDS));
+            //placed and requested behind the journal's back
+            Instance host = rm.getInstance(li.get(0));
+            ContainerId missed = host.placeContainer(6);
+            Instance unknown = cp.requestInstance();
+            ContainerId adopted = unknown.placeContainer(2);
+
+            ResourceManagerImpl rm_new = new ResourceManagerImpl(cp, instanceSize, 1, config);
+            assertTrue(rm_new.getInstance(li.get(0)) == host);
+            assertTrue(rm_new.getInstance(missed) == host);
+            //the known instance is full, the adopted one has room for 8 more
+            assertTrue(rm_new.placeContainers(8).size() == 8);
+            assertTrue(instances.size() == 2);
+            assertTrue(rm_new.getInstance(adopted) == unknown);
+            rm_new.unplaceContainer(missed);
+            assertTrue(rm_new.placeContainers(6).size() == 6);
+            assertTrue(instances.size() == 2);
+        }
+
+    @Test(timeout = 5000)
+        //A restart should serve containers on instances that were already looked at while others are still answering
+        public void testRestoreInBackground() throws Exception {
+            instanceSize = 10;
+            final CountDownLatch answer = new CountDownLatch(1);
+            final CountDownLatch asked = new CountDownLatch(1);
+            Instance fast = new InstanceImpl(instanceSize) {
+                @Override
+                public double getRemainingMemoryGB() {
+                    asked.countDown();
+                    return super.getRemainingMemoryGB();
+                }
+            };
+            Instance slow = new InstanceImpl(instanceSize) {
+                @Override
+                public List<ContainerId> getAllContainers() {
+                    try {
+                        answer.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.getAllContainers();
+                }
+            };
+            ContainerId onFast = fast.placeContainer(4);
+            ContainerId onSlow = slow.placeContainer(4);
+            HashSet<Instance> instances = new HashSet<Instance>();
+            instances.add(fast);
+            instances.add(slow);
+            when(cp.getAllInstances()).thenReturn(instances);
+
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            assertTrue(!rm.isReady());
+            asked.await();
+            Thread.sleep(100);
+            assertTrue(rm.getInstance(onFast) == fast);
+            assertTrue(!rm.isReady());
+            answer.countDown();
+            assertTrue(rm.getInstance(onSlow) == slow);
+            rm.whenReady().get();
+            assertTrue(rm.placeContainers(12).size() == 12);
+            verify(cp, never()).requestInstance();
+        }
+
+    @Test
+        //Unplacing a container that is not known yet should not block the caller until recovery finishes
+        public void testUnplaceAsyncBeforeReady() throws Exception {
+            instanceSize = 8;
+            final CountDownLatch answer = new CountDownLatch(1);
+            Instance slow = new InstanceImpl(instanceSize) {
+                @Override
+                public List<ContainerId> getAllContainers() {
+                    try {
+                        answer.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.getAllContainers();
+                }
+            };
+            ContainerId onSlow = slow.placeContainer(4);
+            HashSet<Instance> instances = new HashSet<Instance>();
+            instances.add(slow);
+            when(cp.getAllInstances()).thenReturn(instances);
+
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            StripedResourceManager striped = new StripedResourceManager(cp, instanceSize, 1, 2);
+            //so that a blocked caller fails instead of hanging
+            Thread release = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(2000);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    answer.countDown();
+                }
+            });
+            release.setDaemon(true);
+            release.start();
+            CompletableFuture<Void> unplaced = rm.unplaceContainerAsync(onSlow);
+            CompletableFuture<Void> stripedUnplaced = striped.unplaceContainerAsync(new ContainerId("missing"));
+            assertTrue(!unplaced.isDone());
+            assertTrue(!stripedUnplaced.isDone());
+            answer.countDown();
+            unplaced.join();
+            assertTrue(slow.getRemainingMemoryGB() == 8);
+            assertTrue(rm.getFreeSlots() == 8);
+            try {
+                stripedUnplaced.join();
+                assertTrue(false);
+            }
+            catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+        }
+
+    @Test
+        //A manager that checks for drift periodically should still be collected once it is dropped
+        public void testReconcileTimerLetsGo() throws Exception {
+            instanceSize = 4;
+            assertTrue(new ResourceManagerConfig().getReconciliationIntervalMillis() == 0);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1,
+                new ResourceManagerConfig().setReconciliationIntervalMillis(10));
+            rm.whenReady().join();
+            WeakReference<ResourceManagerImpl> ref = new WeakReference<ResourceManagerImpl>(rm);
+            rm = null;
+            for (int i = 0; i < 50 && ref.get() != null; i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertTrue(ref.get() == null);
+        }
+
+    @Test
+        //Containers and instances that changed behind the manager's back should be repaired once seen twice
+        public void testReconcileDrift() {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 2,
+                new ResourceManagerConfig().setReconciliationIntervalMillis(0));
+            List<ContainerId> li = rm.placeContainers(2);
+            Instance host = rm.getInstance(li.get(0));
+            host.unplaceContainer(li.get(0));
+            ContainerId extra = host.placeContainer(3);
+            Instance unknown = cp_real.requestInstance();
+            ContainerId adopted = unknown.placeContainer(5);
+
+            assertTrue(rm.reconcile() == 0);
+            //both containers and the adopted instance
+            assertTrue(rm.reconcile() == 3);
+            //the extra container's size is unknown, the host's free memory is repaired once seen twice
+            assertTrue(rm.reconcile() == 0);
+            assertTrue(rm.reconcile() == 1);
+            assertTrue(rm.reconcile() == 0);
+            assertTrue(rm.getMetrics().getDriftRepaired() == 4);
+            assertTrue(rm.getInstance(extra) == host);
+            assertTrue(rm.getInstance(adopted) == unknown);
+            try {
+                rm.getInstance(li.get(0));
+                assertTrue(false);
+            }
+            catch (IllegalArgumentException e) {
+            }
+            //3 GB left on the known instance and 5 GB on the adopted one
+            assertTrue(rm.placeContainers(3).size() == 3);
+            assertTrue(cp_real.getInstanceCount() == 2);
+        }
+
+    @Test
+        //Unplacing a whole cluster at once should free its memory and report on every container
+        public void testUnplaceContainers() {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 1);
+            List<ContainerId> cluster = rm.placeContainers(35);
+            List<ContainerId> other = rm.placeContainers(new PlacementRequest().addContainers(5, 3));
+            assertTrue(cp_real.getInstanceCount() == 6);
+
+            List<ContainerId> teardown = new ArrayList<ContainerId>(cluster);
+            teardown.add(new ContainerId("unknown"));
+            teardown.add(cluster.get(0));
+            Map<ContainerId, UnplaceResult> results = rm.unplaceContainers(teardown);
+            assertTrue(results.size() == 36);
+            for (ContainerId containerId : cluster) {
+                assertTrue(results.get(containerId) == UnplaceResult.UNPLACED);
+            }
+            assertTrue(results.get(new ContainerId("unknown")) == UnplaceResult.NOT_PLACED);
+            assertTrue(rm.getInstance(other.get(0)) != null);
+            try {
+                rm.getInstance(cluster.get(1));
+                assertTrue(false);
+            }
+            catch (IllegalArgumentException e) {
+            }
+
+            //35 GB were freed
+            assertTrue(rm.placeContainers(35).size() == 35);
+            assertTrue(cp_real.getInstanceCount() == 6);
+        }
+
+    @Test
+        //Instances should keep track of their containers through any order of placements and unplacements
+        public void testInstanceBookkeeping() {
+            InstanceImpl instance = new InstanceImpl(1000);
+            HashMap<ContainerId, Double> placed = new HashMap<ContainerId, Double>();
+            Random random = new Random(42);
+            double used = 0;
+            for (int x = 0; x < 2000; x++) {
+                if (placed.isEmpty() || random.nextInt(3) > 0) {
+                    double size = 1 + random.nextInt(3) / 4.0;
+                    if (instance.getRemainingMemoryGB() >= size) {
+                        placed.put(instance.placeContainer(size), size);
+                        used += size;
+                    }
+                }
+                else {
+                    ContainerId containerId = new ArrayList<ContainerId>(placed.keySet()).get(random.nextInt(placed.size()));
+                    instance.unplaceContainer(containerId);
+                    used -= placed.remove(containerId);
+                }
+            }
+            assertTrue(Math.abs(instance.getRemainingMemoryGB() - (1000 - used)) < 1e-9);
+            List<ContainerId> containers = instance.getAllContainers();
+            assertTrue(containers.size() == placed.size());
+            assertTrue(new HashSet<ContainerId>(containers).equals(placed.keySet()));
+            assertTrue(instance.getAllContainers() == containers);
+
+            ContainerId first = containers.get(0);
+            instance.unplaceContainer(first);
+            assertTrue(containers.size() == placed.size());
+            assertTrue(instance.getAllContainers().size() == placed.size() - 1);
+            try {
+                instance.unplaceContainer(first);
+                assertTrue(false);
+            }
+            catch (IllegalArgumentException e) {
+            }
+            try {
+                containers.clear();
+                assertTrue(false);
+            }
+            catch (UnsupportedOperationException e) {
+            }
+        }
+
+    @Test
+        //Compact container ids should behave exactly like the strings they stand for
+        public void testContainerIdEncoding() {
+            ContainerId packed = ContainerId.of(12, 34);
+            assertTrue(packed.getId().equals("12-34"));
+            assertTrue(packed.equals(new ContainerId("12-34")));
+            assertTrue(packed.hashCode() == new ContainerId("12-34").hashCode());
+            assertTrue(!packed.equals(new ContainerId("012-34")));
+            assertTrue(new ContainerId("012-34").getId().equals("012-34"));
+            assertTrue(new ContainerId("a-b").equals(new ContainerId("a-b")));
+            assertTrue(new ContainerId("1-2-3").getId().equals("1-2-3"));
+            assertTrue(!new ContainerId("1-2").equals(new ContainerId("1-2-3")));
+            assertTrue(new ContainerId("99999999999999999999-1").getId().equals("99999999999999999999-1"));
+
+            HashSet<ContainerId> ids = new HashSet<ContainerId>();
+            ids.add(new ContainerId("7-1"));
+            assertTrue(ids.contains(ContainerId.of(7, 1)));
+            assertTrue(!ids.contains(ContainerId.of(1, 7)));
+        }
+
+    @Test
+        //Placing and unplacing containers one by one should never strand memory to rounding errors
+        public void testExactMemoryAccounting() {
+            instanceSize = 1;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 0.1);
+            List<ContainerId> li = new ArrayList<ContainerId>();
+            for (int x = 0; x < 10; x++) {
+                li.addAll(rm.placeContainers(1));
+            }
+            assertTrue(cp_real.getInstanceCount() == 1);
+            for (int round = 0; round < 100; round++) {
+                rm.unplaceContainer(li.remove(0));
+                rm.unplaceContainer(li.remove(0));
+                ContainerId bigger = rm.placeContainers(new PlacementRequest().addContainers(1, 0.2)).get(0);
+                rm.unplaceContainer(bigger);
+                li.addAll(rm.placeContainers(2));
+            }
+            assertTrue(cp_real.getInstanceCount() == 1);
+        }
+
+    @Test
+        //The warm pool should keep slots ready so that placements do not wait for new instances
+        public void testWarmPool() {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 2,
+                new ResourceManagerConfig().setWarmPoolSlots(6).setWarmPoolIntervalMillis(60000));
+            rm.whenReady().join();
+            rm.topUpWarmPool().join();
+            assertTrue(cp_real.getInstanceCount() == 2);
+            //already warm enough
+            rm.topUpWarmPool().join();
+            assertTrue(cp_real.getInstanceCount() == 2);
+
+            assertTrue(rm.placeContainers(6).size() == 6);
+            assertTrue(cp_real.getInstanceCount() == 2);
+            //4 slots left, one more instance makes 9
+            rm.topUpWarmPool().join();
+            assertTrue(cp_real.getInstanceCount() == 3);
+            assertTrue(rm.placeContainers(11).size() == 11);
+            assertTrue(cp_real.getInstanceCount() == 4);
+
+            WarmPoolStats stats = rm.getWarmPoolStats();
+            assertTrue(stats.getWarmPlacements() == 1);
+            assertTrue(stats.getColdPlacements() == 1);
+            assertTrue(stats.getInstancesRequested() == 3);
+            assertTrue(stats.getTargetSlots() == 6);
+            rm.shutdown();
+        }
+
+    @Test
+        //Failed instance requests should halve the concurrency limit, successes grow it back slowly
+        public void testAdaptiveProvisioning() throws Exception {
+            instanceSize = 1;
+            when(cp.requestInstance()).thenThrow(new RuntimeException("throttled"))
+                .thenReturn(new InstanceImpl(instanceSize));
+            InstanceProvisioner provisioner = new InstanceProvisioner(cp, 4, 8, 100,
+                InstanceProvisioner.defaultThreadFactory());
+            assertTrue(provisioner.getConcurrencyLimit() == 4);
+            try {
+                provisioner.requestInstance().get();
+                assertTrue(false);
+            }
+            catch (ExecutionException e) {
+            }
+            assertTrue(provisioner.getConcurrencyLimit() == 2);
+            for (int x = 0; x < 4; x++) {
+                provisioner.requestInstance().get();
+            }
+            assertTrue(provisioner.getConcurrencyLimit() == 3);
+            assertTrue(provisioner.getLatencyHistogram().getCount() == 5);
+            //without slow start a cold placement requests all of its instances at once
+            assertTrue(new ResourceManagerConfig().setMaxConcurrentInstanceRequests(16).getInitialConcurrentInstanceRequests() == 16);
+
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (int x = 1; x <= 100; x++) {
+                histogram.record(x);
+            }
+            assertTrue(histogram.getPercentileMillis(50) >= 50 && histogram.getPercentileMillis(50) <= 56);
+            assertTrue(histogram.getPercentileMillis(100) == 100);
+            assertTrue(histogram.getMeanMillis() == 50.5);
+        }
+
+    @Test
+        //A blocking placement that cannot place every container should throw and give back what it placed
+        public void testPlacementFailure() {
+            instanceSize = 1;
+            final Instance first = new InstanceImpl(instanceSize);
+            when(cp.requestInstance()).thenReturn(first).thenThrow(new IllegalStateException("out of capacity"));
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            try {
+                rm.placeContainers(2);
+                assertTrue(false);
+            }
+            catch (IllegalStateException e) {
+            }
+            assertTrue(first.getAllContainers().isEmpty());
+        }
+
+    @Test
+        //Partial placements should return at the deadline with what was placed, or roll back below the minimum
+        public void testPartialPlacement() throws Exception {
+            instanceSize = 4;
+            final CountDownLatch boot = new CountDownLatch(1);
+            final Instance first = new InstanceImpl(instanceSize);
+            HashSet<Instance> instances = new HashSet<Instance>();
+            instances.add(first);
+            when(cp.getAllInstances()).thenReturn(instances);
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws Throwable {
+                    boot.await();
+                    return new InstanceImpl(instanceSize);
+                }
+            });
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            rm.whenReady().join();
+            PlacementResult result = rm.placeContainersPartially(new PlacementRequest().addContainers(6, 1)
+                .setMinContainers(4).setDeadline(100, TimeUnit.MILLISECONDS));
+            assertTrue(result.getPlacedContainers().size() == 4);
+            assertTrue(result.getPendingContainers().size() == 2);
+            assertTrue(!result.isComplete());
+            for (ContainerId containerId : result.getPlacedContainers()) {
+                assertTrue(rm.getInstance(containerId) == first);
+            }
+            boot.countDown();
+            assertTrue(result.getRemainingContainers().get().size() == 2);
+
+            //2 slots left on the second instance, the rest waits for a third one that never comes
+            final CountDownLatch never = new CountDownLatch(1);
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws Throwable {
+                    never.await();
+                    return new InstanceImpl(instanceSize);
+                }
+            });
+            try {
+                rm.placeContainersPartially(new PlacementRequest().addContainers(4, 1)
+                    .setMinContainers(3).setDeadline(100, TimeUnit.MILLISECONDS));
+                assertTrue(false);
+            }
+            catch (TimeoutException e) {
+            }
+            //the 2 that were placed were given back
+            assertTrue(rm.placeContainers(2).size() == 2);
+            never.countDown();
+        }
+
+    @Test
+        //Compaction should plan to empty the least used instances and keep placements off them
+        public void testCompactionPlan() {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 1);
+            List<ContainerId> li = rm.placeContainers(30);
+            HashMap<Instance, List<ContainerId>> byInstance = new HashMap<Instance, List<ContainerId>>();
+            for (ContainerId containerId : li) {
+                Instance i = rm.getInstance(containerId);
+                if (!byInstance.containsKey(i)) {
+                    byInstance.put(i, new ArrayList<ContainerId>());
+                }
+                byInstance.get(i).add(containerId);
+            }
+            List<Instance> instances = new ArrayList<Instance>(byInstance.keySet());
+            Instance sparse = instances.get(0);
+            Instance half = instances.get(1);
+            Instance full = instances.get(2);
+            //leave 2, 3 and 8 containers
+            int[] keep = {2, 3, 8};
+            for (int x = 0; x < 3; x++) {
+                List<ContainerId> onInstance = byInstance.get(instances.get(x));
+                while (onInstance.size() > keep[x]) {
+                    rm.unplaceContainer(onInstance.remove(0));
+                }
+            }
+            assertTrue(Math.abs(rm.getStrandedMemoryFraction() - 17.0 / 30) < 1e-9);
+
+            CompactionPlan plan = rm.planCompaction();
+            assertTrue(plan.getDrainedInstances().size() == 1);
+            assertTrue(plan.getDrainedInstances().get(0) == sparse);
+            assertTrue(plan.getMigrations().size() == 2);
+            for (CompactionPlan.Migration m : plan.getMigrations()) {
+                assertTrue(m.getFrom() == sparse);
+                assertTrue(m.getTo() == full);
+            }
+            assertTrue(rm.getCompactionPlan() == plan);
+
+            //best fit would put all 8 on the sparse instance
+            rm.placeContainers(8);
+            assertTrue(sparse.getRemainingMemoryGB() == 8);
+            assertTrue(full.getRemainingMemoryGB() == 0);
+            assertTrue(half.getRemainingMemoryGB() == 1);
+            assertTrue(cp_real.getInstanceCount() == 3);
+
+            //once empty it takes placements again
+            for (ContainerId containerId : byInstance.get(sparse)) {
+                rm.unplaceContainer(containerId);
+            }
+            rm.placeContainers(10);
+            assertTrue(sparse.getRemainingMemoryGB() == 0);
+            assertTrue(cp_real.getInstanceCount() == 3);
+        }
+
+    @Test
+        //Instances a compaction plan drains should still take placements before new ones are requested
+        public void testCompactionFallback() {
+            instanceSize = 4;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 1);
+            List<ContainerId> li = rm.placeContainers(8);
+            Instance sparse = rm.getInstance(li.get(0));
+            int onSparse = 0;
+            int onOther = 0;
+            for (ContainerId containerId : li) {
+                if (rm.getInstance(containerId) == sparse && onSparse++ < 3) {
+                    rm.unplaceContainer(containerId);
+                }
+                else if (rm.getInstance(containerId) != sparse && onOther++ < 1) {
+                    rm.unplaceContainer(containerId);
+                }
+            }
+
+            CompactionPlan plan = rm.planCompaction();
+            assertTrue(plan.getDrainedInstances().size() == 1);
+            assertTrue(plan.getDrainedInstances().get(0) == sparse);
+            rm.placeContainers(4);
+            assertTrue(cp_real.getInstanceCount() == 2);
+            assertTrue(sparse.getRemainingMemoryGB() == 0);
+        }
+
+    @Test
+        //Stripes should take room from each other before requesting instances and find every container
+        public void testStripedResourceManager() throws Exception {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            List<ContainerId> existing = new ArrayList<ContainerId>();
+            for (int x = 0; x < 3; x++) {
+                existing.add(cp_real.requestInstance().placeContainer(9));
+            }
+            final StripedResourceManager rm = new StripedResourceManager(cp_real, instanceSize, 1, 4);
+            rm.whenReady().get();
+            for (ContainerId containerId : existing) {
+                assertTrue(rm.getInstance(containerId).getAllContainers().contains(containerId));
+            }
+
+            //the 3 free slots left are spread over the stripes, every thread gets one of them
+            final List<ContainerId> placed = new ArrayList<ContainerId>();
+            for (int x = 0; x < 3; x++) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        placed.addAll(rm.placeContainers(1));
+                    }
+                });
+                t.start();
+                t.join();
+            }
+            assertTrue(cp_real.getInstanceCount() == 3);
+            assertTrue(rm.placeContainers(12).size() == 12);
+            assertTrue(cp_real.getInstanceCount() == 5);
+
+            placed.addAll(existing);
+            for (ContainerId containerId : placed) {
+                assertTrue(rm.getInstance(containerId).getRemainingMemoryGB() == 0);
+            }
+            Map<ContainerId, UnplaceResult> results = rm.unplaceContainers(placed);
+            for (UnplaceResult result : results.values()) {
+                assertTrue(result == UnplaceResult.UNPLACED);
+            }
+            //the 3 instances and the 12 containers' instances have 11 and 8 slots
+            assertTrue(rm.placeContainers(19).size() == 19);
+            assertTrue(cp_real.getInstanceCount() == 5);
+            try {
+                rm.getInstance(placed.get(0));
+                assertTrue(false);
+            }
+            catch (IllegalArgumentException e) {
+            }
+            rm.shutdown();
+            assertTrue(rm.awaitTermination(1, TimeUnit.SECONDS));
+        }
+
+    @Test
+        //Threads on different stripes should fill an instance another stripe is still waiting for
+        public void testStripedPendingInstances() throws Exception {
+            instanceSize = 4;
+            final Semaphore boots = new Semaphore(0);
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws InterruptedException {
+                    boots.acquire();
+                    return new InstanceImpl(instanceSize);
+                }
+            });
+            final StripedResourceManager rm = new StripedResourceManager(cp, instanceSize, 1, 4);
+            rm.whenReady().get();
+            final List<CompletableFuture<ContainerId>> placed = Collections.synchronizedList(
+                new ArrayList<CompletableFuture<ContainerId>>());
+            Set<Long> stripes = new HashSet<Long>();
+            while (stripes.size() < 4) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        placed.addAll(rm.placeContainersIncrementally(1));
+                    }
+                });
+                //one thread per stripe
+                if (stripes.add(t.getId() % 4)) {
+                    t.start();
+                    t.join();
+                }
+            }
+            boots.release(4);
+            Instance first = rm.getInstance(placed.get(0).get());
+            for (CompletableFuture<ContainerId> f : placed) {
+                assertTrue(rm.getInstance(f.get()) == first);
+            }
+            verify(cp, times(1)).requestInstance();
+            rm.shutdown();
+        }
+
+    @Test
+        //Metrics should count placements, instances and unplacements, and reach tracers and JMX
+        public void testMetrics() throws Exception {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            final List<String> spans = Collections.synchronizedList(new ArrayList<String>());
+            Tracer tracer = new Tracer() {
+                public Span startSpan(final String name) {
+                    return new Span() {
+                        public void setAttribute(String key, long value) {
+                        }
+
+                        public void end(Throwable failure) {
+                            spans.add(failure == null ? name : name + " failed");
+                        }
+                    };
+                }
+            };
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 2,
+                new ResourceManagerConfig().setTracer(tracer).setJmxName("testMetrics"));
+            rm.whenReady().join();
+            List<ContainerId> placed = rm.placeContainers(8);
+            rm.unplaceContainer(placed.get(0));
+            assertTrue(rm.placeContainers(1).size() == 1);
+            //a placement is recorded just after its caller hears of it
+            for (int x = 0; x < 100 && rm.getMetrics().getPlacements() < 2; x++) {
+                Thread.sleep(10);
+            }
+
+            ResourceManagerMetrics metrics = rm.getMetrics();
+            assertTrue(metrics.getPlacements() == 2);
+            assertTrue(metrics.getContainersPlaced() == 9);
+            assertTrue(metrics.getContainersFailed() == 0);
+            assertTrue(metrics.getContainersUnplaced() == 1);
+            assertTrue(metrics.getInstancesRequested() == 2);
+            assertTrue(metrics.getInstances() == 2);
+            assertTrue(metrics.getPendingInstances() == 0);
+            //8 of 10 slots are used
+            assertTrue(metrics.getFreeSlots() == 2);
+            assertTrue(Math.abs(metrics.getUtilization() - 0.8) < 1e-9);
+            assertTrue(Collections.frequency(spans, "recovery") == 1);
+            assertTrue(Collections.frequency(spans, "provisioning") == 2);
+            assertTrue(Collections.frequency(spans, "placement") == 2);
+
+            ObjectName name = new ObjectName("com.databricks.manager:type=ResourceManager,name=testMetrics");
+            assertTrue(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ContainersPlaced").equals(9L));
+            rm.shutdown();
+            assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        }
+
+    @Test
+        //A scrape of every JMX attribute should take a single metrics snapshot
+        public void testMetricsScrapeSnapshot() throws Exception {
+            instanceSize = 4;
+            final ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1);
+            final AtomicInteger snapshots = new AtomicInteger();
+            ObjectName name = ManagerMetrics.register("testMetricsScrape", new Supplier<ResourceManagerMetrics>() {
+                public ResourceManagerMetrics get() {
+                    snapshots.incrementAndGet();
+                    return rm.getMetrics();
+                }
+            });
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                MBeanAttributeInfo[] attributes = server.getMBeanInfo(name).getAttributes();
+                assertTrue(attributes.length > 1);
+                for (MBeanAttributeInfo attribute : attributes) {
+                    server.getAttribute(name, attribute.getName());
+                }
+                assertTrue(snapshots.get() == 1);
+                Thread.sleep(ManagerMetrics.SNAPSHOT_MAX_AGE_MILLIS + 100);
+                server.getAttribute(name, "ContainersPlaced");
+                assertTrue(snapshots.get() == 2);
+            }
+            finally {
+                ManagerMetrics.unregister(name);
+            }
+        }
+
+    @Test
+        //Simulations should take boot times in simulated time only and replay a day in seconds
+        public void testSimulator() throws Exception {
+            List<TraceEvent> trace = Simulator.readTrace(new StringReader(
+                "{\"timeMillis\": 0, \"op\": \"place\", \"job\": \"a\", \"containers\": 8}\n" +
+                "{\"timeMillis\": 1000, \"op\": \"place\", \"job\": \"b\", \"containers\": 2}\n" +
+                "\n" +
+                "{\"timeMillis\": 200000, \"op\": \"unplace\", \"job\": \"a\"}\n" +
+                "{\"timeMillis\": 200000, \"op\": \"place\", \"job\": \"c\", \"containers\": 1, \"containerSizeGB\": 6}\n"));
+            Simulator simulator = new Simulator(10, 2, BootTimeDistribution.constant(120000), new ResourceManagerConfig());
+            SimulationReport report = simulator.run(trace);
+            //a and b share the 2 instances that boot in parallel, c fits on one of them once a is gone
+            assertTrue(report.getPlacements() == 3);
+            assertTrue(report.getContainersPlaced() == 11);
+            assertTrue(report.getInstances() == 2);
+            assertTrue(report.getSimulatedMillis() == 200000);
+            assertTrue(report.getPlacementLatency().getMaxMillis() == 120000);
+            assertTrue(report.getPlacementLatency().getPercentileMillis(1) == 0);
+            assertTrue(Math.abs(report.getInstanceHours() - 400000 / 3600000.0) < 1e-9);
+
+            //a day of jobs of 20 containers for half an hour, one every 10 seconds
+            List<TraceEvent> day = new ArrayList<TraceEvent>();
+            for (int x = 0; x < 8640; x++) {
+                day.add(TraceEvent.place(x * 10000L, "job" + x, 20, Double.NaN));
+                day.add(TraceEvent.unplace(x * 10000L + 1800000, "job" + x));
+            }
+            simulator = new Simulator(64, 4, BootTimeDistribution.logNormal(180000, 0.3), new ResourceManagerConfig());
+            report = simulator.setSeed(7).run(day);
+            assertTrue(report.getContainersPlaced() + report.getContainersCancelled() == 8640 * 20);
+            assertTrue(report.getSimulatedMillis() >= 8639 * 10000L + 1800000);
+            assertTrue(report.getWallClockMillis() < 30000);
+            //about 180 jobs of 20 containers run at once, at 16 per instance
+            assertTrue(report.getInstances() >= 180 * 20 / 16);
+            assertTrue(report.getMeanUtilization() > 0.5);
+            SimulationReport again = simulator.run(day);
+            assertTrue(again.getInstances() == report.getInstances());
+            assertTrue(again.getInstanceHours() == report.getInstanceHours());
+            assertTrue(again.getPlacementLatency().getMaxMillis() == report.getPlacementLatency().getMaxMillis());
+        }
+
+    @Test(timeout = 10000)
+        //Interactive placements should not wait behind a batch of instance requests, and quotas should hold
+        public void testAdmissionControl() throws Exception {
+            instanceSize = 10;
+            final Semaphore boots = new Semaphore(0);
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws InterruptedException {
+                    boots.acquire();
+                    return new InstanceImpl(instanceSize);
+                }
+            });
+            AdmissionPolicy policy = new AdmissionPolicy().setMaxContainers("small", 5);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1, new ResourceManagerConfig()
+                .setInitialConcurrentInstanceRequests(1).setMaxConcurrentInstanceRequests(1).setAdmissionPolicy(policy));
+            rm.whenReady().join();
+            List<CompletableFuture<ContainerId>> big = rm.placeContainersIncrementally(
+                new PlacementRequest().addContainers(50, 1).setTenant("big"));
+            List<CompletableFuture<ContainerId>> small = rm.placeContainersIncrementally(
+                new PlacementRequest().addContainers(5, 1).setTenant("small").setPriority(PlacementRequest.Priority.INTERACTIVE));
+            List<CompletableFuture<ContainerId>> over = rm.placeContainersIncrementally(
+                new PlacementRequest().addContainers(1, 1).setTenant("small"));
+            assertTrue(over.get(0).isCompletedExceptionally());
+
+            //the first instance was requested for big before small came in
+            boots.release();
+            big.get(9).get();
+            assertTrue(!small.get(0).isDone());
+            //small goes next, ahead of the 40 containers big still waits for
+            boots.release();
+            for (CompletableFuture<ContainerId> f : small) {
+                f.get();
+            }
+            assertTrue(!big.get(49).isDone());
+
+            boots.release(100);
+            for (CompletableFuture<ContainerId> f : big) {
+                f.get();
+            }
+            rm.unplaceContainer(small.get(0).get());
+            assertTrue(rm.placeContainersIncrementally(new PlacementRequest().addContainers(1, 1).setTenant("small")).get(0).get() != null);
+            rm.shutdown();
+        }
+
+    @Test
+        //Containers lost with their instance should no longer count against their tenant's quota
+        public void testAdmissionAfterLoss() {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            AdmissionPolicy policy = new AdmissionPolicy().setMaxContainers("small", 4);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 1, new ResourceManagerConfig()
+                .setReconciliationIntervalMillis(0).setAdmissionPolicy(policy));
+            List<ContainerId> li = rm.placeContainers(new PlacementRequest().addContainers(4, 1).setTenant("small"));
+            Instance host = rm.getInstance(li.get(0));
+            for (ContainerId containerId : li) {
+                host.unplaceContainer(containerId);
+            }
+            //seen missing twice
+            rm.reconcile();
+            assertTrue(rm.reconcile() == 4);
+            assertTrue(rm.placeContainers(new PlacementRequest().addContainers(4, 1).setTenant("small")).size() == 4);
+            rm.shutdown();
+        }
+
+    @Test
+        //A container unplaced as soon as its caller sees it should give its tenant's quota back
+        public void testAdmissionUnplaceOnCompletion() throws Exception {
+            instanceSize = 1;
+            final Semaphore boots = new Semaphore(0);
+            when(cp.requestInstance()).thenAnswer(new Answer<Instance>() {
+                @Override
+                public Instance answer(InvocationOnMock invocation) throws InterruptedException {
+                    boots.acquire();
+                    return new InstanceImpl(instanceSize);
+                }
+            });
+            AdmissionPolicy policy = new AdmissionPolicy().setMaxContainers("small", 1);
+            final ResourceManagerImpl rm = new ResourceManagerImpl(cp, instanceSize, 1,
+                new ResourceManagerConfig().setAdmissionPolicy(policy));
+            rm.whenReady().join();
+            //runs before anything else that waits on the future
+            final CompletableFuture<Void> unplaced = new CompletableFuture<Void>();
+            rm.placeContainersIncrementally(new PlacementRequest().addContainers(1, 1).setTenant("small")).get(0)
+                .thenAccept(new Consumer<ContainerId>() {
+                    public void accept(ContainerId containerId) {
+                        rm.unplaceContainer(containerId);
+                        unplaced.complete(null);
+                    }
+                });
+            boots.release();
+            unplaced.get();
+            assertTrue(rm.placeContainersIncrementally(new PlacementRequest().addContainers(1, 1).setTenant("small")).get(0).get() != null);
+            rm.shutdown();
+        }
+
+    @Test
+        //Containers of a group should share the instances the group is on, or spread out when asked to
+        public void testLocalityGroups() {
+            instanceSize = 10;
+            CloudProviderReal cp_real = new CloudProviderReal(instanceSize);
+            ResourceManagerImpl rm = new ResourceManagerImpl(cp_real, instanceSize, 1);
+            //two empty instances
+            for (ContainerId containerId : rm.placeContainers(20)) {
+                rm.unplaceContainer(containerId);
+            }
+            List<ContainerId> spark = new ArrayList<ContainerId>(rm.placeContainers(new PlacementRequest().addContainers(3, 1).setGroup("spark")));
+            Instance sparkInstance = rm.getInstance(spark.get(0));
+            //best fit puts this on the other instance, leaving it 2 free slots
+            List<ContainerId> other = rm.placeContainers(new PlacementRequest().addContainers(8, 1));
+            assertTrue(rm.getInstance(other.get(0)) != sparkInstance);
+            //which best fit would take, but the group already is on the first one
+            spark.addAll(rm.placeContainers(new PlacementRequest().addContainers(2, 1).setGroup("spark")));
+            assertTrue(rm.getInstances("spark").size() == 1);
+            assertTrue(rm.getInstances("spark").contains(sparkInstance));
+
+            //one per instance needs a third instance
+            List<ContainerId> ha = rm.placeContainers(new PlacementRequest().addContainers(3, 1).setGroup("ha")
+                .setMaxContainersPerInstance(1));
+            assertTrue(rm.getInstances("ha").size() == 3);
+            assertTrue(cp_real.getInstanceCount() == 3);
+            //a second request of the group still keeps to one per instance
+            rm.placeContainers(new PlacementRequest().addContainers(1, 1).setGroup("ha").setMaxContainersPerInstance(1));
+            assertTrue(rm.getInstances("ha").size() == 4);
+
+            rm.unplaceContainers(spark);
+            assertTrue(rm.getInstances("spark").isEmpty());
+            assertTrue(rm.getInstances("none").isEmpty());
+        }
+
+    @Test
+        //The container index should forget unplaced containers, on and off the heap, and report its footprint
+        public void testContainerIndex() {
+            for (boolean offHeap : new boolean[] {false, true}) {
+                ContainerIndex index = new ContainerIndex(offHeap);
+                Map<ContainerId, Placement> expected = new HashMap<ContainerId, Placement>();
+                Placement a = new Placement(new InstanceImpl(10), 1);
+                Placement b = new Placement(new InstanceImpl(10), 2);
+                Random random = new Random(offHeap ? 1 : 2);
+                for (int x = 0; x < 200000; x++) {
+                    int n = random.nextInt(5000);
+                    //a few ids that are not numbers
+                    ContainerId containerId = n % 100 == 0 ? new ContainerId("c" + n) : ContainerId.of(n % 7, n);
+                    if (random.nextBoolean()) {
+                        Placement placement = random.nextBoolean() ? a : b;
+                        index.put(containerId, placement);
+                        expected.put(containerId, placement);
+                    }
+                    else {
+                        assertTrue(index.remove(containerId) == expected.remove(containerId));
+                    }
+                }
+                assertTrue(index.size() == expected.size());
+                for (int n = 0; n < 5000; n++) {
+                    ContainerId containerId = n % 100 == 0 ? new ContainerId("c" + n) : ContainerId.of(n % 7, n);
+                    assertTrue(index.getPlacement(containerId) == expected.get(containerId));
+                }
+                int indexed = 0;
+                for (Set<ContainerId> containers : index.byInstance().values()) {
+                    indexed += containers.size();
+                }
+                assertTrue(indexed == expected.size());
+                assertTrue(index.getHeapBytes() / expected.size() < (offHeap ? 8 : 64));
+            }
+
+            instanceSize = 10;
+            ResourceManagerImpl rm = new ResourceManagerImpl(new CloudProviderReal(instanceSize), instanceSize, 1,
+                new ResourceManagerConfig().setOffHeapContainerIndex(true));
+            List<ContainerId> placed = rm.placeContainers(1000);
+            assertTrue(rm.getMetrics().getContainers() == 1000);
+            rm.unplaceContainers(placed);
+            assertTrue(rm.getMetrics().getContainers() == 0);
+            try {
+                rm.getInstance(placed.get(0));
+                assertTrue(false);
+            }
+            catch (IllegalArgumentException e) {
+            }
+        }
 }